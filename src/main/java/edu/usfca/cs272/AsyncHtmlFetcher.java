@@ -0,0 +1,351 @@
+package edu.usfca.cs272;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Fetches HTML without blocking, so a handful of threads can keep thousands of
+ * requests in flight at once. Requests are sent with {@link HttpClient}, whose
+ * completion handlers run on a small pool of threads owned by this fetcher.
+ *
+ * <p>
+ * The results match {@link HtmlFetcher#fetch(URI, int)}: the body is only read
+ * if the status code is 200 and the content type is HTML, in which case it is
+ * returned as lines joined with the {@link System#lineSeparator}, after it is
+ * decompressed if the server sent it with gzip or deflate. Redirects are
+ * followed by this class rather than by the client, so the same number of them
+ * are followed and the same {@code null} results are returned otherwise.
+ *
+ * <p>
+ * Like {@link HtmlFetcher#fetch(URI, int, ConnectionPool, long, HtmlFetcher.BodyHandler)},
+ * a fetch may be given the most bytes of a page to read. A page whose
+ * {@code Content-Length} is over the limit is not read at all, and any other
+ * page is given up on as soon as it passes the limit, so an oversized body is
+ * never buffered whole.
+ *
+ * @see HtmlFetcher
+ */
+public class AsyncHtmlFetcher implements Closeable {
+	/** The default number of threads that handle responses. */
+	public static final int DEFAULT_THREADS = 2;
+
+	/** The default longest wait for a connection or a response. */
+	public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The threads that handle responses. */
+	private final ExecutorService executor;
+
+	/** The client that sends requests. */
+	private final HttpClient client;
+
+	/** The longest wait for a response. */
+	private final Duration timeout;
+
+	/** Number of requests sent, including redirects. */
+	private final LongAdder requests;
+
+	/** Number of requests that failed before a response. */
+	private final LongAdder failures;
+
+	/**
+	 * Initializes a fetcher with the default number of threads and timeout.
+	 */
+	public AsyncHtmlFetcher() {
+		this(DEFAULT_THREADS, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Initializes a fetcher.
+	 *
+	 * @param threads the number of threads that handle responses
+	 * @param timeout the longest wait for a connection or a response
+	 */
+	public AsyncHtmlFetcher(int threads, Duration timeout) {
+		AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+			Thread thread = new Thread(task, "AsyncFetcher-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timeout = timeout;
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.connectTimeout(timeout)
+				.executor(executor)
+				.build();
+		this.requests = new LongAdder();
+		this.failures = new LongAdder();
+	}
+
+	/**
+	 * Starts fetching HTML. The returned future is never completed
+	 * exceptionally; like {@link HtmlFetcher#fetch(URI, int)}, any failure
+	 * results in {@code null}.
+	 *
+	 * @param uri       the URI to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @return a future of the HTML or {@code null} if unable to fetch valid HTML
+	 */
+	public CompletableFuture<String> fetch(URI uri, int redirects) {
+		return fetch(uri, redirects, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Starts fetching HTML, giving up on a page longer than a limit. The returned
+	 * future is never completed exceptionally; any failure, including a page
+	 * over the limit, results in {@code null}.
+	 *
+	 * @param uri       the URI to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @param maxBytes  the most bytes of the decoded body to read
+	 * @return a future of the HTML or {@code null} if unable to fetch valid HTML
+	 */
+	public CompletableFuture<String> fetch(URI uri, int redirects, long maxBytes) {
+		HttpRequest request;
+		try {
+			request = HttpRequest.newBuilder(uri)
+					.timeout(timeout)
+					.header("Accept-Encoding", "gzip, deflate")
+					.GET()
+					.build();
+		} catch (IllegalArgumentException e) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		requests.increment();
+		Response response = new Response(maxBytes);
+		return client.sendAsync(request, response::subscribe)
+				.thenCompose(ignored -> {
+					if (response.redirect == null || redirects <= 0) {
+						return CompletableFuture.completedFuture(response.html);
+					}
+					try {
+						return fetch(new URI(response.redirect), redirects - 1, maxBytes);
+					} catch (Exception e) {
+						return CompletableFuture.completedFuture(null);
+					}
+				})
+				.exceptionally(e -> {
+					failures.increment();
+					log.catching(Level.TRACE, e);
+					return null;
+				});
+	}
+
+	/**
+	 * Converts the status and headers of a response into the same form as
+	 * {@link HttpsFetcher#processHttpHeaders(java.io.BufferedReader)}, so they
+	 * are checked by the same methods as blocking fetches.
+	 *
+	 * @param info the status and headers of a response
+	 * @return a map of header fields to a list of header values
+	 */
+	private static Map<String, List<String>> toHeaders(ResponseInfo info) {
+		Map<String, List<String>> headers = new HashMap<>();
+		headers.put(null, List.of("HTTP/1.1 " + info.statusCode()));
+		info.headers().map().forEach((name, values) -> headers.put(name.toLowerCase(), values));
+		return headers;
+	}
+
+	/**
+	 * Returns the number of requests sent, including redirects.
+	 *
+	 * @return the number of requests sent
+	 */
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	/**
+	 * Returns the number of requests that failed before a response.
+	 *
+	 * @return the number of failed requests
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * Closes the client and stops the threads that handle responses.
+	 */
+	@Override
+	public void close() {
+		client.close();
+		executor.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d requests, %d failed", getRequests(), getFailures());
+	}
+
+	/**
+	 * What to do with the body of one response, decided once its status and
+	 * headers arrive: read it if it is HTML, remember the location if it is a
+	 * redirect, and otherwise throw it away.
+	 */
+	private static class Response {
+		/** The HTML of the response, or {@code null} if it is not HTML. */
+		private volatile String html;
+
+		/** The location to follow, or {@code null} if there is none. */
+		private volatile String redirect;
+
+		/** The most bytes of the decoded body to read. */
+		private final long maxBytes;
+
+		/**
+		 * Initializes an empty response.
+		 *
+		 * @param maxBytes the most bytes of the decoded body to read
+		 */
+		private Response(long maxBytes) {
+			this.html = null;
+			this.redirect = null;
+			this.maxBytes = maxBytes;
+		}
+
+		/**
+		 * Chooses how to read the body of the response.
+		 *
+		 * @param info the status and headers of the response
+		 * @return the subscriber that reads the body
+		 * @see HttpResponse.BodyHandler
+		 */
+		private BodySubscriber<Void> subscribe(ResponseInfo info) {
+			Map<String, List<String>> headers = toHeaders(info);
+			int statusCode = HtmlFetcher.getStatusCode(headers);
+			if (statusCode == 200 && HtmlFetcher.isHtml(headers)) {
+				// a body is never longer on the wire than decoded, so capping what
+				// arrives never gives up on a page the decoded limit allows
+				long limit = HttpConnection.isTooLong(headers, maxBytes) ? -1 : maxBytes;
+				return BodySubscribers.mapping(new LimitedBody(limit), body -> {
+					if (body == null) {
+						return null;
+					}
+					try {
+						html = HtmlFetcher.readLines(HttpConnection.limit(
+								HttpConnection.decode(new ByteArrayInputStream(body), headers), maxBytes));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					return null;
+				});
+			}
+			if (statusCode >= 300 && statusCode <= 399) {
+				redirect = HtmlFetcher.getRedirect(headers);
+			}
+			return BodySubscribers.discarding();
+		}
+	}
+
+	/**
+	 * Reads a body into memory, up to a limit. Once more than the limit arrives,
+	 * the rest of the body is cancelled and the result is {@code null}.
+	 */
+	private static class LimitedBody implements BodySubscriber<byte[]> {
+		/** The most bytes to read, or a negative number to read none. */
+		private final long maxBytes;
+
+		/** The bytes read so far. */
+		private final ByteArrayOutputStream received;
+
+		/** The body, or {@code null} if it was longer than the limit. */
+		private final CompletableFuture<byte[]> body;
+
+		/** The subscription to the body. */
+		private Flow.Subscription subscription;
+
+		/**
+		 * Initializes a subscriber that reads up to a limit.
+		 *
+		 * @param maxBytes the most bytes to read, or a negative number to give up
+		 *                 on the body without reading any of it
+		 */
+		private LimitedBody(long maxBytes) {
+			this.maxBytes = maxBytes;
+			this.received = new ByteArrayOutputStream();
+			this.body = new CompletableFuture<>();
+			this.subscription = null;
+		}
+
+		@Override
+		public CompletionStage<byte[]> getBody() {
+			return body;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			if (maxBytes < 0) {
+				giveUp();
+			} else {
+				subscription.request(Long.MAX_VALUE);
+			}
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> buffers) {
+			if (body.isDone()) {
+				return;
+			}
+			for (ByteBuffer buffer : buffers) {
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				received.writeBytes(bytes);
+			}
+			if (received.size() > maxBytes) {
+				giveUp();
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			body.completeExceptionally(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			body.complete(received.toByteArray());
+		}
+
+		/**
+		 * Cancels the rest of the body and completes with {@code null}.
+		 */
+		private void giveUp() {
+			log.debug("Gave up on a body longer than {} bytes", maxBytes);
+			subscription.cancel();
+			body.complete(null);
+		}
+	}
+}
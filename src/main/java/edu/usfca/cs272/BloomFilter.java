@@ -0,0 +1,112 @@
+package edu.usfca.cs272;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe Bloom filter of 64-bit fingerprints. It never forgets a
+ * fingerprint that was added, but may claim to have seen a fingerprint that was
+ * never added, at roughly the false positive rate it was sized for. In return
+ * it uses only about 10 bits per fingerprint at a 1% false positive rate.
+ *
+ * <p>
+ * The bits are set without locking. Adds of the same fingerprint are
+ * serialized by one of a fixed set of stripe locks, so exactly one of any
+ * number of concurrent adds of a fingerprint reports it as new.
+ */
+public class BloomFilter {
+	/** Number of stripe locks used to serialize adds of the same fingerprint. */
+	private static final int STRIPES = 64;
+
+	/** The bits of the filter, 64 to a word. */
+	private final AtomicLongArray bits;
+
+	/** The number of bits in the filter. */
+	private final long size;
+
+	/** The number of bits set for each fingerprint. */
+	private final int hashes;
+
+	/** Locks that serialize adds of fingerprints in the same stripe. */
+	private final Object[] stripes;
+
+	/**
+	 * Initializes a filter sized for an expected number of fingerprints.
+	 *
+	 * @param expected      the number of fingerprints expected to be added
+	 * @param falsePositive the false positive rate once that many are added
+	 */
+	public BloomFilter(long expected, double falsePositive) {
+		double ln2 = Math.log(2);
+		long wanted = (long) Math.ceil(-Math.max(1, expected) * Math.log(falsePositive) / (ln2 * ln2));
+		int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (wanted + 63) / 64));
+		this.bits = new AtomicLongArray(words);
+		this.size = 64L * words;
+		this.hashes = (int) Math.max(1, Math.round((double) size / Math.max(1, expected) * ln2));
+		this.stripes = new Object[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Object();
+		}
+	}
+
+	/**
+	 * Returns the index of one of the bits of a fingerprint, using the two halves
+	 * of the fingerprint as independent hashes.
+	 *
+	 * @param fingerprint the fingerprint
+	 * @param i           which of the bits to find
+	 * @return the index of the bit
+	 */
+	private long index(long fingerprint, int i) {
+		long combined = (fingerprint >>> 32) + i * (fingerprint & 0xFFFFFFFFL | 1);
+		return Math.floorMod(combined, size);
+	}
+
+	/**
+	 * Adds a fingerprint.
+	 *
+	 * @param fingerprint the fingerprint to add
+	 * @return true if the fingerprint was definitely not added before
+	 */
+	public boolean add(long fingerprint) {
+		synchronized (stripes[(int) (fingerprint & (STRIPES - 1))]) {
+			boolean added = false;
+			for (int i = 0; i < hashes; i++) {
+				long index = index(fingerprint, i);
+				long mask = 1L << index;
+				long old = bits.getAndAccumulate((int) (index >>> 6), mask, (word, bit) -> word | bit);
+				added |= (old & mask) == 0;
+			}
+			return added;
+		}
+	}
+
+	/**
+	 * Determines whether a fingerprint may have been added.
+	 *
+	 * @param fingerprint the fingerprint to check
+	 * @return false if the fingerprint was definitely never added
+	 */
+	public boolean mightContain(long fingerprint) {
+		for (int i = 0; i < hashes; i++) {
+			long index = index(fingerprint, i);
+			if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the memory used by the bits of this filter in bytes.
+	 *
+	 * @return the number of bytes used
+	 */
+	public long memoryBytes() {
+		return size / 8;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d bits, %d hashes", size, hashes);
+	}
+}
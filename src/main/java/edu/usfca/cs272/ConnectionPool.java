@@ -0,0 +1,232 @@
+package edu.usfca.cs272;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A thread-safe pool of persistent HTTP/1.1 connections, kept per host so that
+ * fetching many pages from the same site skips the TCP (and for HTTPS, TLS)
+ * handshake for every page but the first. Each host has at most a maximum
+ * number of open connections, and a fetch that needs another connection waits
+ * for one to be returned. Connections idle for longer than the idle timeout
+ * are closed instead of reused, since the server has likely closed them.
+ *
+ * @see HttpConnection
+ * @see HtmlFetcher#fetch(URI, int, ConnectionPool)
+ */
+public class ConnectionPool implements Closeable {
+	/** The default maximum number of open connections to one host. */
+	public static final int DEFAULT_MAX_PER_HOST = 8;
+
+	/** The default number of milliseconds a connection may sit idle. */
+	public static final long DEFAULT_IDLE_MILLIS = 5_000;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The most open connections to one host. */
+	private final int maxPerHost;
+
+	/** The longest a connection may sit idle before it is closed. */
+	private final long idleNanos;
+
+	/** The connections of each host. */
+	private final HashMap<String, Host> hosts;
+
+	/** Whether the pool was closed. */
+	private boolean closed;
+
+	/** Number of connections opened. */
+	private final LongAdder opened;
+
+	/** Number of times an idle connection was reused. */
+	private final LongAdder reused;
+
+	/**
+	 * Initializes a pool with the default limits.
+	 */
+	public ConnectionPool() {
+		this(DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_MILLIS);
+	}
+
+	/**
+	 * Initializes a pool.
+	 *
+	 * @param maxPerHost the most open connections to one host
+	 * @param idleMillis the number of milliseconds a connection may sit idle
+	 */
+	public ConnectionPool(int maxPerHost, long idleMillis) {
+		this.maxPerHost = Math.max(1, maxPerHost);
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, idleMillis));
+		this.hosts = new HashMap<>();
+		this.closed = false;
+		this.opened = new LongAdder();
+		this.reused = new LongAdder();
+	}
+
+	/**
+	 * Returns the key that connections to the host of a URI are pooled under:
+	 * the scheme, host, and port.
+	 *
+	 * @param uri the URI
+	 * @return the pool key
+	 */
+	public static String keyOf(URI uri) {
+		String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+		int port = uri.getPort() >= 0 ? uri.getPort() : scheme.equals("https") ? 443 : 80;
+		return scheme + "://" + (uri.getHost() == null ? "" : uri.getHost().toLowerCase()) + ":" + port;
+	}
+
+	/**
+	 * Takes a connection to the host of a URI, reusing an idle one if possible,
+	 * and otherwise opening a new one once the host is below its limit.
+	 *
+	 * @param uri the URI to connect to
+	 * @return a connection that must be given back with
+	 *         {@link #release(HttpConnection, boolean)}
+	 * @throws IOException          if unable to open a connection
+	 * @throws InterruptedException if interrupted while waiting for a connection
+	 */
+	public HttpConnection acquire(URI uri) throws IOException, InterruptedException {
+		String key = keyOf(uri);
+		Host host;
+		synchronized (hosts) {
+			host = hosts.computeIfAbsent(key, x -> new Host());
+			while (true) {
+				HttpConnection idle = host.idle.pollFirst();
+				if (idle != null) {
+					if (System.nanoTime() - idle.idleSince() <= idleNanos && idle.isOpen()) {
+						reused.increment();
+						return idle;
+					}
+					host.open--;
+					closeQuietly(idle);
+					continue;
+				}
+				if (host.open < maxPerHost) {
+					host.open++;
+					break;
+				}
+				hosts.wait();
+			}
+		}
+
+		try {
+			HttpConnection connection = new HttpConnection(key, uri);
+			opened.increment();
+			return connection;
+		} catch (IOException | RuntimeException e) {
+			synchronized (hosts) {
+				host.open--;
+				hosts.notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives back a connection taken with {@link #acquire(URI)}.
+	 *
+	 * @param connection the connection
+	 * @param reusable   whether the last response was fully read and the
+	 *                   connection may be used for another request
+	 */
+	public void release(HttpConnection connection, boolean reusable) {
+		synchronized (hosts) {
+			Host host = hosts.get(connection.key());
+			if (reusable && !closed && connection.isOpen()) {
+				connection.markIdle();
+				// the most recently used connection is the least likely to be stale
+				host.idle.addFirst(connection);
+			} else {
+				host.open--;
+				closeQuietly(connection);
+			}
+			hosts.notifyAll();
+		}
+	}
+
+	/**
+	 * Closes a connection, ignoring any error.
+	 *
+	 * @param connection the connection to close
+	 */
+	private static void closeQuietly(HttpConnection connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			log.catching(e);
+		}
+	}
+
+	/**
+	 * Returns the number of connections opened.
+	 *
+	 * @return the number of connections opened
+	 */
+	public long getOpened() {
+		return opened.sum();
+	}
+
+	/**
+	 * Returns the number of times an idle connection was reused.
+	 *
+	 * @return the number of reused connections
+	 */
+	public long getReused() {
+		return reused.sum();
+	}
+
+	/**
+	 * Closes every idle connection. Connections in use are closed when they are
+	 * released.
+	 */
+	@Override
+	public void close() {
+		synchronized (hosts) {
+			closed = true;
+			for (Host host : hosts.values()) {
+				for (HttpConnection connection : host.idle) {
+					closeQuietly(connection);
+				}
+				host.open -= host.idle.size();
+				host.idle.clear();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (hosts) {
+			return String.format("%d hosts, %d connections opened, %d reused", hosts.size(), getOpened(),
+					getReused());
+		}
+	}
+
+	/**
+	 * The connections to one host.
+	 */
+	private static class Host {
+		/** Idle connections, most recently used first. */
+		private final ArrayDeque<HttpConnection> idle;
+
+		/** Number of open connections, idle or in use. */
+		private int open;
+
+		/**
+		 * Initializes a host with no connections.
+		 */
+		private Host() {
+			this.idle = new ArrayDeque<>();
+			this.open = 0;
+		}
+	}
+}
@@ -0,0 +1,457 @@
+package edu.usfca.cs272;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An append-only log of a crawl, so a crawl that is stopped part way can be
+ * resumed instead of started over. Every claimed URL and every crawled page
+ * is logged, with the words the page added to the index. Replaying the log
+ * restores the seen set, the index, and the URLs that were claimed but not
+ * crawled yet, including the ones that were being fetched when the crawl
+ * stopped.
+ *
+ * <p>
+ * Crawl threads only encode their records and hand them off; a background
+ * thread appends them to the log and forces it to disk about once per sync
+ * interval, so writing checkpoints never makes a crawl thread wait on the
+ * disk. Each record is framed with its length and a checksum, so a record cut
+ * off by a crash is found and dropped when the log is replayed.
+ *
+ * @see WebCrawler#startCrawl(String, int, CrawlJournal)
+ */
+public class CrawlJournal implements Closeable {
+	/** The name of the log file in the checkpoint directory. */
+	public static final String FILE_NAME = "crawl.log";
+
+	/** The default number of milliseconds between forcing the log to disk. */
+	public static final long DEFAULT_SYNC_MILLIS = 1_000;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The type of a record of claimed URLs. */
+	private static final byte CLAIMED = 1;
+
+	/** The type of a record of a crawled page. */
+	private static final byte CRAWLED = 2;
+
+	/** The largest record that is believed when replaying the log. */
+	private static final int MAX_RECORD = 1 << 30;
+
+	/** Marks the end of the records, so the writer stops. */
+	private static final byte[] CLOSED = new byte[0];
+
+	/** The log file. */
+	private final Path file;
+
+	/** Whether to replay the log instead of starting a new one. */
+	private final boolean resume;
+
+	/** The longest time between forcing the log to disk. */
+	private final long syncNanos;
+
+	/** The encoded records waiting to be written. */
+	private final LinkedBlockingQueue<byte[]> records;
+
+	/** The thread writing the records, once the log was opened. */
+	private Thread writer;
+
+	/** Whether writing the log failed, after which records are dropped. */
+	private volatile boolean failed;
+
+	/** Number of records written. */
+	private final LongAdder written;
+
+	/** Number of times the log was forced to disk. */
+	private final LongAdder syncs;
+
+	/**
+	 * The state of a crawl restored from its log.
+	 *
+	 * @param claimed the URLs claimed, in the order they were claimed
+	 * @param crawled the URLs whose pages were crawled
+	 */
+	public record Recovery(List<URI> claimed, Set<URI> crawled) {
+	}
+
+	/**
+	 * Initializes a log with the default sync interval.
+	 *
+	 * @param directory the directory to keep the log in
+	 * @param resume    whether to replay an existing log instead of starting a
+	 *                  new one
+	 * @throws IOException if unable to create the directory
+	 */
+	public CrawlJournal(Path directory, boolean resume) throws IOException {
+		this(directory, resume, DEFAULT_SYNC_MILLIS);
+	}
+
+	/**
+	 * Initializes a log.
+	 *
+	 * @param directory  the directory to keep the log in
+	 * @param resume     whether to replay an existing log instead of starting a
+	 *                   new one
+	 * @param syncMillis the number of milliseconds between forcing the log to
+	 *                   disk
+	 * @throws IOException if unable to create the directory
+	 */
+	public CrawlJournal(Path directory, boolean resume, long syncMillis) throws IOException {
+		Files.createDirectories(directory);
+		this.file = directory.resolve(FILE_NAME);
+		this.resume = resume;
+		this.syncNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncMillis));
+		this.records = new LinkedBlockingQueue<>();
+		this.writer = null;
+		this.failed = false;
+		this.written = new LongAdder();
+		this.syncs = new LongAdder();
+	}
+
+	/**
+	 * Replays the log if resuming, adding the words of every crawled page to an
+	 * index, and then opens the log for new records. A record cut off at the end
+	 * of the log is removed. This must be called once, before anything is logged.
+	 *
+	 * @param index the index to add the crawled pages to
+	 * @return the URLs claimed and crawled so far, which are empty unless
+	 *         resuming
+	 * @throws IOException if unable to read or open the log
+	 */
+	public Recovery recover(InvertedIndex index) throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("The crawl log was already opened.");
+		}
+
+		ArrayList<URI> claimed = new ArrayList<>();
+		HashSet<URI> crawled = new HashSet<>();
+		if (!resume) {
+			Files.deleteIfExists(file);
+		} else if (Files.exists(file)) {
+			long valid = replay(index, claimed, crawled);
+			if (valid < Files.size(file)) {
+				log.warn("Dropping {} bytes cut off at the end of {}", Files.size(file) - valid, file);
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+					channel.truncate(valid);
+				}
+			}
+		}
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		writer = new Thread(() -> write(channel), "CrawlJournal");
+		writer.start();
+		return new Recovery(claimed, crawled);
+	}
+
+	/**
+	 * Reads every whole record of the log.
+	 *
+	 * @param index   the index to add the crawled pages to
+	 * @param claimed the list to add claimed URLs to
+	 * @param crawled the set to add crawled URLs to
+	 * @return the number of bytes of whole records
+	 * @throws IOException if unable to read the log
+	 */
+	private long replay(InvertedIndex index, List<URI> claimed, Set<URI> crawled) throws IOException {
+		long valid = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+			while (true) {
+				byte[] record;
+				try {
+					int length = in.readInt();
+					long checksum = in.readInt() & 0xFFFFFFFFL;
+					if (length < 1 || length > MAX_RECORD) {
+						break;
+					}
+					record = new byte[length];
+					in.readFully(record);
+					if (checksum(record) != checksum) {
+						break;
+					}
+				} catch (EOFException e) {
+					break;
+				}
+
+				apply(new DataInputStream(new ByteArrayInputStream(record)), index, claimed, crawled);
+				valid += 8 + record.length;
+			}
+		}
+		log.debug("Replayed {} claimed and {} crawled urls from {}", claimed.size(), crawled.size(), file);
+		return valid;
+	}
+
+	/**
+	 * Applies one record of the log.
+	 *
+	 * @param in      the record
+	 * @param index   the index to add a crawled page to
+	 * @param claimed the list to add claimed URLs to
+	 * @param crawled the set to add a crawled URL to
+	 * @throws IOException if the record is invalid
+	 */
+	private static void apply(DataInputStream in, InvertedIndex index, List<URI> claimed, Set<URI> crawled)
+			throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case CLAIMED -> {
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					claimed.add(URI.create(readString(in)));
+				}
+			}
+			case CRAWLED -> {
+				crawled.add(URI.create(readString(in)));
+				String location = readString(in);
+				InvertedIndex local = readPostings(in, location);
+				if (local.numCounts() > 0) {
+					index.addAll(local);
+				}
+			}
+			default -> throw new IOException("Unknown crawl log record type " + type);
+		}
+	}
+
+	/**
+	 * Logs URLs that were claimed for crawling. This must be logged before any
+	 * of the URLs can be crawled.
+	 *
+	 * @param uris the claimed URLs
+	 */
+	public void claimed(List<URI> uris) {
+		if (failed) {
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(CLAIMED);
+			out.writeInt(uris.size());
+			for (URI uri : uris) {
+				writeString(out, uri.toString());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		submit(bytes.toByteArray());
+	}
+
+	/**
+	 * Logs a crawled page with the words it adds to the index. The page is
+	 * encoded right away, so this must be called before the words are added to
+	 * a shared index, which may take over their postings.
+	 *
+	 * @param uri      the URL that was crawled
+	 * @param location the location the words are indexed under
+	 * @param page     the words of the page, which are only in this location, or
+	 *                 {@code null} if the page added no words
+	 */
+	public void crawled(URI uri, String location, InvertedIndex page) {
+		if (failed) {
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(CRAWLED);
+			writeString(out, uri.toString());
+			writeString(out, location);
+			writePostings(out, location, page == null ? new InvertedIndex() : page);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		submit(bytes.toByteArray());
+	}
+
+	/**
+	 * Hands a record to the writer.
+	 *
+	 * @param record the encoded record
+	 */
+	private void submit(byte[] record) {
+		if (writer == null) {
+			throw new IllegalStateException("The crawl log must be recovered before it is written.");
+		}
+		records.add(record);
+	}
+
+	/**
+	 * Appends records to the log as they arrive until the log is closed, forcing
+	 * it to disk once per sync interval while there are new records.
+	 *
+	 * @param channel the log file
+	 */
+	private void write(FileChannel channel) {
+		try (channel; OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16)) {
+			DataOutputStream data = new DataOutputStream(out);
+			boolean dirty = false;
+			long nextSync = System.nanoTime() + syncNanos;
+			while (true) {
+				byte[] record = dirty ? records.poll(Math.max(0, nextSync - System.nanoTime()), TimeUnit.NANOSECONDS)
+						: records.take();
+				if (record == CLOSED) {
+					break;
+				}
+				if (record != null) {
+					data.writeInt(record.length);
+					data.writeInt((int) checksum(record));
+					data.write(record);
+					written.increment();
+					if (!dirty) {
+						dirty = true;
+						nextSync = System.nanoTime() + syncNanos;
+					}
+				}
+				if (dirty && System.nanoTime() - nextSync >= 0) {
+					data.flush();
+					channel.force(false);
+					syncs.increment();
+					dirty = false;
+				}
+			}
+			data.flush();
+			channel.force(false);
+			syncs.increment();
+		} catch (IOException e) {
+			failed = true;
+			records.clear();
+			log.catching(e);
+		} catch (InterruptedException e) {
+			failed = true;
+			log.catching(e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes the words of a page with their positions.
+	 *
+	 * @param out      the stream to write to
+	 * @param location the location the words are indexed under
+	 * @param page     the words of the page, which are only in this location
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void writePostings(DataOutputStream out, String location, InvertedIndex page) throws IOException {
+		Set<String> words = page.viewWords();
+		out.writeInt(words.size());
+		for (String word : words) {
+			Set<Integer> positions = page.viewPositions(word, location);
+			writeString(out, word);
+			out.writeInt(positions.size());
+			for (int position : positions) {
+				out.writeInt(position);
+			}
+		}
+	}
+
+	/**
+	 * Reads the words of a page written by
+	 * {@link #writePostings(DataOutputStream, String, InvertedIndex)}.
+	 *
+	 * @param in       the stream to read from
+	 * @param location the location to index the words under
+	 * @return a local index of the words of the page
+	 * @throws IOException if an I/O error occurs
+	 */
+	static InvertedIndex readPostings(DataInputStream in, String location) throws IOException {
+		InvertedIndex page = new InvertedIndex();
+		int words = in.readInt();
+		for (int i = 0; i < words; i++) {
+			String word = readString(in);
+			int positions = in.readInt();
+			for (int j = 0; j < positions; j++) {
+				page.addWord(word, location, in.readInt());
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Writes a string as its length and UTF-8 bytes, which unlike
+	 * {@link DataOutputStream#writeUTF(String)} has no limit on the length.
+	 *
+	 * @param out  the stream to write to
+	 * @param text the string
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void writeString(DataOutputStream out, String text) throws IOException {
+		byte[] bytes = text.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+	 *
+	 * @param in the stream to read from
+	 * @return the string
+	 * @throws IOException if an I/O error occurs
+	 */
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * Returns the checksum of a record.
+	 *
+	 * @param record the record
+	 * @return the CRC-32 of the record
+	 */
+	private static long checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return crc.getValue();
+	}
+
+	/**
+	 * Writes the records still waiting, forces the log to disk, and closes it.
+	 */
+	@Override
+	public void close() {
+		if (writer == null) {
+			return;
+		}
+		records.add(CLOSED);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			log.catching(e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d records written to %s, %d syncs%s", written.sum(), file, syncs.sum(),
+				failed ? " (failed)" : "");
+	}
+}
@@ -1,5 +1,9 @@
 package edu.usfca.cs272;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.LinkedList;
 
 import org.apache.logging.log4j.Level;
@@ -11,6 +15,21 @@ import org.apache.logging.log4j.Logger;
  * Brian Goetz. It is up to the user of this class to keep track of whether
  * there is any pending work remaining.
  *
+ * <p>
+ * Tasks are placed into one of several priority lanes (see {@link Priority}).
+ * Workers always prefer the most urgent lane, but tasks age while they wait so
+ * that a steady stream of interactive work cannot starve background work.
+ *
+ * <p>
+ * The queue may optionally be given a range of worker threads. In that case a
+ * background monitor samples the queue depth, how long the oldest task has
+ * waited, and the CPU utilization of this process, and adds or retires workers
+ * to match the current workload.
+ *
+ * <p>
+ * Queue depth, wait times, and run times are tracked by {@link WorkQueueMetrics}
+ * and exposed through JMX.
+ *
  * @see <a href=
  *      "https://web.archive.org/web/20210126172022/https://www.ibm.com/developerworks/library/j-jtp0730/index.html">
  *      Java Theory and Practice: Thread Pools and Work Queues</a>
@@ -20,10 +39,28 @@ import org.apache.logging.log4j.Logger;
  */
 public class CustomWorkQueue {
 	/** Workers that wait until work (or tasks) are available. */
-	private final Worker[] workers;
+	private final ArrayList<Worker> workers;
+
+	/** The minimum number of worker threads. */
+	private final int minimum;
+
+	/** The maximum number of worker threads. */
+	private final int maximum;
 
-	/** Queue of pending work (or tasks). */
-	private final LinkedList<Runnable> tasks;
+	/** Number of workers currently waiting for work. */
+	private int idle;
+
+	/** Number of workers that have been asked to exit. */
+	private int retiring;
+
+	/** Monitor that resizes the workers, or {@code null} if the size is fixed. */
+	private final Thread monitor;
+
+	/** Queues of pending work (or tasks), one per priority lane. */
+	private final EnumMap<Priority, LinkedList<QueuedTask>> tasks;
+
+	/** Counters and latency histograms for this queue. */
+	private final WorkQueueMetrics metrics;
 
 	/** Used to signal the workers should terminate. */
 	private volatile boolean shutdown;
@@ -31,6 +68,28 @@ public class CustomWorkQueue {
 	/** The default number of worker threads to use when not specified. */
 	public final static int DEFAULT = 5;
 
+	/**
+	 * How long (in milliseconds) a task must wait before it is treated as one lane
+	 * more urgent than the lane it was submitted to. Tasks are never promoted by
+	 * more than one lane.
+	 */
+	public final static long AGING_MILLIS = 250;
+
+	/** How often (in milliseconds) the monitor samples the queue. */
+	public final static long SAMPLE_MILLIS = 250;
+
+	/**
+	 * How long (in milliseconds) the oldest task must wait before the monitor will
+	 * add workers.
+	 */
+	public final static long GROW_WAIT_MILLIS = 50;
+
+	/**
+	 * Process CPU utilization (between 0 and 1) at which the work is considered
+	 * CPU-bound, so adding workers would not help.
+	 */
+	public final static double CPU_BUSY = 0.85;
+
 	/** Logger used for this class. */
 	private static final Logger log = LogManager.getLogger();
 
@@ -55,31 +114,75 @@ public class CustomWorkQueue {
 	 * @param threads number of worker threads; should be greater than 1
 	 */
 	public CustomWorkQueue(int threads) {
-		this.tasks = new LinkedList<Runnable>();
-		this.workers = new Worker[threads];
+		this(threads, threads);
+	}
+
+	/**
+	 * Starts a work queue that adjusts its number of threads between the minimum
+	 * and maximum based on the measured workload. If both are equal, the number of
+	 * threads is fixed and no monitor is started.
+	 *
+	 * @param minimum minimum number of worker threads; should be at least 1
+	 * @param maximum maximum number of worker threads; raised to the minimum if
+	 *                smaller
+	 */
+	public CustomWorkQueue(int minimum, int maximum) {
+		this.tasks = new EnumMap<>(Priority.class);
+		this.metrics = new WorkQueueMetrics(this::size);
+		this.workers = new ArrayList<>();
+		this.minimum = minimum;
+		this.maximum = Math.max(minimum, maximum);
+		this.idle = 0;
+		this.retiring = 0;
 		this.shutdown = false;
 		this.pending = 0;
 		this.pendingLock = new Object();
 
+		for (Priority priority : Priority.values()) {
+			tasks.put(priority, new LinkedList<QueuedTask>());
+		}
+
+		metrics.start(WorkQueueMetrics.REPORT_MILLIS);
+
 		// start the threads so they are waiting in the background
-		for (int i = 0; i < threads; i++) {
-			workers[i] = new Worker();
-			workers[i].start();
+		synchronized (tasks) {
+			for (int i = 0; i < minimum; i++) {
+				startWorker();
+			}
+		}
+
+		if (this.maximum > minimum) {
+			this.monitor = new Monitor();
+			this.monitor.start();
+		} else {
+			this.monitor = null;
 		}
 	}
 
 	/**
-	 * Adds a work (or task) request to the queue. A worker thread will process this
-	 * request when available.
+	 * Adds a work (or task) request to the queue with {@link Priority#NORMAL}
+	 * priority. A worker thread will process this request when available.
 	 *
 	 * @param task work request (in the form of a {@link Runnable} object)
 	 */
 	public void execute(Runnable task) {
+		execute(task, Priority.NORMAL);
+	}
+
+	/**
+	 * Adds a work (or task) request to the lane for the given priority. A worker
+	 * thread will process this request when available.
+	 *
+	 * @param task     work request (in the form of a {@link Runnable} object)
+	 * @param priority the lane to place the work request in
+	 */
+	public void execute(Runnable task, Priority priority) {
 		synchronized (pendingLock) {
 			pending++;
 		}
 		synchronized (tasks) {
-			tasks.addLast(task);
+			metrics.enqueued();
+			tasks.get(priority).addLast(new QueuedTask(task, priority));
 			tasks.notifyAll();
 		}
 	}
@@ -109,10 +212,6 @@ public class CustomWorkQueue {
 		try {
 			finish();
 			shutdown();
-
-			for (Worker worker : workers) {
-				worker.join();
-			}
 		} catch (Exception e) {
 			System.err.println("Warning: Work queue interrupted while joining.");
 			log.catching(Level.WARN, e);
@@ -128,17 +227,25 @@ public class CustomWorkQueue {
 		// safe to do unsynchronized due to volatile keyword
 		shutdown = true;
 
+		if (monitor != null) {
+			monitor.interrupt();
+		}
+
+		ArrayList<Worker> running;
 		synchronized (tasks) {
 			tasks.notifyAll();
+			running = new ArrayList<>(workers);
 		}
 
-		for (Thread worker : workers) {
+		for (Thread worker : running) {
 			try {
 				worker.join();
 			} catch (Exception e) {
 				Thread.currentThread().interrupt();
 			}
 		}
+
+		metrics.stop();
 	}
 
 	/**
@@ -147,7 +254,286 @@ public class CustomWorkQueue {
 	 * @return number of worker threads
 	 */
 	public int size() {
-		return workers.length;
+		synchronized (tasks) {
+			return workers.size() - retiring;
+		}
+	}
+
+	/**
+	 * Starts a new worker thread. Must be called while synchronized on
+	 * {@link #tasks}.
+	 */
+	private void startWorker() {
+		Worker worker = new Worker();
+		workers.add(worker);
+		worker.start();
+	}
+
+	/**
+	 * Returns the total number of queued tasks. Must be called while synchronized
+	 * on {@link #tasks}.
+	 *
+	 * @return number of queued tasks
+	 */
+	private int depth() {
+		int depth = 0;
+		for (LinkedList<QueuedTask> lane : tasks.values()) {
+			depth += lane.size();
+		}
+		return depth;
+	}
+
+	/**
+	 * Returns how long (in nanoseconds) the oldest queued task has waited. Must be
+	 * called while synchronized on {@link #tasks}.
+	 *
+	 * @param now the current time in nanoseconds
+	 * @return the longest wait of any queued task, or 0 if there is no work
+	 */
+	private long oldestWait(long now) {
+		long oldest = 0;
+		for (LinkedList<QueuedTask> lane : tasks.values()) {
+			if (!lane.isEmpty()) {
+				oldest = Math.max(oldest, now - lane.getFirst().enqueued);
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Returns the number of tasks taken from the lane for the given priority.
+	 *
+	 * @param priority the lane to check
+	 * @return number of tasks taken from that lane
+	 */
+	public long completed(Priority priority) {
+		return metrics.lane(priority).count();
+	}
+
+	/**
+	 * Returns the average time (in milliseconds) tasks in the given lane waited
+	 * before a worker picked them up.
+	 *
+	 * @param priority the lane to check
+	 * @return the average wait time in milliseconds, or 0 if no tasks were run
+	 */
+	public double averageWait(Priority priority) {
+		return metrics.lane(priority).mean();
+	}
+
+	/**
+	 * Returns the longest time (in milliseconds) a task in the given lane waited
+	 * before a worker picked it up.
+	 *
+	 * @param priority the lane to check
+	 * @return the maximum wait time in milliseconds
+	 */
+	public double maximumWait(Priority priority) {
+		return metrics.lane(priority).max();
+	}
+
+	/**
+	 * Returns the counters and latency histograms for this queue.
+	 *
+	 * @return the metrics for this queue
+	 */
+	public WorkQueueMetrics metrics() {
+		return metrics;
+	}
+
+	/**
+	 * Removes the next task to run. Each lane is FIFO, so only the head of each
+	 * lane is considered. The head with the most urgent effective priority wins,
+	 * where a task that waited {@link #AGING_MILLIS} is promoted by one lane. A
+	 * task is never promoted further, so background work can never outrank an
+	 * interactive task. Ties go to the head that waited longest. Must be called
+	 * while synchronized on {@link #tasks}.
+	 *
+	 * @return the next task to run, or {@code null} if there is no work
+	 */
+	private QueuedTask nextTask() {
+		long now = System.nanoTime();
+		long aging = AGING_MILLIS * 1_000_000;
+		LinkedList<QueuedTask> best = null;
+		long bestRank = Long.MAX_VALUE;
+		long bestWaited = 0;
+
+		for (Priority priority : Priority.values()) {
+			LinkedList<QueuedTask> lane = tasks.get(priority);
+			if (!lane.isEmpty()) {
+				long waited = now - lane.getFirst().enqueued;
+				long rank = priority.ordinal() - (waited >= aging ? 1 : 0);
+				if (rank < bestRank || (rank == bestRank && waited > bestWaited)) {
+					bestRank = rank;
+					bestWaited = waited;
+					best = lane;
+				}
+			}
+		}
+
+		if (best == null) {
+			return null;
+		}
+
+		QueuedTask next = best.removeFirst();
+		metrics.dequeued(next.task, next.priority, now - next.enqueued);
+		return next;
+	}
+
+	/**
+	 * Determines whether every lane is empty. Must be called while synchronized on
+	 * {@link #tasks}.
+	 *
+	 * @return {@code true} if there is no queued work
+	 */
+	private boolean isEmpty() {
+		for (LinkedList<QueuedTask> lane : tasks.values()) {
+			if (!lane.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The priority lanes supported by the work queue, from most to least urgent.
+	 */
+	public static enum Priority {
+		/** Latency sensitive work, such as a search request from a user. */
+		INTERACTIVE,
+
+		/** Regular work, such as processing a query file. */
+		NORMAL,
+
+		/** Bulk work, such as crawling or building the index. */
+		BACKGROUND
+	}
+
+	/**
+	 * Periodically samples the workload and adds or retires workers. Workers are
+	 * added when tasks are waiting with no idle worker to take them and the
+	 * process is not already CPU-bound. Workers are retired when some sat idle
+	 * with nothing queued for two samples in a row, or when the process is
+	 * CPU-bound with more workers than processors.
+	 */
+	private class Monitor extends Thread {
+		/** Used to sample the CPU utilization of this process. */
+		private final OperatingSystemMXBean system;
+
+		/** Whether workers were idle with nothing queued at the last sample. */
+		private boolean quiet;
+
+		/**
+		 * Initializes the monitor as a daemon thread.
+		 */
+		public Monitor() {
+			setName("WorkQueueMonitor");
+			setDaemon(true);
+			this.system = ManagementFactory.getOperatingSystemMXBean();
+			this.quiet = false;
+		}
+
+		/**
+		 * Returns the recent CPU utilization of this process between 0 and 1, falling
+		 * back to the system load average per processor if unavailable.
+		 *
+		 * @return the CPU utilization, or a negative value if unknown
+		 */
+		private double cpuLoad() {
+			if (system instanceof com.sun.management.OperatingSystemMXBean bean) {
+				double load = bean.getProcessCpuLoad();
+				if (load >= 0) {
+					return load;
+				}
+			}
+
+			double average = system.getSystemLoadAverage();
+			return average < 0 ? average : average / system.getAvailableProcessors();
+		}
+
+		/**
+		 * Samples the workload once and resizes the workers if needed.
+		 */
+		private void sample() {
+			double cpu = cpuLoad();
+			boolean busy = cpu >= CPU_BUSY;
+			int processors = system.getAvailableProcessors();
+
+			synchronized (tasks) {
+				if (shutdown) {
+					return;
+				}
+
+				int size = workers.size() - retiring;
+				int depth = depth();
+				long waited = oldestWait(System.nanoTime()) / 1_000_000;
+
+				if (depth > idle && waited >= GROW_WAIT_MILLIS && !busy && size < maximum) {
+					int grow = Math.min(maximum - size, Math.max(1, Math.min(depth - idle, size / 4)));
+					for (int i = 0; i < grow; i++) {
+						startWorker();
+					}
+					quiet = false;
+					log.debug("Grew work queue from {} to {} workers (depth {}, waited {} ms, cpu {})", size,
+							size + grow, depth, waited, String.format("%.2f", cpu));
+					return;
+				}
+
+				boolean shrink = false;
+				if (depth == 0 && idle > 0) {
+					shrink = quiet;
+					quiet = true;
+				} else {
+					quiet = false;
+					shrink = busy && size > processors;
+				}
+
+				if (shrink && size > minimum) {
+					retiring++;
+					tasks.notifyAll();
+					log.debug("Shrank work queue from {} to {} workers (depth {}, idle {}, cpu {})", size, size - 1,
+							depth, idle, String.format("%.2f", cpu));
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!shutdown) {
+					Thread.sleep(SAMPLE_MILLIS);
+					sample();
+				}
+			} catch (InterruptedException e) {
+				log.catching(Level.DEBUG, e);
+			}
+		}
+	}
+
+	/**
+	 * A task along with the lane it was submitted to and when it was submitted.
+	 */
+	private static class QueuedTask {
+		/** The work to run. */
+		private final Runnable task;
+
+		/** The lane this task was submitted to. */
+		private final Priority priority;
+
+		/** When this task was submitted, in nanoseconds. */
+		private final long enqueued;
+
+		/**
+		 * Initializes a queued task.
+		 *
+		 * @param task     the work to run
+		 * @param priority the lane the task was submitted to
+		 */
+		public QueuedTask(Runnable task, Priority priority) {
+			this.task = task;
+			this.priority = priority;
+			this.enqueued = System.nanoTime();
+		}
 	}
 
 	/**
@@ -169,32 +555,49 @@ public class CustomWorkQueue {
 
 		@Override
 		public void run() {
-			Runnable task = null;
+			QueuedTask task = null;
 
 			try {
 				while (true) {
 					synchronized (tasks) {
-						while (tasks.isEmpty() && !shutdown) {
-							tasks.wait();
+						while (isEmpty() && !shutdown && retiring == 0) {
+							idle++;
+							long start = System.nanoTime();
+							try {
+								tasks.wait();
+							} finally {
+								idle--;
+								metrics.idled(System.nanoTime() - start);
+							}
 						}
 
-						// exit while for one of two reasons:
-						// (a) queue has work, or (b) shutdown has been called
+						// exit while for one of three reasons: (a) queue has work,
+						// (b) shutdown has been called, or (c) a worker should retire
 
 						if (shutdown) {
 							break;
 						}
 
-						task = tasks.removeFirst();
+						if (retiring > 0) {
+							retiring--;
+							workers.remove(this);
+							break;
+						}
+
+						task = nextTask();
 					}
 
+					long start = System.nanoTime();
+					boolean failed = false;
 					try {
-						task.run();
+						task.task.run();
 					} catch (Exception e) {
 						// catch runtime exceptions to avoid leaking threads
+						failed = true;
 						System.err.printf("Error: %s encountered an exception while running.%n", this.getName());
 						log.catching(Level.ERROR, e);
 					} finally {
+						metrics.finished(task.task, System.nanoTime() - start, failed);
 						synchronized (pendingLock) {
 							pending--;
 							if (pending <= 0) {
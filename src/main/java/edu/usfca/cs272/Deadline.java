@@ -0,0 +1,93 @@
+package edu.usfca.cs272;
+
+/**
+ * A time limit for a single search, checked cooperatively while the search
+ * walks its posting lists. Reading the clock on every posting would cost more
+ * than the postings themselves, so the clock is only read once every
+ * {@value #CHECK_INTERVAL} checks. Once the deadline passes it stays expired,
+ * and every later check returns right away, so the search stops at the next
+ * check and returns whatever it has found so far.
+ *
+ * <p>
+ * A deadline belongs to one search and is not thread-safe. The shared
+ * {@link #NONE} deadline never expires and is never modified, so it is safe to
+ * use anywhere.
+ */
+public class Deadline {
+	/** Number of checks between reads of the clock. */
+	public static final int CHECK_INTERVAL = 256;
+
+	/** A deadline that never expires. */
+	public static final Deadline NONE = new Deadline(0, false);
+
+	/** The time the deadline passes, in {@link System#nanoTime()} units. */
+	private final long end;
+
+	/** Whether this deadline can expire at all. */
+	private final boolean limited;
+
+	/** Number of checks since the clock was last read. */
+	private int checks;
+
+	/** Whether the deadline has passed. */
+	private boolean expired;
+
+	/**
+	 * Initializes a deadline.
+	 *
+	 * @param end     the time the deadline passes, in {@link System#nanoTime()}
+	 *                units
+	 * @param limited whether the deadline can expire at all
+	 */
+	private Deadline(long end, boolean limited) {
+		this.end = end;
+		this.limited = limited;
+		this.checks = 0;
+		this.expired = false;
+	}
+
+	/**
+	 * Returns a deadline that passes a number of milliseconds from now.
+	 *
+	 * @param millis the number of milliseconds, or 0 or less for no deadline
+	 * @return the deadline
+	 */
+	public static Deadline after(long millis) {
+		return millis > 0 ? new Deadline(System.nanoTime() + millis * 1_000_000, true) : NONE;
+	}
+
+	/**
+	 * Checks the deadline while doing one unit of work, such as visiting one
+	 * posting.
+	 *
+	 * @return true if the deadline has passed and the work should stop
+	 */
+	public boolean check() {
+		if (!limited || expired) {
+			return expired;
+		}
+		if (++checks >= CHECK_INTERVAL) {
+			checks = 0;
+			expired = System.nanoTime() - end >= 0;
+		}
+		return expired;
+	}
+
+	/**
+	 * Determines whether the deadline passed at any check so far, which means the
+	 * search stopped early and its results are incomplete.
+	 *
+	 * @return true if the deadline has passed
+	 */
+	public boolean isExpired() {
+		return expired;
+	}
+
+	@Override
+	public String toString() {
+		if (!limited) {
+			return "no deadline";
+		}
+		return expired ? "expired" : String.format("%.1f ms left", (end - System.nanoTime()) / 1e6);
+	}
+}
@@ -2,6 +2,9 @@ package edu.usfca.cs272;
 
 import java.nio.file.Path;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 /**
  * Class responsible for running this project based on the provided command-line
  * arguments. See the README for details.
@@ -12,6 +15,9 @@ import java.nio.file.Path;
  */
 
 public class Driver {
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
 	/**
 	 * Main method
 	 *
@@ -25,10 +31,19 @@ public class Driver {
 		QueryFileProcessorInterface processor;
 		CustomWorkQueue workQueue = null;
 		WebCrawler crawler = null;
+		AsyncHtmlFetcher async = null;
 		SearchEngine engine = null;
 		boolean threaded = false;
+		SearchOptions options = SearchOptions.of(parser.hasFlag("-partial"), parser.getString("-operator"));
+		if (parser.hasFlag("-fuzzy")) {
+			options = options.withFuzzy(parser.getInteger("-fuzzy", 1));
+		}
+		if (parser.hasFlag("-timeout")) {
+			options = options.withTimeout(parser.getInteger("-timeout", 0));
+		}
 
-		if (parser.hasFlag("-threads") || parser.hasFlag("-html") || parser.hasFlag("-server")) {
+		if (parser.hasFlag("-threads") || parser.hasFlag("-html") || parser.hasFlag("-server")
+				|| parser.hasFlag("-pipeline")) {
 			threaded = true;
 			int numThreads = 5;
 			try {
@@ -41,17 +56,69 @@ public class Driver {
 				numThreads = 5;
 			}
 
-			workQueue = new CustomWorkQueue(numThreads);
+			int maxThreads = parser.getInteger("-maxthreads", numThreads);
+			if (maxThreads < numThreads) {
+				maxThreads = numThreads;
+			}
+
+			workQueue = new CustomWorkQueue(numThreads, maxThreads);
 			ThreadSafeInvertedIndex threadSafe = new ThreadSafeInvertedIndex();
-			builder = new ThreadedFileBuilder(threadSafe, workQueue);
-			processor = new ThreadedQueryFileProcessor(threadSafe, workQueue, parser.hasFlag("-partial"));
-			crawler = new WebCrawler(threadSafe, workQueue);
-			engine = new SearchEngine(threadSafe);
+			QueryResultCache cache = new QueryResultCache(threadSafe,
+					parser.getInteger("-cache", QueryResultCache.DEFAULT_CAPACITY), QueryResultCache.DEFAULT_MAX_RESULTS);
+			if (parser.hasFlag("-pipeline")) {
+				// stage sizes given as readers,analyzers,indexers
+				int[] stages = { 1, Math.max(1, numThreads - 2), 1 };
+				try {
+					String[] sizes = parser.getString("-pipeline").split(",");
+					for (int i = 0; i < sizes.length && i < stages.length; i++) {
+						stages[i] = Math.max(1, Integer.parseInt(sizes[i].strip()));
+					}
+				} catch (Exception e) {
+					System.out.println("Invalid pipeline stage sizes. Using default values.");
+				}
+				builder = new PipelinedFileBuilder(threadSafe, stages[0], stages[1], stages[2]);
+			} else {
+				builder = new ThreadedFileBuilder(threadSafe, workQueue, "size".equals(parser.getString("-schedule")));
+			}
+			processor = new ThreadedQueryFileProcessor(cache, workQueue, options);
+			// a bloom filter is a compact but approximate seen set sized for the crawl
+			FingerprintSet seen = parser.hasFlag("-bloom")
+					? new FingerprintSet(new BloomFilter(Math.max(1, parser.getInteger("-crawl", 1)), 0.01))
+					: new FingerprintSet();
+			HostScheduler hosts = new HostScheduler(new UrlFrontier(),
+					parser.getInteger("-hostthreads", workQueue.size()), parser.getInteger("-delay", 0));
+			// async fetches keep many pages in flight without holding a worker each
+			async = parser.hasFlag("-async") && !parser.hasFlag("-offline") ? new AsyncHtmlFetcher() : null;
+			int maxInFlight = async != null ? parser.getInteger("-async", 256) : 2 * workQueue.size();
+			// pages over the limit are given up on; without the flag the default limit applies
+			crawler = new WebCrawler(threadSafe, workQueue, seen, hosts, maxInFlight, async,
+					parser.getInteger("-maxpage", 0));
+			// a recrawl revalidates cached pages, and an offline crawl replays them without the network
+			if (parser.hasFlag("-fetchcache") || parser.hasFlag("-offline")) {
+				try {
+					crawler.setFetchCache(new FetchCache(parser.getPath("-fetchcache", Path.of("fetchcache")),
+							parser.hasFlag("-offline")));
+				} catch (Exception e) {
+					System.out.println("Error opening the fetch cache " + parser.getString("-fetchcache"));
+				}
+			}
+			engine = new SearchEngine(threadSafe, workQueue, cache);
 			indexer = threadSafe;
 		} else {
 			indexer = new InvertedIndex();
 			builder = new FileBuilder(indexer);
-			processor = new QueryFileProcessor(indexer, parser.hasFlag("-partial"));
+			QueryResultCache cache = new QueryResultCache(indexer,
+					parser.getInteger("-cache", QueryResultCache.DEFAULT_CAPACITY), QueryResultCache.DEFAULT_MAX_RESULTS);
+			processor = new QueryFileProcessor(cache, options);
+		}
+
+		if (parser.hasFlag("-wildcard")) {
+			indexer.enableWildcards();
+		}
+
+		// fuzzy queries, including those sent to the server, match the words as written
+		if (options.isFuzzy() || parser.hasFlag("-server")) {
+			indexer.enableSurfaces();
 		}
 
 		if (parser.hasFlag("-text")) {
@@ -75,17 +142,49 @@ public class Driver {
 				System.out.println("Invalid total. Using default value.");
 				total = 1;
 			}
+			// a logged crawl can be resumed from its checkpoint directory after it stops
+			CrawlJournal journal = null;
 			try {
-				crawler.startCrawl(seed, total);
+				if (parser.hasFlag("-checkpoint") || parser.hasFlag("-resume")) {
+					journal = new CrawlJournal(parser.getPath("-checkpoint", Path.of("checkpoint")),
+							parser.hasFlag("-resume"));
+				}
+				crawler.startCrawl(seed, total, journal);
 			} catch (Exception e) {
 				System.out.println("Error crawling the html content " + seed);
+			} finally {
+				if (journal != null) {
+					journal.close();
+				}
 			}
 		}
 
+		if (parser.hasFlag("-wildcard")) {
+			log.info(indexer.wildcardSummary());
+		}
+
+		// streamed results are written while the queries are processed
+		boolean stream = parser.hasFlag("-stream") && parser.hasFlag("-results") && !parser.hasFlag("-html");
+
 		if (parser.hasFlag("-query")) {
 			Path queryPath = parser.getPath("-query");
 			try {
-				processor.processQueries(queryPath);
+				if (stream) {
+					processor.processQueries(queryPath, parser.getPath("-results", Path.of("results.json")));
+				} else {
+					processor.processQueries(queryPath);
+				}
+			} catch (Exception e) {
+				System.out.println("Error reading the query file " + queryPath);
+			}
+		}
+
+		if (parser.hasFlag("-explain") && parser.hasFlag("-query")) {
+			Path queryPath = parser.getPath("-query");
+			try {
+				for (QueryParser.Query query : processor.parseQueries(queryPath).values()) {
+					System.out.println(indexer.plan(query, options));
+				}
 			} catch (Exception e) {
 				System.out.println("Error reading the query file " + queryPath);
 			}
@@ -109,6 +208,10 @@ public class Driver {
 			workQueue.shutdown();
 		}
 
+		if (async != null) {
+			async.close();
+		}
+
 		if (parser.hasFlag("-counts")) {
 			Path countsPath = parser.getPath("-counts", Path.of("counts.json"));
 			try {
@@ -136,7 +239,7 @@ public class Driver {
 			}
 		}
 
-		if (parser.hasFlag("-results")) {
+		if (parser.hasFlag("-results") && !(stream && parser.hasFlag("-query"))) {
 			Path resultsPath = parser.getPath("-results", Path.of("results.json"));
 			try {
 				processor.writeResults(resultsPath);
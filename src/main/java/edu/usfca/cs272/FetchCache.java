@@ -0,0 +1,549 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A cache of fetched responses on disk, so a recrawl only downloads the pages
+ * that changed. The decoded body of each HTML page is kept with its
+ * {@code ETag} and {@code Last-Modified} validators, which are sent back in a
+ * conditional request the next time the page is fetched. If the server
+ * answers {@code 304 Not Modified}, the cached body is used instead, along with
+ * the tokens extracted from it the last time, if any, so the page is not even
+ * parsed again. Redirects and responses that are not HTML are remembered as
+ * well.
+ *
+ * <p>
+ * In offline mode, nothing is sent over the network, and every fetch is
+ * answered from the cache the same way it was answered when it was stored.
+ * This makes a recorded crawl replayable, for example to benchmark it without
+ * depending on the network.
+ *
+ * <p>
+ * Each URL is stored in its own files, named by its fingerprint, and every file
+ * is written under a temporary name and then moved into place, so readers never
+ * see a partly written entry. Different URLs may be used by different threads
+ * at once, but each URL should only be fetched by one thread at a time.
+ *
+ * @see HtmlFetcher#fetch(URI, int, ConnectionPool, long, FetchCache,
+ *      HtmlFetcher.BodyHandler, Codec)
+ */
+public class FetchCache {
+	/** The version of the entry format. */
+	private static final int VERSION = 1;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The directory of the cache. */
+	private final Path directory;
+
+	/** Whether every fetch is answered from the cache. */
+	private final boolean offline;
+
+	/** Number of bodies stored. */
+	private final LongAdder stored;
+
+	/** Number of cached bodies confirmed by the server to be unchanged. */
+	private final LongAdder revalidated;
+
+	/** Number of fetches answered from the cache without the network. */
+	private final LongAdder replayed;
+
+	/** Number of times cached tokens were used instead of the body. */
+	private final LongAdder tokensReused;
+
+	/** What a response was. */
+	public enum Kind {
+		/** An HTML page, whose body is cached. */
+		HTML,
+		/** A redirect to another location. */
+		REDIRECT,
+		/** Anything else, which has no HTML to return. */
+		OTHER
+	}
+
+	/**
+	 * A cached response, without its body.
+	 *
+	 * @param kind         what the response was
+	 * @param etag         the {@code ETag} of an HTML page, or {@code null}
+	 * @param lastModified the {@code Last-Modified} of an HTML page, or
+	 *                     {@code null}
+	 * @param location     the location of a redirect, or {@code null}
+	 * @param tokens       the encoded tokens of an HTML page, or {@code null} if
+	 *                     there are none
+	 */
+	public record Entry(Kind kind, String etag, String lastModified, String location, byte[] tokens) {
+		/**
+		 * Returns the header fields that ask the server to only send the page if
+		 * it changed since it was cached.
+		 *
+		 * @return the conditional header fields, which may be empty
+		 */
+		public List<String> validators() {
+			ArrayList<String> fields = new ArrayList<>();
+			if (kind == Kind.HTML && etag != null) {
+				fields.add("If-None-Match: " + etag);
+			}
+			if (kind == Kind.HTML && lastModified != null) {
+				fields.add("If-Modified-Since: " + lastModified);
+			}
+			return fields;
+		}
+	}
+
+	/**
+	 * Encodes and decodes the tokens extracted from a page, so they can be
+	 * cached with its body.
+	 *
+	 * @param <T> the type of the tokens
+	 */
+	public static interface Codec<T> {
+		/**
+		 * Writes tokens.
+		 *
+		 * @param tokens the tokens
+		 * @param out    the stream to write to
+		 * @throws IOException if an I/O error occurs
+		 */
+		void write(T tokens, DataOutputStream out) throws IOException;
+
+		/**
+		 * Reads tokens written by {@link #write(Object, DataOutputStream)}.
+		 *
+		 * @param in the stream to read from
+		 * @return the tokens
+		 * @throws IOException if an I/O error occurs
+		 */
+		T read(DataInputStream in) throws IOException;
+	}
+
+	/**
+	 * Initializes a cache.
+	 *
+	 * @param directory the directory of the cache
+	 * @param offline   whether every fetch is answered from the cache
+	 * @throws IOException if unable to create the directory
+	 */
+	public FetchCache(Path directory, boolean offline) throws IOException {
+		Files.createDirectories(directory);
+		this.directory = directory;
+		this.offline = offline;
+		this.stored = new LongAdder();
+		this.revalidated = new LongAdder();
+		this.replayed = new LongAdder();
+		this.tokensReused = new LongAdder();
+	}
+
+	/**
+	 * Determines whether every fetch is answered from the cache.
+	 *
+	 * @return true if the network is not used
+	 */
+	public boolean isOffline() {
+		return offline;
+	}
+
+	/**
+	 * Returns the path of a file of the cache for a URL, in a subdirectory by the
+	 * first byte of its fingerprint so no directory gets too large.
+	 *
+	 * @param uri       the URL
+	 * @param extension the extension of the file
+	 * @return the path of the file
+	 */
+	private Path pathOf(URI uri, String extension) {
+		String key = String.format("%016x", FingerprintSet.fingerprint(uri.toString()));
+		return directory.resolve(key.substring(0, 2)).resolve(key + extension);
+	}
+
+	/**
+	 * Returns the cached response for a URL.
+	 *
+	 * @param uri the URL
+	 * @return the cached response, or {@code null} if there is none
+	 */
+	public Entry get(URI uri) {
+		Path meta = pathOf(uri, ".meta");
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(meta)))) {
+			if (in.readInt() != VERSION || !CrawlJournal.readString(in).equals(uri.toString())) {
+				return null;
+			}
+			Kind kind = Kind.values()[in.readByte()];
+			String etag = readOptional(in);
+			String lastModified = readOptional(in);
+			String location = readOptional(in);
+			byte[] tokens = null;
+			int length = in.readInt();
+			if (length >= 0) {
+				tokens = new byte[length];
+				in.readFully(tokens);
+			}
+			return new Entry(kind, etag, lastModified, location, tokens);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | RuntimeException e) {
+			log.catching(Level.DEBUG, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Opens the cached body of an HTML page.
+	 *
+	 * @param uri the URL of the page
+	 * @return the decoded body
+	 * @throws IOException if the body is not cached
+	 */
+	public InputStream body(URI uri) throws IOException {
+		return new BufferedInputStream(Files.newInputStream(pathOf(uri, ".html")), 1 << 16);
+	}
+
+	/**
+	 * Remembers that a URL redirects to another location.
+	 *
+	 * @param uri      the URL
+	 * @param location the location it redirects to
+	 */
+	public void putRedirect(URI uri, String location) {
+		putQuietly(uri, new Entry(Kind.REDIRECT, null, null, location, null));
+	}
+
+	/**
+	 * Remembers that a URL has no HTML to return.
+	 *
+	 * @param uri the URL
+	 */
+	public void putOther(URI uri) {
+		putQuietly(uri, new Entry(Kind.OTHER, null, null, null, null));
+	}
+
+	/**
+	 * Adds tokens to the cached body of an HTML page.
+	 *
+	 * @param <T>    the type of the tokens
+	 * @param uri    the URL of the page
+	 * @param entry  the cached response of the page
+	 * @param codec  the encoding of the tokens
+	 * @param tokens the tokens extracted from the cached body
+	 */
+	public <T> void putTokens(URI uri, Entry entry, Codec<T> codec, T tokens) {
+		byte[] encoded = encode(codec, tokens);
+		if (encoded != null) {
+			putQuietly(uri, new Entry(entry.kind(), entry.etag(), entry.lastModified(), entry.location(), encoded));
+		}
+	}
+
+	/**
+	 * Reads the tokens of a cached page.
+	 *
+	 * @param <T>   the type of the tokens
+	 * @param entry the cached response of the page
+	 * @param codec the encoding of the tokens
+	 * @return the tokens, or {@code null} if there are none or they cannot be
+	 *         read
+	 */
+	public <T> T tokens(Entry entry, Codec<T> codec) {
+		if (entry.tokens() == null) {
+			return null;
+		}
+		try {
+			T tokens = codec.read(new DataInputStream(new ByteArrayInputStream(entry.tokens())));
+			tokensReused.increment();
+			return tokens;
+		} catch (IOException | RuntimeException e) {
+			log.catching(Level.DEBUG, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Starts storing the body of an HTML page as it is read. The body is only
+	 * stored if it is read to the end and then committed.
+	 *
+	 * @param uri     the URL of the page
+	 * @param headers the headers of the response
+	 * @param body    the decoded body
+	 * @return the body, which is copied to the cache as it is read
+	 * @throws IOException if unable to create the temporary file
+	 */
+	public Download download(URI uri, Map<String, List<String>> headers, InputStream body) throws IOException {
+		return new Download(uri, headers, body);
+	}
+
+	/**
+	 * Counts a cached body confirmed by the server to be unchanged.
+	 */
+	public void revalidated() {
+		revalidated.increment();
+	}
+
+	/**
+	 * Counts a fetch answered from the cache without the network.
+	 */
+	public void replayed() {
+		replayed.increment();
+	}
+
+	/**
+	 * Encodes tokens.
+	 *
+	 * @param <T>    the type of the tokens
+	 * @param codec  the encoding of the tokens, or {@code null}
+	 * @param tokens the tokens, or {@code null}
+	 * @return the encoded tokens, or {@code null} if there are none
+	 */
+	private static <T> byte[] encode(Codec<T> codec, T tokens) {
+		if (codec == null || tokens == null) {
+			return null;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			codec.write(tokens, out);
+		} catch (IOException e) {
+			log.catching(Level.DEBUG, e);
+			return null;
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Stores a cached response, logging any error instead of throwing it, since
+	 * the fetch itself succeeded.
+	 *
+	 * @param uri   the URL
+	 * @param entry the response
+	 */
+	private void putQuietly(URI uri, Entry entry) {
+		try {
+			put(uri, entry);
+		} catch (IOException e) {
+			log.catching(Level.DEBUG, e);
+		}
+	}
+
+	/**
+	 * Stores a cached response.
+	 *
+	 * @param uri   the URL
+	 * @param entry the response
+	 * @throws IOException if unable to write the entry
+	 */
+	private void put(URI uri, Entry entry) throws IOException {
+		Path meta = pathOf(uri, ".meta");
+		Files.createDirectories(meta.getParent());
+		Path temp = Files.createTempFile(meta.getParent(), "entry", ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(VERSION);
+				CrawlJournal.writeString(out, uri.toString());
+				out.writeByte(entry.kind().ordinal());
+				writeOptional(out, entry.etag());
+				writeOptional(out, entry.lastModified());
+				writeOptional(out, entry.location());
+				out.writeInt(entry.tokens() == null ? -1 : entry.tokens().length);
+				if (entry.tokens() != null) {
+					out.write(entry.tokens());
+				}
+			}
+			move(temp, meta);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Moves a file into place, atomically if possible.
+	 *
+	 * @param source the file to move
+	 * @param target where to move it
+	 * @throws IOException if unable to move the file
+	 */
+	private static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Writes a string that may be {@code null}.
+	 *
+	 * @param out  the stream to write to
+	 * @param text the string, or {@code null}
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void writeOptional(DataOutputStream out, String text) throws IOException {
+		out.writeBoolean(text != null);
+		if (text != null) {
+			CrawlJournal.writeString(out, text);
+		}
+	}
+
+	/**
+	 * Reads a string written by {@link #writeOptional(DataOutputStream, String)}.
+	 *
+	 * @param in the stream to read from
+	 * @return the string, or {@code null}
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static String readOptional(DataInputStream in) throws IOException {
+		return in.readBoolean() ? CrawlJournal.readString(in) : null;
+	}
+
+	/**
+	 * Returns the first value of a header.
+	 *
+	 * @param headers the headers of a response
+	 * @param name    the lowercase name of the header
+	 * @return the first value, or {@code null} if there is none
+	 */
+	private static String first(Map<String, List<String>> headers, String name) {
+		List<String> values = headers.get(name);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d stored, %d revalidated, %d replayed offline, %d token reuses%s", stored.sum(),
+				revalidated.sum(), replayed.sum(), tokensReused.sum(), offline ? " (offline)" : "");
+	}
+
+	/**
+	 * The body of an HTML page being downloaded, which is copied to a temporary
+	 * file as it is read. Once it was read to the end, committing it moves the
+	 * file into the cache with the validators of the response. Closing it
+	 * without committing throws the copy away.
+	 */
+	public class Download extends InputStream {
+		/** The URL of the page. */
+		private final URI uri;
+
+		/** The headers of the response. */
+		private final Map<String, List<String>> headers;
+
+		/** The decoded body. */
+		private final InputStream in;
+
+		/** The temporary copy of the body. */
+		private final Path temp;
+
+		/** The stream writing the temporary copy. */
+		private final OutputStream copy;
+
+		/** Whether the body was read to the end. */
+		private boolean ended;
+
+		/** Whether the copy was committed or thrown away. */
+		private boolean done;
+
+		/**
+		 * Starts a download.
+		 *
+		 * @param uri     the URL of the page
+		 * @param headers the headers of the response
+		 * @param in      the decoded body
+		 * @throws IOException if unable to create the temporary file
+		 */
+		private Download(URI uri, Map<String, List<String>> headers, InputStream in) throws IOException {
+			Path parent = pathOf(uri, ".html").getParent();
+			Files.createDirectories(parent);
+			this.uri = uri;
+			this.headers = headers;
+			this.in = in;
+			this.temp = Files.createTempFile(parent, "body", ".tmp");
+			this.copy = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16);
+			this.ended = false;
+			this.done = false;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b < 0) {
+				ended = true;
+			} else {
+				copy.write(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = in.read(buffer, offset, length);
+			if (read < 0) {
+				ended = true;
+			} else {
+				copy.write(buffer, offset, read);
+			}
+			return read;
+		}
+
+		/**
+		 * Moves the copy of the body into the cache, if it was read to the end.
+		 *
+		 * @param <T>    the type of the tokens
+		 * @param codec  the encoding of the tokens, or {@code null}
+		 * @param tokens the tokens extracted from the body, or {@code null}
+		 * @return true if the body was stored
+		 * @throws IOException if unable to store the body
+		 */
+		public <T> boolean commit(Codec<T> codec, T tokens) throws IOException {
+			if (!ended || done) {
+				return false;
+			}
+			done = true;
+			copy.close();
+
+			Path meta = pathOf(uri, ".meta");
+			// without its entry, a body is never used, so nothing can pair it with old validators
+			Files.deleteIfExists(meta);
+			move(temp, pathOf(uri, ".html"));
+			put(uri, new Entry(Kind.HTML, first(headers, "etag"), first(headers, "last-modified"), null,
+					encode(codec, tokens)));
+			stored.increment();
+			return true;
+		}
+
+		/**
+		 * Closes the body, and throws away the copy unless it was committed.
+		 *
+		 * @throws IOException if an I/O error occurs
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				in.close();
+			} finally {
+				if (!done) {
+					done = true;
+					copy.close();
+					Files.deleteIfExists(temp);
+				}
+			}
+		}
+	}
+}
@@ -89,6 +89,20 @@ public class FileBuilder {
 	 * @throws IOException If an I/O error occurs
 	 */
 	public static void processFile(Path location, InvertedIndex indexer) throws IOException {
+		processFile(location, indexer, indexer.hasSurfaces());
+	}
+
+	/**
+	 * Processes the specified file to generate word counts and an inverted index,
+	 * optionally with the surface words for wildcard search
+	 *
+	 * @param location The path of the file to process
+	 * @param indexer  The index to help with processing
+	 * @param surfaces Whether to add the surface words along with their stems
+	 * @throws IOException If an I/O error occurs
+	 * @see InvertedIndex#addSurface(String, String)
+	 */
+	public static void processFile(Path location, InvertedIndex indexer, boolean surfaces) throws IOException {
 		SnowballStemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
 		int position = 0;
 		String locationString = location.toString();
@@ -100,6 +114,9 @@ public class FileBuilder {
 					String stemmedWord = stemmer.stem(word).toString();
 					position += 1;
 					indexer.addWord(stemmedWord, locationString, position);
+					if (surfaces) {
+						indexer.addSurface(word, stemmedWord);
+					}
 				}
 			}
 		}
@@ -0,0 +1,267 @@
+package edu.usfca.cs272;
+
+import java.net.URI;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe set of 64-bit URL fingerprints, used by the web crawler to
+ * remember which URLs it has already seen. Storing an 8 byte fingerprint
+ * instead of a whole {@link URI} keeps the set small enough for crawls of
+ * millions of pages, and the chance of two distinct URLs sharing a fingerprint
+ * is negligible at that size.
+ *
+ * <p>
+ * The fingerprints are kept in open addressing tables of primitive longs,
+ * split into segments by the high bits of each fingerprint so that threads
+ * adding different URLs rarely wait on the same lock.
+ *
+ * <p>
+ * For even larger crawls, a {@link BloomFilter} can stand in for the exact
+ * tables at about a tenth of the memory, at the cost of skipping the few URLs
+ * it wrongly believes were already seen.
+ */
+public class FingerprintSet {
+	/** Number of high bits of a fingerprint that pick its segment. */
+	private static final int SEGMENT_BITS = 6;
+
+	/** The initial number of slots in each segment. */
+	private static final int INITIAL_SLOTS = 64;
+
+	/** The fraction of slots that may be used before a segment grows. */
+	private static final double LOAD_FACTOR = 0.6;
+
+	/** The exact segments, or {@code null} if using a Bloom filter. */
+	private final Segment[] segments;
+
+	/** The Bloom filter, or {@code null} if using exact segments. */
+	private final BloomFilter bloom;
+
+	/** Number of fingerprints added. */
+	private final LongAdder size;
+
+	/**
+	 * Initializes an empty exact set.
+	 */
+	public FingerprintSet() {
+		this.segments = new Segment[1 << SEGMENT_BITS];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment();
+		}
+		this.bloom = null;
+		this.size = new LongAdder();
+	}
+
+	/**
+	 * Initializes an empty approximate set backed by a Bloom filter.
+	 *
+	 * @param bloom the Bloom filter to use instead of the exact tables
+	 */
+	public FingerprintSet(BloomFilter bloom) {
+		this.segments = null;
+		this.bloom = bloom;
+		this.size = new LongAdder();
+	}
+
+	/**
+	 * Returns the 64-bit fingerprint of some text, using FNV-1a followed by a
+	 * final mix so that every bit depends on every character.
+	 *
+	 * @param text the text to fingerprint
+	 * @return the fingerprint
+	 */
+	public static long fingerprint(String text) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Adds the fingerprint of a URI.
+	 *
+	 * @param uri the URI to add
+	 * @return true if the URI was not already in the set
+	 */
+	public boolean add(URI uri) {
+		return add(fingerprint(uri.toString()));
+	}
+
+	/**
+	 * Adds a fingerprint.
+	 *
+	 * @param fingerprint the fingerprint to add
+	 * @return true if the fingerprint was not already in the set
+	 */
+	public boolean add(long fingerprint) {
+		boolean added = bloom != null ? bloom.add(fingerprint)
+				: segments[(int) (fingerprint >>> (64 - SEGMENT_BITS))].add(fingerprint);
+		if (added) {
+			size.increment();
+		}
+		return added;
+	}
+
+	/**
+	 * Determines whether the fingerprint of a URI is in the set.
+	 *
+	 * @param uri the URI to check
+	 * @return true if the URI was added
+	 */
+	public boolean contains(URI uri) {
+		long fingerprint = fingerprint(uri.toString());
+		return bloom != null ? bloom.mightContain(fingerprint)
+				: segments[(int) (fingerprint >>> (64 - SEGMENT_BITS))].contains(fingerprint);
+	}
+
+	/**
+	 * Returns the number of fingerprints added.
+	 *
+	 * @return the size of the set
+	 */
+	public long size() {
+		return size.sum();
+	}
+
+	/**
+	 * Returns the memory used by the fingerprints in bytes.
+	 *
+	 * @return the number of bytes used
+	 */
+	public long memoryBytes() {
+		if (bloom != null) {
+			return bloom.memoryBytes();
+		}
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += segment.memoryBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the memory used per URL by the exact set in bytes. Each fingerprint
+	 * takes an 8 byte slot, and a segment holds between half of and all of
+	 * {@link #LOAD_FACTOR} of its slots, so the cost is between
+	 * {@code 8 / LOAD_FACTOR} and twice that. Until every segment has outgrown its
+	 * initial slots, the memory used is mostly the preallocated segments, so the
+	 * middle of that range is returned instead of a measured value.
+	 *
+	 * @return the number of bytes used per URL, or 0 if using a Bloom filter
+	 */
+	public double bytesPerUrl() {
+		if (bloom != null) {
+			return 0;
+		}
+		long urls = size();
+		if (urls < (long) segments.length * INITIAL_SLOTS) {
+			return 1.5 * Long.BYTES / LOAD_FACTOR;
+		}
+		return (double) memoryBytes() / urls;
+	}
+
+	@Override
+	public String toString() {
+		double mib = memoryBytes() / 1024.0 / 1024.0;
+		if (bloom != null) {
+			// the filter is sized for the whole crawl up front, so its memory does not grow
+			return String.format("%d urls in %.2f MiB (bloom filter of %s)", size(), mib, bloom);
+		}
+		return String.format("%d urls in %.2f MiB (exact, %.1f bytes per url)", size(), mib, bytesPerUrl());
+	}
+
+	/**
+	 * One segment of the exact set: an open addressing table with linear probing.
+	 * Zero marks an empty slot, so a zero fingerprint is stored as one instead.
+	 */
+	private static class Segment {
+		/** The slots of the table. */
+		private long[] slots;
+
+		/** Number of used slots. */
+		private int used;
+
+		/**
+		 * Initializes an empty segment.
+		 */
+		private Segment() {
+			this.slots = new long[INITIAL_SLOTS];
+			this.used = 0;
+		}
+
+		/**
+		 * Adds a fingerprint.
+		 *
+		 * @param fingerprint the fingerprint to add
+		 * @return true if the fingerprint was not already in the segment
+		 */
+		private synchronized boolean add(long fingerprint) {
+			long key = fingerprint == 0 ? 1 : fingerprint;
+			int mask = slots.length - 1;
+			int slot = (int) key & mask;
+			while (slots[slot] != 0) {
+				if (slots[slot] == key) {
+					return false;
+				}
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = key;
+			if (++used > slots.length * LOAD_FACTOR) {
+				grow();
+			}
+			return true;
+		}
+
+		/**
+		 * Determines whether a fingerprint is in the segment.
+		 *
+		 * @param fingerprint the fingerprint to check
+		 * @return true if the fingerprint was added
+		 */
+		private synchronized boolean contains(long fingerprint) {
+			long key = fingerprint == 0 ? 1 : fingerprint;
+			int mask = slots.length - 1;
+			int slot = (int) key & mask;
+			while (slots[slot] != 0) {
+				if (slots[slot] == key) {
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
+
+		/**
+		 * Doubles the number of slots, moving every fingerprint to its new slot.
+		 */
+		private void grow() {
+			long[] old = slots;
+			slots = new long[old.length * 2];
+			int mask = slots.length - 1;
+			for (long key : old) {
+				if (key != 0) {
+					int slot = (int) key & mask;
+					while (slots[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					slots[slot] = key;
+				}
+			}
+		}
+
+		/**
+		 * Returns the memory used by the segment in bytes.
+		 *
+		 * @return the number of bytes used
+		 */
+		private synchronized long memoryBytes() {
+			return 16 + 8L * slots.length;
+		}
+	}
+}
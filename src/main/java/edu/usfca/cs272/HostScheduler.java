@@ -0,0 +1,273 @@
+package edu.usfca.cs272;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules pending URLs so that crawling is polite to each host while still
+ * crawling many hosts in parallel. Every host has its own queue of pending
+ * URLs, a limit on how many of its pages are fetched at once, and a minimum
+ * delay between the start of each fetch. The scheduler rotates through the
+ * hosts that are ready, so one page full of links to the same host does not
+ * keep every other host waiting.
+ *
+ * <p>
+ * Only a bounded number of pending URLs are kept in the host queues. The rest
+ * wait in a {@link UrlFrontier}, which spills to disk, and are moved into the
+ * host queues as they drain.
+ *
+ * <p>
+ * This class is not thread-safe. The crawler synchronizes on it, and uses it as
+ * the monitor that fetches wait on.
+ */
+public class HostScheduler implements Closeable {
+	/** The default number of pending URLs kept in the host queues. */
+	public static final int DEFAULT_BUFFERED = 10_000;
+
+	/** The pending URLs that do not fit in the host queues. */
+	private final UrlFrontier overflow;
+
+	/** The most URLs kept in the host queues. */
+	private final int buffered;
+
+	/** The most fetches from one host at once. */
+	private final int perHost;
+
+	/** The minimum time between the start of two fetches from one host. */
+	private final long delayNanos;
+
+	/** Every host with pending or running fetches, by name. */
+	private final HashMap<String, Host> hosts;
+
+	/** Hosts that may start a fetch now, in rotation order. */
+	private final ArrayDeque<Host> ready;
+
+	/** Hosts that have pending URLs but must wait out their delay. */
+	private final PriorityQueue<Host> delayed;
+
+	/** Number of URLs in the host queues. */
+	private int queued;
+
+	/**
+	 * Initializes a scheduler.
+	 *
+	 * @param overflow    the frontier for pending URLs that do not fit in the
+	 *                    host queues
+	 * @param perHost     the most fetches from one host at once
+	 * @param delayMillis the minimum number of milliseconds between the start of
+	 *                    two fetches from one host
+	 */
+	public HostScheduler(UrlFrontier overflow, int perHost, long delayMillis) {
+		this(overflow, perHost, delayMillis, DEFAULT_BUFFERED);
+	}
+
+	/**
+	 * Initializes a scheduler.
+	 *
+	 * @param overflow    the frontier for pending URLs that do not fit in the
+	 *                    host queues
+	 * @param perHost     the most fetches from one host at once
+	 * @param delayMillis the minimum number of milliseconds between the start of
+	 *                    two fetches from one host
+	 * @param buffered    the most URLs kept in the host queues
+	 */
+	public HostScheduler(UrlFrontier overflow, int perHost, long delayMillis, int buffered) {
+		this.overflow = overflow;
+		this.perHost = Math.max(1, perHost);
+		this.delayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		this.buffered = Math.max(1, buffered);
+		this.hosts = new HashMap<>();
+		this.ready = new ArrayDeque<>();
+		this.delayed = new PriorityQueue<>(Comparator.comparingLong(host -> host.nextStart));
+		this.queued = 0;
+	}
+
+	/**
+	 * Returns the name used to group the URLs of a host: the lowercase host name,
+	 * with the port if one is given.
+	 *
+	 * @param uri the URL
+	 * @return the name of its host
+	 */
+	public static String hostOf(URI uri) {
+		String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase();
+		return uri.getPort() < 0 ? host : host + ":" + uri.getPort();
+	}
+
+	/**
+	 * Adds a pending URL.
+	 *
+	 * @param uri the URL to add
+	 */
+	public void add(URI uri) {
+		if (queued < buffered && overflow.isEmpty()) {
+			enqueue(uri, System.nanoTime());
+		} else {
+			overflow.add(uri);
+		}
+	}
+
+	/**
+	 * Adds a URL to the queue of its host.
+	 *
+	 * @param uri the URL to add
+	 * @param now the current time
+	 */
+	private void enqueue(URI uri, long now) {
+		Host host = hosts.computeIfAbsent(hostOf(uri), Host::new);
+		host.pending.add(uri);
+		queued++;
+		schedule(host, now);
+	}
+
+	/**
+	 * Puts a host back into rotation if it has pending URLs and room for another
+	 * fetch.
+	 *
+	 * @param host the host
+	 * @param now  the current time
+	 */
+	private void schedule(Host host, long now) {
+		if (host.scheduled || host.pending.isEmpty() || host.running >= perHost) {
+			return;
+		}
+		host.scheduled = true;
+		if (host.nextStart - now <= 0) {
+			ready.add(host);
+		} else {
+			delayed.add(host);
+		}
+	}
+
+	/**
+	 * Starts the next fetch, from the next host in rotation that is ready.
+	 *
+	 * @return the URL to fetch, or {@code null} if no host may start a fetch now
+	 */
+	public URI next() {
+		long now = System.nanoTime();
+		if (queued < buffered / 2) {
+			URI uri;
+			while (queued < buffered && (uri = overflow.poll()) != null) {
+				enqueue(uri, now);
+			}
+		}
+		while (!delayed.isEmpty() && delayed.peek().nextStart - now <= 0) {
+			ready.add(delayed.poll());
+		}
+
+		Host host = ready.poll();
+		if (host == null) {
+			return null;
+		}
+
+		host.scheduled = false;
+		host.running++;
+		host.nextStart = now + delayNanos;
+		queued--;
+		URI uri = host.pending.poll();
+		schedule(host, now);
+		return uri;
+	}
+
+	/**
+	 * Finishes a fetch started by {@link #next()}.
+	 *
+	 * @param uri the URL that was fetched
+	 */
+	public void done(URI uri) {
+		long now = System.nanoTime();
+		Host host = hosts.get(hostOf(uri));
+		host.running--;
+		if (host.pending.isEmpty() && host.running == 0 && host.nextStart - now <= 0) {
+			hosts.remove(host.name);
+		} else {
+			schedule(host, now);
+		}
+	}
+
+	/**
+	 * Returns how long until a host that is waiting out its delay may start a
+	 * fetch.
+	 *
+	 * @return the number of nanoseconds to wait, 0 if a host is ready now, or -1
+	 *         if no host is waiting
+	 */
+	public long waitNanos() {
+		if (!ready.isEmpty()) {
+			return 0;
+		}
+		if (delayed.isEmpty()) {
+			return -1;
+		}
+		return Math.max(1, delayed.peek().nextStart - System.nanoTime());
+	}
+
+	/**
+	 * Determines whether there are no pending URLs.
+	 *
+	 * @return true if every URL was started
+	 */
+	public boolean isEmpty() {
+		return queued == 0 && overflow.isEmpty();
+	}
+
+	/**
+	 * Drops every pending URL.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public void close() throws IOException {
+		hosts.clear();
+		ready.clear();
+		delayed.clear();
+		queued = 0;
+		overflow.close();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d hosts (%d ready, %d delayed), %d queued; overflow: %s", hosts.size(), ready.size(),
+				delayed.size(), queued, overflow);
+	}
+
+	/**
+	 * The pending URLs and running fetches of one host.
+	 */
+	private static class Host {
+		/** The name of the host. */
+		private final String name;
+
+		/** The pending URLs of the host. */
+		private final ArrayDeque<URI> pending;
+
+		/** Number of fetches from the host that are running. */
+		private int running;
+
+		/** The earliest time the next fetch from the host may start. */
+		private long nextStart;
+
+		/** Whether the host is in the ready or delayed queue. */
+		private boolean scheduled;
+
+		/**
+		 * Initializes a host with nothing pending.
+		 *
+		 * @param name the name of the host
+		 */
+		private Host(String name) {
+			this.name = name;
+			this.pending = new ArrayDeque<>();
+			this.running = 0;
+			this.nextStart = System.nanoTime();
+			this.scheduled = false;
+		}
+	}
+}
@@ -1,9 +1,13 @@
 package edu.usfca.cs272;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -20,6 +24,25 @@ import java.util.Map;
  * @version Spring 2024
  */
 public class HtmlFetcher {
+	/**
+	 * Reads the body of an HTML response as it arrives, instead of waiting for
+	 * all of it.
+	 *
+	 * @param <T> the type of the result
+	 */
+	@FunctionalInterface
+	public static interface BodyHandler<T> {
+		/**
+		 * Reads the body of an HTML response. The body does not need to be read
+		 * to the end.
+		 *
+		 * @param body the body, after it is decompressed
+		 * @return the result
+		 * @throws IOException if unable to read the body
+		 */
+		T handle(InputStream body) throws IOException;
+	}
+
 	/**
 	 * Returns {@code true} if and only if there is a "content-type" header (assume
 	 * lowercase) and the first value of that header starts with the value
@@ -86,7 +109,9 @@ public class HtmlFetcher {
 	 * <p>
 	 * The HTTP body will only be fetched and processed if the status code is 200
 	 * and the content-type is HTML. In that case, the HTML will be returned as a
-	 * single joined String using the {@link System#lineSeparator}.
+	 * single joined String using the {@link System#lineSeparator}. The body may be
+	 * sent chunked or compressed with gzip or deflate, and is decoded as it is
+	 * read.
 	 *
 	 * <p>
 	 * Otherwise, the HTTP body will not be fetched. However, if the status code is
@@ -102,9 +127,9 @@ public class HtmlFetcher {
 	 * @param redirects the number of times to follow redirects
 	 * @return the HTML or {@code null} if unable to fetch valid HTML
 	 *
-	 * @see HttpsFetcher#openConnection(URI)
-	 * @see HttpsFetcher#printGetRequest(PrintWriter, URI)
-	 * @see HttpsFetcher#processHttpHeaders(BufferedReader)
+	 * @see HttpConnection#sendGet(URI, boolean)
+	 * @see HttpConnection#readHeaders()
+	 * @see HttpConnection#decode(InputStream, Map)
 	 *
 	 * @see String#join(CharSequence, CharSequence...)
 	 * @see System#lineSeparator()
@@ -113,21 +138,13 @@ public class HtmlFetcher {
 	 * @see #getRedirect(Map)
 	 */
 	public static String fetch(URI uri, int redirects) {
-		try (Socket socket = HttpsFetcher.openConnection(uri);
-				PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-				BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));) {
-
-			HttpsFetcher.printGetRequest(writer, uri);
-			Map<String, List<String>> headers = HttpsFetcher.processHttpHeaders(reader);
+		try (HttpConnection connection = new HttpConnection(ConnectionPool.keyOf(uri), uri)) {
+			connection.sendGet(uri, false);
+			Map<String, List<String>> headers = connection.readHeaders();
 
 			int statusCode = getStatusCode(headers);
 			if (statusCode == 200 && isHtml(headers)) {
-				StringBuilder htmlBody = new StringBuilder();
-				String line;
-				while ((line = reader.readLine()) != null) {
-					htmlBody.append(line).append(System.lineSeparator());
-				}
-				return htmlBody.toString();
+				return read(connection, headers, Long.MAX_VALUE, HtmlFetcher::readLines);
 			} else if (statusCode >= 300 && statusCode <= 399 && redirects > 0) {
 				String redirect = getRedirect(headers);
 				if (redirect != null) {
@@ -140,6 +157,275 @@ public class HtmlFetcher {
 		return null;
 	}
 
+	/**
+	 * Reads the HTML body of a response whose headers were just read, decoding
+	 * its transfer and content encodings. The body is read to the end of its
+	 * framing, so the connection can be used for another request.
+	 *
+	 * @param <T>        the type of the result
+	 * @param connection the connection to read from
+	 * @param headers    the headers of the response
+	 * @param maxBytes   the most bytes of the decoded body to read
+	 * @param handler    what to do with the decoded body
+	 * @return the result of the handler
+	 * @throws IOException if unable to read or decode the body, or if it is
+	 *                     longer than the limit
+	 */
+	private static <T> T read(HttpConnection connection, Map<String, List<String>> headers, long maxBytes,
+			BodyHandler<T> handler) throws IOException {
+		InputStream body = connection.body(headers);
+		T result = handler.handle(HttpConnection.limit(HttpConnection.decode(body, headers), maxBytes));
+		// anything the handler did not read is still part of the body
+		body.transferTo(OutputStream.nullOutputStream());
+		return result;
+	}
+
+	/**
+	 * Reads UTF-8 text and joins its lines with the {@link System#lineSeparator},
+	 * including after the last line.
+	 *
+	 * @param body the text to read
+	 * @return the joined lines
+	 * @throws IOException if unable to read the text
+	 */
+	public static String readLines(InputStream body) throws IOException {
+		StringBuilder htmlBody = new StringBuilder();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				htmlBody.append(line).append(System.lineSeparator());
+			}
+		}
+		return htmlBody.toString();
+	}
+
+	/**
+	 * Fetches HTML like {@link #fetch(URI, int)}, but over persistent connections
+	 * taken from a pool, so a crawl of the same site reuses one connection for
+	 * many pages and redirect hops. The HTML is returned in the same form, as
+	 * lines joined with the {@link System#lineSeparator}.
+	 *
+	 * @param uri       the URI to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @param pool      the pool of connections to use
+	 * @return the HTML or {@code null} if unable to fetch valid HTML
+	 *
+	 * @see #fetch(URI, int, ConnectionPool, long, BodyHandler)
+	 */
+	public static String fetch(URI uri, int redirects, ConnectionPool pool) {
+		return fetch(uri, redirects, pool, Long.MAX_VALUE, HtmlFetcher::readLines);
+	}
+
+	/**
+	 * Fetches HTML over persistent connections taken from a pool, and hands the
+	 * body to a handler as it arrives, so the page never has to be held in
+	 * memory as a whole. Redirects are followed the same as
+	 * {@link #fetch(URI, int)}, and the handler is only called for the final
+	 * response, if it is HTML.
+	 *
+	 * <p>
+	 * A body longer than the limit is given up on: before any of it is read if
+	 * its {@code Content-Length} is too long, and otherwise as soon as more than
+	 * the limit has been decoded. The limit applies to the decoded body, so a
+	 * small compressed body cannot expand without bound.
+	 *
+	 * <p>
+	 * A connection is only given back for reuse once its response body is read to
+	 * the end of its framing. If a reused connection turns out to have been
+	 * closed by the server, the request is retried once on a new connection.
+	 *
+	 * @param <T>       the type of the result
+	 * @param uri       the URI to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @param pool      the pool of connections to use
+	 * @param maxBytes  the most bytes of the decoded body to read
+	 * @param handler   what to do with the decoded body
+	 * @return the result of the handler, or {@code null} if unable to fetch valid
+	 *         HTML within the limit
+	 *
+	 * @see ConnectionPool
+	 * @see #lines(InputStream)
+	 */
+	public static <T> T fetch(URI uri, int redirects, ConnectionPool pool, long maxBytes, BodyHandler<T> handler) {
+		return fetch(uri, redirects, pool, maxBytes, null, handler, null);
+	}
+
+	/**
+	 * Fetches HTML like {@link #fetch(URI, int, ConnectionPool, long, BodyHandler)},
+	 * but through a cache on disk. A page in the cache is requested with its
+	 * validators, and if the server answers that it did not change, the handler
+	 * reads the cached body instead. If the tokens the handler returned for that
+	 * body were cached too, they are returned without calling the handler at
+	 * all. A new body is stored as the handler reads it, along with the tokens
+	 * the handler returns, as long as the handler reads it to the end.
+	 *
+	 * <p>
+	 * If the cache is offline, nothing is sent over the network, and the cached
+	 * responses are replayed instead, including redirects.
+	 *
+	 * @param <T>       the type of the result
+	 * @param uri       the URI to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @param pool      the pool of connections to use
+	 * @param maxBytes  the most bytes of the decoded body to read
+	 * @param cache     the cache to use, or {@code null} to not cache
+	 * @param handler   what to do with the decoded body
+	 * @param codec     the encoding of the result, or {@code null} to not cache
+	 *                  results
+	 * @return the result of the handler, or {@code null} if unable to fetch valid
+	 *         HTML within the limit
+	 *
+	 * @see FetchCache
+	 */
+	public static <T> T fetch(URI uri, int redirects, ConnectionPool pool, long maxBytes, FetchCache cache,
+			BodyHandler<T> handler, FetchCache.Codec<T> codec) {
+		try {
+			FetchCache.Entry entry = cache == null ? null : cache.get(uri);
+			if (cache != null && cache.isOffline()) {
+				return replay(uri, entry, redirects, maxBytes, cache, handler, codec);
+			}
+
+			for (int retry = 0; retry < 2; retry++) {
+				HttpConnection connection = pool.acquire(uri);
+				boolean reusable = false;
+				boolean unchanged = false;
+				String redirect = null;
+				try {
+					Map<String, List<String>> headers;
+					try {
+						connection.sendGet(uri, true, entry == null ? List.of() : entry.validators());
+						headers = connection.readHeaders();
+					} catch (IOException e) {
+						if (connection.isReused()) {
+							continue;
+						}
+						throw e;
+					}
+
+					int statusCode = getStatusCode(headers);
+					if (statusCode == 200 && isHtml(headers)) {
+						if (HttpConnection.isTooLong(headers, maxBytes)) {
+							return null;
+						}
+						T result = cache == null ? read(connection, headers, maxBytes, handler)
+								: read(connection, headers, maxBytes, body -> {
+									try (FetchCache.Download download = cache.download(uri, headers, body)) {
+										T tokens = handler.handle(download);
+										download.commit(codec, tokens);
+										return tokens;
+									}
+								});
+						reusable = HttpConnection.isKeepAlive(headers);
+						return result;
+					}
+
+					reusable = connection.drain(headers);
+					if (statusCode == 304 && entry != null && entry.kind() == FetchCache.Kind.HTML) {
+						unchanged = true;
+					} else if (statusCode >= 300 && statusCode <= 399) {
+						redirect = getRedirect(headers);
+						if (cache != null && redirect != null) {
+							cache.putRedirect(uri, redirect);
+						}
+					} else if (cache != null) {
+						cache.putOther(uri);
+					}
+				} finally {
+					pool.release(connection, reusable);
+				}
+
+				if (unchanged) {
+					cache.revalidated();
+					return fromCache(uri, entry, maxBytes, cache, handler, codec);
+				}
+				return redirect == null || redirects <= 0 ? null
+						: fetch(new URI(redirect), redirects - 1, pool, maxBytes, cache, handler, codec);
+			}
+		} catch (Exception e) {
+			return null;
+		}
+		return null;
+	}
+
+	/**
+	 * Answers a fetch from the cache without the network, the same way it was
+	 * answered when it was cached.
+	 *
+	 * @param <T>       the type of the result
+	 * @param uri       the URI to fetch
+	 * @param entry     the cached response, or {@code null} if there is none
+	 * @param redirects the number of times to follow redirects
+	 * @param maxBytes  the most bytes of the decoded body to read
+	 * @param cache     the cache to use
+	 * @param handler   what to do with the decoded body
+	 * @param codec     the encoding of the result, or {@code null}
+	 * @return the result of the handler, or {@code null} if there is no cached
+	 *         HTML
+	 * @throws IOException        if unable to read the cached body
+	 * @throws URISyntaxException if a cached redirect is invalid
+	 */
+	private static <T> T replay(URI uri, FetchCache.Entry entry, int redirects, long maxBytes, FetchCache cache,
+			BodyHandler<T> handler, FetchCache.Codec<T> codec) throws IOException, URISyntaxException {
+		if (entry == null) {
+			return null;
+		}
+		cache.replayed();
+		return switch (entry.kind()) {
+			case HTML -> fromCache(uri, entry, maxBytes, cache, handler, codec);
+			case REDIRECT -> {
+				if (redirects <= 0) {
+					yield null;
+				}
+				URI next = new URI(entry.location());
+				yield replay(next, cache.get(next), redirects - 1, maxBytes, cache, handler, codec);
+			}
+			case OTHER -> null;
+		};
+	}
+
+	/**
+	 * Returns the result for a cached HTML page: the cached tokens if there are
+	 * any, and otherwise the result of the handler for the cached body, which is
+	 * then cached as its tokens.
+	 *
+	 * @param <T>      the type of the result
+	 * @param uri      the URI of the page
+	 * @param entry    the cached response
+	 * @param maxBytes the most bytes of the decoded body to read
+	 * @param cache    the cache to use
+	 * @param handler  what to do with the decoded body
+	 * @param codec    the encoding of the result, or {@code null}
+	 * @return the result
+	 * @throws IOException if unable to read the cached body
+	 */
+	private static <T> T fromCache(URI uri, FetchCache.Entry entry, long maxBytes, FetchCache cache,
+			BodyHandler<T> handler, FetchCache.Codec<T> codec) throws IOException {
+		T tokens = codec == null ? null : cache.tokens(entry, codec);
+		if (tokens != null) {
+			return tokens;
+		}
+		try (InputStream body = cache.body(uri)) {
+			tokens = handler.handle(HttpConnection.limit(body, maxBytes));
+		}
+		if (codec != null && tokens != null) {
+			cache.putTokens(uri, entry, codec, tokens);
+		}
+		return tokens;
+	}
+
+	/**
+	 * Reads UTF-8 text as it arrives, with its lines joined by the
+	 * {@link System#lineSeparator}, including after the last line. The
+	 * characters are the same as {@link #readLines(InputStream)} returns, without
+	 * holding them all at once.
+	 *
+	 * @param body the text to read
+	 * @return a reader of the joined lines
+	 */
+	public static Reader lines(InputStream body) {
+		return new LineReader(new InputStreamReader(body, UTF_8));
+	}
+
 	/**
 	 * Converts the {@link String} into a {@link URI} object and then calls
 	 * {@link #fetch(URI, int)}.
@@ -180,4 +466,104 @@ public class HtmlFetcher {
 	public static String fetch(URI uri) {
 		return fetch(uri, 0);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Reads text with every line break replaced by the
+	 * {@link System#lineSeparator}, the same as {@link BufferedReader#readLine()}
+	 * splits lines, and with a line separator after the last line.
+	 */
+	private static class LineReader extends Reader {
+		/** The line separator to use. */
+		private static final String SEPARATOR = System.lineSeparator();
+
+		/** The text to read. */
+		private final Reader in;
+
+		/** The characters read from the text but not returned yet. */
+		private final char[] buffer;
+
+		/** The index of the next character in the buffer. */
+		private int position;
+
+		/** Number of characters in the buffer. */
+		private int limit;
+
+		/** Index of the next character of a line separator to return. */
+		private int separator;
+
+		/** Whether the last line break was a carriage return. */
+		private boolean afterReturn;
+
+		/** Whether there are characters after the last line break. */
+		private boolean inLine;
+
+		/** Whether the end of the text was reached. */
+		private boolean ended;
+
+		/**
+		 * Initializes the reader.
+		 *
+		 * @param in the text to read
+		 */
+		private LineReader(Reader in) {
+			this.in = in;
+			this.buffer = new char[8192];
+			this.position = 0;
+			this.limit = 0;
+			this.separator = SEPARATOR.length();
+			this.afterReturn = false;
+			this.inLine = false;
+			this.ended = false;
+		}
+
+		@Override
+		public int read(char[] chars, int offset, int length) throws IOException {
+			int count = 0;
+			while (count < length) {
+				if (separator < SEPARATOR.length()) {
+					chars[offset + count++] = SEPARATOR.charAt(separator++);
+					continue;
+				}
+
+				if (position == limit) {
+					if (ended || count > 0) {
+						break;
+					}
+					limit = in.read(buffer);
+					position = 0;
+					if (limit < 0) {
+						limit = 0;
+						ended = true;
+						if (inLine) {
+							inLine = false;
+							separator = 0;
+						}
+					}
+					continue;
+				}
+
+				char c = buffer[position++];
+				if (afterReturn) {
+					afterReturn = false;
+					if (c == '\n') {
+						continue;
+					}
+				}
+				if (c == '\r' || c == '\n') {
+					afterReturn = c == '\r';
+					inLine = false;
+					separator = 0;
+				} else {
+					inLine = true;
+					chars[offset + count++] = c;
+				}
+			}
+			return count == 0 && length > 0 ? -1 : count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
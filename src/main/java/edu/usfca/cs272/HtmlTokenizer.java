@@ -0,0 +1,983 @@
+package edu.usfca.cs272;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cleans HTML into plain text and finds the href values of its anchor tags in
+ * a single pass, with the same results as {@link HtmlCleaner#stripBlockElements(String)},
+ * {@link LinkFinder#listUris(java.net.URI, String)} (before the links are made
+ * absolute), {@link HtmlCleaner#stripTags(String)}, and
+ * {@link HtmlCleaner#stripEntities(String)}. Those make eleven passes over the
+ * page with regular expressions, each creating a new copy of it.
+ *
+ * <p>
+ * Each regular expression is replaced by a small state machine, and the
+ * machines are chained so every character of the page flows through all of
+ * them once: comments are dropped first, then block elements, and what is left
+ * goes both to the link finder and through the tag, entity, and leftover
+ * entity stages to the text. A machine holds back only the characters it has
+ * not decided on yet, such as an open tag, and lets them through as text if the
+ * page ends before they are closed, just like a regular expression that does
+ * not match. Since no machine looks ahead, a page can be tokenized from a
+ * {@link Reader} as it arrives, without ever holding all of it.
+ *
+ * <p>
+ * The one difference is order: {@link HtmlCleaner} removes each kind of block
+ * element in its own pass, while this class removes them in the order they
+ * appear. These only disagree if a block element contains the start of an
+ * element removed by an earlier pass, or if removing an element joins the text
+ * around it into a new tag. Pages like that are rare, and are cleaned with
+ * {@link HtmlCleaner} and {@link LinkFinder} instead.
+ */
+public class HtmlTokenizer {
+	/**
+	 * The elements removed with their contents, in the order
+	 * {@link HtmlCleaner#stripBlockElements(String)} removes them.
+	 */
+	private static final String[] BLOCKS = { "head", "style", "script", "noscript", "iframe", "svg" };
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** Matches a numeric entity, with its hex or decimal value in group 1 or 2. */
+	private static final Pattern NUMERIC_ENTITY = Pattern.compile("&#(?:[xX]([0-9a-fA-F]+)|([0-9]+));");
+
+	/** Outside of any tag. */
+	private static final int TEXT = 0;
+
+	/** After a {@code <} that may start a block element. */
+	private static final int NAME = 1;
+
+	/** After the full name of a block element. */
+	private static final int AFTER_NAME = 2;
+
+	/** In the attributes of a block element. */
+	private static final int ATTRIBUTES = 3;
+
+	/** In the contents of a block element, looking for its end tag. */
+	private static final int CONTENTS = 4;
+
+	/** After a {@code <} that may start an anchor tag. */
+	private static final int ANCHOR_LT = 1;
+
+	/** After {@code <a} that may start an anchor tag. */
+	private static final int ANCHOR_A = 2;
+
+	/** In the attributes of an anchor tag. */
+	private static final int ANCHOR_TAG = 3;
+
+	/** In an href value that continues past the first {@code >}. */
+	private static final int ANCHOR_VALUE = 4;
+
+	/** After an href value, looking for the end of the anchor tag. */
+	private static final int ANCHOR_END = 5;
+
+	/** After a {@code <} that may start a tag. */
+	private static final int TAG_LT = 1;
+
+	/** In a tag. */
+	private static final int TAG = 2;
+
+	/** The text found so far, if it is kept as text. */
+	private final StringBuilder text;
+
+	/** The stemmer the text is passed to, if it is not kept as text. */
+	private final TextStemmer words;
+
+	/** The href values found so far. */
+	private final ArrayList<String> hrefs;
+
+	/** Whether the page must be cleaned with {@link HtmlCleaner} instead. */
+	private boolean irregular;
+
+	/** Whether a comment can still end before the end of the page. */
+	private boolean comments;
+
+	/** The characters of a possible comment not let through yet. */
+	private final StringBuilder comment;
+
+	/** Number of dashes in a row at the end of the held comment. */
+	private int dashes;
+
+	/** The state of the block element machine. */
+	private int blockState;
+
+	/** The characters of a possible block element not let through yet. */
+	private final StringBuilder block;
+
+	/** The block elements the held characters may still be the start of. */
+	private int candidates;
+
+	/** The block element being skipped. */
+	private int element;
+
+	/** Number of characters of the end tag of the skipped element found. */
+	private int closing;
+
+	/** The block elements known to have no end tag in the rest of the page. */
+	private int unclosed;
+
+	/** The characters let through since the last {@code <}, if only a few. */
+	private final StringBuilder recent;
+
+	/** The state of the anchor tag machine. */
+	private int anchorState;
+
+	/** The attributes of an anchor tag, or the href value being read. */
+	private final StringBuilder anchor;
+
+	/** The href value to use if the one being read is never closed. */
+	private String fallback;
+
+	/** The characters after the first {@code >} of an unfinished anchor tag. */
+	private final StringBuilder retained;
+
+	/** The state of the first tag machine. */
+	private int tagState;
+
+	/** The characters of a possible tag not let through yet. */
+	private final StringBuilder tag;
+
+	/** The state of the second tag machine. */
+	private int looseState;
+
+	/** The characters of a possible loose tag not let through yet. */
+	private final StringBuilder loose;
+
+	/** The characters of a possible entity not let through yet. */
+	private final StringBuilder entity;
+
+	/** The characters of a possible leftover entity not let through yet. */
+	private final StringBuilder leftover;
+
+	/**
+	 * The text and href values of a page.
+	 *
+	 * @param text  the text of the page, without tags, entities, comments, or
+	 *              block elements
+	 * @param hrefs the href values of the anchor tags, in the order they appear
+	 */
+	public record Tokens(String text, List<String> hrefs) {
+	}
+
+	/**
+	 * Initializes an empty tokenizer.
+	 *
+	 * @param capacity the expected length of the page
+	 * @param words    the stemmer to pass the text to, or {@code null} to keep it
+	 *                 as text
+	 */
+	private HtmlTokenizer(int capacity, TextStemmer words) {
+		this.text = words == null ? new StringBuilder(capacity / 2) : null;
+		this.words = words;
+		this.hrefs = new ArrayList<>();
+		this.irregular = false;
+		this.comments = true;
+		this.comment = new StringBuilder();
+		this.dashes = 0;
+		this.blockState = TEXT;
+		this.block = new StringBuilder();
+		this.candidates = 0;
+		this.element = -1;
+		this.closing = 0;
+		this.unclosed = 0;
+		this.recent = new StringBuilder(16);
+		this.anchorState = TEXT;
+		this.anchor = new StringBuilder();
+		this.fallback = null;
+		this.retained = new StringBuilder();
+		this.tagState = TEXT;
+		this.tag = new StringBuilder();
+		this.looseState = TEXT;
+		this.loose = new StringBuilder();
+		this.entity = new StringBuilder();
+		this.leftover = new StringBuilder();
+	}
+
+	/**
+	 * Cleans HTML into plain text and finds the href values of its anchor tags.
+	 *
+	 * @param html valid HTML 4 text
+	 * @return the text and href values of the page
+	 */
+	public static Tokens tokenize(String html) {
+		HtmlTokenizer tokenizer = new HtmlTokenizer(html.length(), null);
+		tokenizer.run(html);
+		if (tokenizer.irregular) {
+			log.trace("Cleaning irregular page with regular expressions");
+			return clean(html);
+		}
+		return new Tokens(tokenizer.text.toString(), tokenizer.hrefs);
+	}
+
+	/**
+	 * Finds the href values of the anchor tags of a page, and passes its text to
+	 * a stemmer as it is found, so the page is only scanned once. The stems are
+	 * the same as {@link FileStemmer#listStems(String)} of the text. An irregular
+	 * page is stemmed again from the start, so the stemmer should collect its
+	 * stems rather than pass them on.
+	 *
+	 * @param html  valid HTML 4 text
+	 * @param words the stemmer to pass the text to
+	 * @return the href values of the anchor tags, in the order they appear
+	 */
+	public static List<String> tokenize(String html, TextStemmer words) {
+		HtmlTokenizer tokenizer = new HtmlTokenizer(html.length(), words);
+		tokenizer.run(html);
+		if (tokenizer.irregular) {
+			log.trace("Cleaning irregular page with regular expressions");
+			Tokens tokens = clean(html);
+			words.clear();
+			words.append(tokens.text());
+			words.finish();
+			return tokens.hrefs();
+		}
+		words.finish();
+		return tokenizer.hrefs;
+	}
+
+	/**
+	 * Finds the href values of the anchor tags of a page, and passes its text to
+	 * a stemmer, as the page is read. Only the parts of the page that cannot be
+	 * decided yet, such as an open tag or the contents of a block element, are
+	 * held in memory. The stems are the same as {@link FileStemmer#listStems(String)}
+	 * of the text, unless the page is irregular, in which case reading stops and
+	 * {@code null} is returned. The stems passed so far should then be thrown
+	 * away and the whole page cleaned with {@link #clean(String)} instead.
+	 *
+	 * @param html  valid HTML 4 text
+	 * @param words the stemmer to pass the text to
+	 * @return the href values of the anchor tags, in the order they appear, or
+	 *         {@code null} if the page is irregular
+	 * @throws IOException if unable to read the page
+	 */
+	public static List<String> tokenize(Reader html, TextStemmer words) throws IOException {
+		HtmlTokenizer tokenizer = new HtmlTokenizer(8192, words);
+		tokenizer.run(html);
+		if (tokenizer.irregular) {
+			log.trace("Stopped reading irregular page");
+			return null;
+		}
+		words.finish();
+		return tokenizer.hrefs;
+	}
+
+	/**
+	 * Cleans HTML the way this class emulates, with {@link HtmlCleaner} and
+	 * {@link LinkFinder#ANCHOR_REGEX}. Numeric entities beyond the last Unicode
+	 * code point are dropped, as this class drops them.
+	 *
+	 * @param html valid HTML 4 text
+	 * @return the text and href values of the page
+	 */
+	public static Tokens clean(String html) {
+		String cleaned = HtmlCleaner.stripBlockElements(html);
+		ArrayList<String> hrefs = new ArrayList<>();
+		Matcher matcher = LinkFinder.ANCHOR_REGEX.matcher(cleaned);
+		while (matcher.find()) {
+			hrefs.add(matcher.group(1));
+		}
+
+		return new Tokens(stripEntities(HtmlCleaner.stripTags(cleaned)), hrefs);
+	}
+
+	/**
+	 * Removes entities, the same as {@link HtmlCleaner#stripEntities(String)},
+	 * except that numeric entities beyond the last Unicode code point are dropped
+	 * like unknown entities instead of failing, so the rest of the text is kept.
+	 * The text around them is unescaped separately, so the text on either side
+	 * of a dropped entity is never decoded as a new entity.
+	 *
+	 * @param text the text to clean
+	 * @return the text without entities
+	 * @see StringEscapeUtils#unescapeHtml4(String)
+	 */
+	private static String stripEntities(String text) {
+		StringBuilder unescaped = null;
+		int last = 0;
+		Matcher matcher = NUMERIC_ENTITY.matcher(text);
+		while (matcher.find()) {
+			if (isValidEntity(matcher)) {
+				continue;
+			}
+			log.debug("Dropping invalid entity {}", matcher.group());
+			if (unescaped == null) {
+				unescaped = new StringBuilder(text.length());
+			}
+			unescaped.append(StringEscapeUtils.unescapeHtml4(text.substring(last, matcher.start())));
+			last = matcher.end();
+		}
+
+		if (unescaped == null) {
+			return HtmlCleaner.stripEntities(text);
+		}
+		unescaped.append(StringEscapeUtils.unescapeHtml4(text.substring(last)));
+		return unescaped.toString().replaceAll("&[a-zA-Z0-9]+;", "");
+	}
+
+	/**
+	 * Determines whether a numeric entity can be unescaped. An entity with a value
+	 * too long to parse is left as text by {@link StringEscapeUtils}, so only a
+	 * value beyond the last Unicode code point is invalid.
+	 *
+	 * @param entity the matched numeric entity
+	 * @return true unless the entity is beyond the last Unicode code point
+	 */
+	private static boolean isValidEntity(Matcher entity) {
+		try {
+			int value = entity.group(1) != null ? Integer.parseInt(entity.group(1), 16)
+					: Integer.parseInt(entity.group(2));
+			return value <= Character.MAX_CODE_POINT;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Passes every character of the page through the machines.
+	 *
+	 * @param html the page
+	 */
+	private void run(String html) {
+		for (int i = 0; i < html.length(); i++) {
+			comment(html.charAt(i));
+		}
+		finish();
+	}
+
+	/**
+	 * Passes every character of the page through the machines as it is read,
+	 * stopping early if the page turns out to be irregular.
+	 *
+	 * @param html the page
+	 * @throws IOException if unable to read the page
+	 */
+	private void run(Reader html) throws IOException {
+		char[] buffer = new char[8192];
+		int read;
+		while ((read = html.read(buffer)) >= 0) {
+			for (int i = 0; i < read; i++) {
+				comment(buffer[i]);
+			}
+			if (irregular) {
+				return;
+			}
+		}
+		finish();
+	}
+
+	/**
+	 * Handles the end of the page for every machine, in order.
+	 */
+	private void finish() {
+		finishComment();
+		finishBlock();
+		finishAnchor();
+		finishTag();
+		finishLoose();
+		finishEntity();
+		finishLeftover();
+	}
+
+	/**
+	 * Drops comments, the same as {@link HtmlCleaner#stripComments(String)}. A
+	 * comment is held until its end, and if the page ends first, the comment is
+	 * let through and no later comment can end either.
+	 *
+	 * @param c the next character
+	 */
+	private void comment(char c) {
+		if (comment.isEmpty()) {
+			if (c == '<' && comments) {
+				comment.append(c);
+			} else {
+				block(c);
+			}
+		} else if (comment.length() < 4) {
+			if (c == "<!--".charAt(comment.length())) {
+				comment.append(c);
+				dashes = 0;
+			} else {
+				// only the character that broke the match can start a new comment
+				for (int i = 0; i < comment.length(); i++) {
+					block(comment.charAt(i));
+				}
+				comment.setLength(0);
+				comment(c);
+			}
+		} else {
+			comment.append(c);
+			if (c == '-') {
+				dashes++;
+			} else if (c == '>' && dashes >= 2) {
+				comment.setLength(0);
+			} else {
+				dashes = 0;
+			}
+		}
+	}
+
+	/**
+	 * Handles the end of the page for the comment machine, letting through a
+	 * comment that was never closed.
+	 */
+	private void finishComment() {
+		comments = false;
+		for (int i = 0; i < comment.length(); i++) {
+			block(comment.charAt(i));
+		}
+		comment.setLength(0);
+	}
+
+	/**
+	 * Drops block elements with their contents, the same as
+	 * {@link HtmlCleaner#stripElement(String, String)}.
+	 *
+	 * @param c the next character
+	 */
+	private void block(char c) {
+		switch (blockState) {
+			case TEXT -> {
+				if (c == '<' && unclosed != (1 << BLOCKS.length) - 1) {
+					block.append(c);
+					candidates = ~unclosed & ((1 << BLOCKS.length) - 1);
+					blockState = NAME;
+				} else {
+					let(c);
+				}
+			}
+			case NAME -> {
+				int index = block.length() - 1;
+				int next = 0;
+				for (int e = 0; e < BLOCKS.length; e++) {
+					if ((candidates & (1 << e)) != 0 && index < BLOCKS[e].length()
+							&& lower(c) == BLOCKS[e].charAt(index)) {
+						next |= 1 << e;
+					}
+				}
+				if (next == 0) {
+					release();
+					block(c);
+					return;
+				}
+				block.append(c);
+				candidates = next;
+				for (int e = 0; e < BLOCKS.length; e++) {
+					// no name is the start of another, so only one can be complete
+					if ((next & (1 << e)) != 0 && BLOCKS[e].length() == index + 1) {
+						element = e;
+						blockState = AFTER_NAME;
+					}
+				}
+			}
+			case AFTER_NAME -> {
+				if (c == '>') {
+					block.append(c);
+					closing = 0;
+					blockState = CONTENTS;
+				} else if (isSpace(c)) {
+					block.append(c);
+					blockState = ATTRIBUTES;
+				} else {
+					release();
+					block(c);
+				}
+			}
+			case ATTRIBUTES -> {
+				block.append(c);
+				if (c == '>') {
+					closing = 0;
+					blockState = CONTENTS;
+				}
+			}
+			case CONTENTS -> {
+				block.append(c);
+				String name = BLOCKS[element];
+				if (closing < name.length() + 2) {
+					char expected = closing == 0 ? '<' : closing == 1 ? '/' : name.charAt(closing - 2);
+					if (lower(c) == expected) {
+						closing++;
+					} else {
+						closing = c == '<' ? 1 : 0;
+					}
+				} else if (c == '>') {
+					drop();
+				} else if (!isSpace(c)) {
+					closing = c == '<' ? 1 : 0;
+				}
+			}
+			default -> throw new IllegalStateException();
+		}
+	}
+
+	/**
+	 * Lets through the held characters that turned out not to start a block
+	 * element.
+	 */
+	private void release() {
+		for (int i = 0; i < block.length(); i++) {
+			let(block.charAt(i));
+		}
+		block.setLength(0);
+		blockState = TEXT;
+	}
+
+	/**
+	 * Drops a complete block element, and checks whether removing it in document
+	 * order could disagree with removing each kind of element in its own pass.
+	 */
+	private void drop() {
+		for (int i = 1; i < block.length() && !irregular; i++) {
+			if (block.charAt(i) == '<') {
+				for (int e = 0; e < element; e++) {
+					if (startsTag(block, i + 1, BLOCKS[e])) {
+						irregular = true;
+					}
+				}
+			}
+		}
+
+		if (!recent.isEmpty()) {
+			int start = recent.length() > 1 && recent.charAt(1) == '/' ? 2 : 1;
+			for (String name : BLOCKS) {
+				if (recent.length() - start <= name.length() && startsWith(recent, start, name)) {
+					irregular = true;
+				}
+			}
+		}
+
+		block.setLength(0);
+		blockState = TEXT;
+	}
+
+	/**
+	 * Handles the end of the page for the block element machine. A block element
+	 * without an end tag is not removed, and the characters after its {@code <}
+	 * are passed through again.
+	 */
+	private void finishBlock() {
+		while (blockState != TEXT) {
+			if (blockState == CONTENTS) {
+				unclosed |= 1 << element;
+				String held = block.substring(1);
+				block.setLength(0);
+				blockState = TEXT;
+				let('<');
+				for (int i = 0; i < held.length(); i++) {
+					block(held.charAt(i));
+				}
+			} else {
+				release();
+			}
+		}
+	}
+
+	/**
+	 * Passes a character of the page without block elements on to the anchor
+	 * and tag machines.
+	 *
+	 * @param c the character
+	 */
+	private void let(char c) {
+		if (c == '<') {
+			recent.setLength(0);
+			recent.append(c);
+		} else if (!recent.isEmpty()) {
+			if (recent.length() < 12) {
+				recent.append(c);
+			} else {
+				recent.setLength(0);
+			}
+		}
+
+		anchor(c);
+		tag(c);
+	}
+
+	/**
+	 * Finds the href values of anchor tags, the same as {@link LinkFinder}. Like
+	 * its pattern, the last href before the first {@code >} of a tag is used, and
+	 * its value may contain {@code >}.
+	 *
+	 * @param c the next character
+	 */
+	private void anchor(char c) {
+		switch (anchorState) {
+			case TEXT -> {
+				if (c == '<') {
+					anchorState = ANCHOR_LT;
+				}
+			}
+			case ANCHOR_LT -> anchorState = c == 'a' || c == 'A' ? ANCHOR_A : c == '<' ? ANCHOR_LT : TEXT;
+			case ANCHOR_A -> {
+				if (isSpace(c)) {
+					anchor.setLength(0);
+					anchor.append(c);
+					anchorState = ANCHOR_TAG;
+				} else {
+					anchorState = c == '<' ? ANCHOR_LT : TEXT;
+				}
+			}
+			case ANCHOR_TAG -> {
+				if (c == '>') {
+					href();
+				} else {
+					anchor.append(c);
+				}
+			}
+			case ANCHOR_VALUE -> {
+				retained.append(c);
+				if (c == '"') {
+					anchorState = ANCHOR_END;
+				} else {
+					anchor.append(c);
+				}
+			}
+			case ANCHOR_END -> {
+				retained.append(c);
+				if (c == '>') {
+					hrefs.add(anchor.toString());
+					retained.setLength(0);
+					fallback = null;
+					anchorState = TEXT;
+				}
+			}
+			default -> throw new IllegalStateException();
+		}
+	}
+
+	/**
+	 * Finds the href value of an anchor tag once its first {@code >} is reached.
+	 */
+	private void href() {
+		anchorState = TEXT;
+		int quote = -1;
+		int s = anchor.length() - 4;
+		for (; s >= 1 && quote < 0; s--) {
+			quote = hrefQuote(s);
+		}
+		if (quote < 0) {
+			return;
+		}
+
+		int end = anchor.indexOf("\"", quote + 1);
+		if (end >= 0) {
+			hrefs.add(anchor.substring(quote + 1, end));
+			return;
+		}
+
+		// the value continues past this >, and is only used if the tag ends later
+		fallback = null;
+		for (int earlier = -1; s >= 1 && earlier < 0; s--) {
+			earlier = hrefQuote(s);
+			if (earlier >= 0) {
+				int earlierEnd = anchor.indexOf("\"", earlier + 1);
+				fallback = earlierEnd < 0 ? null : anchor.substring(earlier + 1, earlierEnd);
+			}
+		}
+		String value = anchor.substring(quote + 1);
+		anchor.setLength(0);
+		anchor.append(value).append('>');
+		retained.setLength(0);
+		anchorState = ANCHOR_VALUE;
+	}
+
+	/**
+	 * Finds the opening quote of an href attribute.
+	 *
+	 * @param s where the attribute name may start in the anchor tag
+	 * @return the index of the quote, or -1 if there is no href attribute there
+	 */
+	private int hrefQuote(int s) {
+		if (!startsWith(anchor, s, "href")) {
+			return -1;
+		}
+		int i = s + 4;
+		while (i < anchor.length() && isSpace(anchor.charAt(i))) {
+			i++;
+		}
+		if (i >= anchor.length() || anchor.charAt(i) != '=') {
+			return -1;
+		}
+		i++;
+		while (i < anchor.length() && isSpace(anchor.charAt(i))) {
+			i++;
+		}
+		return i < anchor.length() && anchor.charAt(i) == '"' ? i : -1;
+	}
+
+	/**
+	 * Handles the end of the page for the anchor tag machine. If an href value
+	 * that continued past the first {@code >} of its tag never ended, the tag
+	 * ends at that {@code >} instead, and the characters after it are passed
+	 * through again.
+	 */
+	private void finishAnchor() {
+		while (anchorState == ANCHOR_VALUE || anchorState == ANCHOR_END) {
+			if (fallback != null) {
+				hrefs.add(fallback);
+			}
+			String held = retained.toString();
+			retained.setLength(0);
+			fallback = null;
+			anchorState = TEXT;
+			for (int i = 0; i < held.length(); i++) {
+				anchor(held.charAt(i));
+			}
+		}
+	}
+
+	/**
+	 * Drops tags that start with a letter or {@code /}, the same as the first
+	 * pass of {@link HtmlCleaner#stripTags(String)}.
+	 *
+	 * @param c the next character
+	 */
+	private void tag(char c) {
+		switch (tagState) {
+			case TEXT -> {
+				if (c == '<') {
+					tag.append(c);
+					tagState = TAG_LT;
+				} else {
+					loose(c);
+				}
+			}
+			case TAG_LT -> {
+				if (c == '/' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+					tag.append(c);
+					tagState = TAG;
+				} else {
+					tag.setLength(0);
+					tagState = TEXT;
+					loose('<');
+					tag(c);
+				}
+			}
+			case TAG -> {
+				if (c == '>') {
+					tag.setLength(0);
+					tagState = TEXT;
+				} else {
+					tag.append(c);
+				}
+			}
+			default -> throw new IllegalStateException();
+		}
+	}
+
+	/**
+	 * Handles the end of the page for the first tag machine, letting through a
+	 * tag that was never closed.
+	 */
+	private void finishTag() {
+		for (int i = 0; i < tag.length(); i++) {
+			loose(tag.charAt(i));
+		}
+		tag.setLength(0);
+		tagState = TEXT;
+	}
+
+	/**
+	 * Drops anything else between {@code <} and {@code >}, the same as the second
+	 * pass of {@link HtmlCleaner#stripTags(String)}.
+	 *
+	 * @param c the next character
+	 */
+	private void loose(char c) {
+		if (looseState == TEXT) {
+			if (c == '<') {
+				loose.append(c);
+				looseState = TAG;
+			} else {
+				entity(c);
+			}
+		} else if (c == '>') {
+			loose.setLength(0);
+			looseState = TEXT;
+		} else {
+			loose.append(c);
+		}
+	}
+
+	/**
+	 * Handles the end of the page for the second tag machine, letting through a
+	 * tag that was never closed.
+	 */
+	private void finishLoose() {
+		for (int i = 0; i < loose.length(); i++) {
+			entity(loose.charAt(i));
+		}
+		loose.setLength(0);
+		looseState = TEXT;
+	}
+
+	/**
+	 * Decodes entities, the same as {@link StringEscapeUtils#unescapeHtml4(String)}.
+	 * Each possible entity is held until its {@code ;} and then decoded by the
+	 * same translator.
+	 *
+	 * @param c the next character
+	 */
+	private void entity(char c) {
+		if (entity.isEmpty()) {
+			if (c == '&') {
+				entity.append(c);
+			} else {
+				leftover(c);
+			}
+		} else if (c == ';') {
+			entity.append(c);
+			String decoded;
+			try {
+				decoded = StringEscapeUtils.UNESCAPE_HTML4.translate(entity);
+			} catch (IllegalArgumentException e) {
+				// an out of range numeric entity is dropped like an unknown one
+				log.debug("Dropping invalid entity {}", entity);
+				decoded = "";
+			}
+			entity.setLength(0);
+			for (int i = 0; i < decoded.length(); i++) {
+				leftover(decoded.charAt(i));
+			}
+		} else if (c == '&') {
+			finishEntity();
+			entity.append(c);
+		} else if (isLetterOrDigit(c) || c == '#') {
+			entity.append(c);
+		} else {
+			finishEntity();
+			leftover(c);
+		}
+	}
+
+	/**
+	 * Lets through a possible entity that was not closed.
+	 */
+	private void finishEntity() {
+		for (int i = 0; i < entity.length(); i++) {
+			leftover(entity.charAt(i));
+		}
+		entity.setLength(0);
+	}
+
+	/**
+	 * Drops entities left after decoding, the same as the last pass of
+	 * {@link HtmlCleaner#stripEntities(String)}.
+	 *
+	 * @param c the next character
+	 */
+	private void leftover(char c) {
+		if (leftover.isEmpty()) {
+			if (c == '&') {
+				leftover.append(c);
+			} else {
+				emit(c);
+			}
+		} else if (isLetterOrDigit(c)) {
+			leftover.append(c);
+		} else if (c == ';' && leftover.length() > 1) {
+			leftover.setLength(0);
+		} else {
+			finishLeftover();
+			leftover(c);
+		}
+	}
+
+	/**
+	 * Lets through a possible leftover entity that was not closed.
+	 */
+	private void finishLeftover() {
+		for (int i = 0; i < leftover.length(); i++) {
+			emit(leftover.charAt(i));
+		}
+		leftover.setLength(0);
+	}
+
+	/**
+	 * Adds a character to the text, or passes it to the stemmer.
+	 *
+	 * @param c the character
+	 */
+	private void emit(char c) {
+		if (words == null) {
+			text.append(c);
+		} else {
+			words.append(c);
+		}
+	}
+
+	/**
+	 * Determines whether a block element start tag begins at an index, with the
+	 * name followed by whitespace or {@code >}.
+	 *
+	 * @param chars the characters to check
+	 * @param start the index after the {@code <}
+	 * @param name  the lowercase name of the element
+	 * @return true if the tag begins there
+	 */
+	private static boolean startsTag(CharSequence chars, int start, String name) {
+		int after = start + name.length();
+		return after < chars.length() && startsWith(chars, start, name)
+				&& (chars.charAt(after) == '>' || isSpace(chars.charAt(after)));
+	}
+
+	/**
+	 * Determines whether the characters from an index match the start of a name,
+	 * ignoring ASCII case. Only the characters that are there are compared.
+	 *
+	 * @param chars the characters to check
+	 * @param start the index to compare from
+	 * @param name  the lowercase name to compare to
+	 * @return true if every character there matches the name
+	 */
+	private static boolean startsWith(CharSequence chars, int start, String name) {
+		int length = Math.min(name.length(), chars.length() - start);
+		for (int i = 0; i < length; i++) {
+			if (lower(chars.charAt(start + i)) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return length == name.length() || start + length == chars.length();
+	}
+
+	/**
+	 * Converts an ASCII letter to lowercase, as case insensitive patterns do
+	 * without {@link Pattern#UNICODE_CASE}.
+	 *
+	 * @param c the character
+	 * @return the lowercase character
+	 */
+	private static char lower(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * Determines whether a character is whitespace, as {@code \s} in a pattern.
+	 *
+	 * @param c the character
+	 * @return true if the character is whitespace
+	 */
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Determines whether a character is an ASCII letter or digit.
+	 *
+	 * @param c the character
+	 * @return true if the character is an ASCII letter or digit
+	 */
+	private static boolean isLetterOrDigit(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	}
+}
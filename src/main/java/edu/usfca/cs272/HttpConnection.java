@@ -0,0 +1,624 @@
+package edu.usfca.cs272;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A persistent HTTP/1.1 connection to one host, which can send several GET
+ * requests one after another. Unlike the readers used by {@link HttpsFetcher},
+ * the response is read as raw bytes, so the body can be framed exactly by its
+ * {@code Content-Length} or chunked encoding and the next response starts
+ * right where the last one ended. Requests accept gzip and deflate encoded
+ * bodies, which are decompressed as they are read by {@link #decode(InputStream,
+ * Map)}.
+ *
+ * @see ConnectionPool
+ */
+public class HttpConnection implements Closeable {
+	/** The longest body drained to keep a connection open after a response. */
+	public static final long MAX_DRAIN = 64 * 1024;
+
+	/** The name of the host this connection is for, as used by the pool. */
+	private final String key;
+
+	/** The socket of the connection. */
+	private final Socket socket;
+
+	/** The buffered stream reading responses. */
+	private final InputStream in;
+
+	/** The stream writing requests. */
+	private final OutputStream out;
+
+	/** Number of requests sent over this connection. */
+	private int requests;
+
+	/** When this connection was last returned to the pool. */
+	private long idleSince;
+
+	/**
+	 * Opens a connection.
+	 *
+	 * @param key the name of the host this connection is for
+	 * @param uri a URI on the host to connect to
+	 * @throws IOException if unable to connect
+	 * @see HttpsFetcher#openConnection(URI)
+	 */
+	public HttpConnection(String key, URI uri) throws IOException {
+		this.key = key;
+		this.socket = HttpsFetcher.openConnection(uri);
+		this.in = new BufferedInputStream(socket.getInputStream());
+		this.out = socket.getOutputStream();
+		this.requests = 0;
+		this.idleSince = System.nanoTime();
+	}
+
+	/**
+	 * Returns the name of the host this connection is for.
+	 *
+	 * @return the pool key of this connection
+	 */
+	public String key() {
+		return key;
+	}
+
+	/**
+	 * Determines whether this connection was already used for an earlier request,
+	 * in which case the server may have closed it while it sat idle.
+	 *
+	 * @return true if an earlier request was sent over this connection
+	 */
+	public boolean isReused() {
+		return requests > 1;
+	}
+
+	/**
+	 * Returns when this connection was last returned to the pool.
+	 *
+	 * @return the time in {@link System#nanoTime()} units
+	 */
+	public long idleSince() {
+		return idleSince;
+	}
+
+	/**
+	 * Marks this connection as idle as of now.
+	 */
+	public void markIdle() {
+		idleSince = System.nanoTime();
+	}
+
+	/**
+	 * Determines whether the socket of this connection is still open.
+	 *
+	 * @return true if the socket is open
+	 */
+	public boolean isOpen() {
+		return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+	}
+
+	/**
+	 * Sends a GET request that asks the server to keep the connection open.
+	 *
+	 * @param uri the URI to request
+	 * @throws IOException if unable to send the request
+	 * @see HttpsFetcher#printGetRequest(java.io.PrintWriter, URI)
+	 */
+	public void sendGet(URI uri) throws IOException {
+		sendGet(uri, true);
+	}
+
+	/**
+	 * Sends a GET request that accepts a compressed body.
+	 *
+	 * @param uri       the URI to request
+	 * @param keepAlive whether to ask the server to keep the connection open
+	 * @throws IOException if unable to send the request
+	 * @see HttpsFetcher#printGetRequest(java.io.PrintWriter, URI)
+	 */
+	public void sendGet(URI uri, boolean keepAlive) throws IOException {
+		sendGet(uri, keepAlive, List.of());
+	}
+
+	/**
+	 * Sends a GET request that accepts a compressed body, with extra header
+	 * fields such as the validators of a conditional request.
+	 *
+	 * @param uri       the URI to request
+	 * @param keepAlive whether to ask the server to keep the connection open
+	 * @param fields    the extra header fields, each as {@code Name: value}
+	 * @throws IOException if unable to send the request
+	 * @see HttpsFetcher#printGetRequest(java.io.PrintWriter, URI)
+	 */
+	public void sendGet(URI uri, boolean keepAlive, List<String> fields) throws IOException {
+		String resource = Objects.requireNonNullElse(uri.getPath(), "/");
+		StringBuilder request = new StringBuilder();
+		request.append("GET ").append(resource).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(uri.getHost()).append("\r\n");
+		request.append("Accept-Encoding: gzip, deflate\r\n");
+		for (String field : fields) {
+			request.append(field).append("\r\n");
+		}
+		request.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+		requests++;
+		out.write(request.toString().getBytes(ISO_8859_1));
+		out.flush();
+	}
+
+	/**
+	 * Reads the status line and headers of a response, in the same form as
+	 * {@link HttpsFetcher#processHttpHeaders(java.io.BufferedReader)}: the status
+	 * line under the {@code null} key, and every other header under its name in
+	 * lowercase.
+	 *
+	 * @return a map of header fields to a list of header values
+	 * @throws IOException if unable to read the headers, including if the server
+	 *                     closed the connection before responding
+	 */
+	public Map<String, List<String>> readHeaders() throws IOException {
+		String status = readLine(in);
+		if (status == null) {
+			throw new EOFException("Connection closed before a response from " + key);
+		}
+
+		Map<String, List<String>> headers = new HashMap<>();
+		headers.put(null, List.of(status));
+
+		String line;
+		while ((line = readLine(in)) != null && !line.isBlank()) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				String name = line.substring(0, colon).strip().toLowerCase();
+				headers.computeIfAbsent(name, x -> new ArrayList<>()).add(line.substring(colon + 1).strip());
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * Returns the body of a response whose headers were just read. The stream
+	 * ends exactly where the body ends, and closing it does not close the
+	 * connection.
+	 *
+	 * @param headers the headers of the response
+	 * @return the body of the response
+	 */
+	public InputStream body(Map<String, List<String>> headers) {
+		if (hasNoBody(headers)) {
+			return new BoundedInputStream(in, 0);
+		}
+		if (isChunked(headers)) {
+			return new ChunkedInputStream(in);
+		}
+		long length = contentLength(headers);
+		return new BoundedInputStream(in, length < 0 ? Long.MAX_VALUE : length);
+	}
+
+	/**
+	 * Decompresses a body according to its {@code Content-Encoding}, as it is
+	 * read. Closing the returned stream does not close the connection.
+	 *
+	 * @param body    the body, as returned by {@link #body(Map)}
+	 * @param headers the headers of the response
+	 * @return the decompressed body
+	 * @throws IOException if the encoding is not supported or the compressed
+	 *                     header is invalid
+	 */
+	public static InputStream decode(InputStream body, Map<String, List<String>> headers) throws IOException {
+		String encoding = first(headers, "content-encoding");
+		if (encoding == null) {
+			return body;
+		}
+		return switch (encoding.strip().toLowerCase()) {
+			case "", "identity" -> body;
+			case "gzip", "x-gzip" -> new GZIPInputStream(body, 8192);
+			case "deflate" -> inflate(body);
+			default -> throw new UnsupportedEncodingException("Unsupported content encoding: " + encoding);
+		};
+	}
+
+	/**
+	 * Limits how much of a body may be read, so an oversized page is given up on
+	 * as soon as it passes the limit instead of being read to the end.
+	 *
+	 * @param body     the body, after it is decompressed
+	 * @param maxBytes the most bytes that may be read
+	 * @return the limited body, which throws an {@link IOException} once more
+	 *         than the limit is read
+	 */
+	public static InputStream limit(InputStream body, long maxBytes) {
+		return maxBytes == Long.MAX_VALUE ? body : new LimitedInputStream(body, maxBytes);
+	}
+
+	/**
+	 * Determines whether the headers of a response already give a body longer
+	 * than a limit, so it can be skipped without reading any of it.
+	 *
+	 * @param headers  the headers of the response
+	 * @param maxBytes the most bytes that may be read
+	 * @return true if the {@code Content-Length} is over the limit
+	 */
+	public static boolean isTooLong(Map<String, List<String>> headers, long maxBytes) {
+		return contentLength(headers) > maxBytes;
+	}
+
+	/**
+	 * Decompresses a deflate body. The body should be in the zlib format, but some
+	 * servers send raw deflate data instead, so the zlib header is checked first.
+	 *
+	 * @param body the compressed body
+	 * @return the decompressed body
+	 * @throws IOException if unable to read the start of the body
+	 */
+	private static InputStream inflate(InputStream body) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(body, 8192);
+		buffered.mark(2);
+		int cmf = buffered.read();
+		int flg = buffered.read();
+		buffered.reset();
+		// a zlib header uses the deflate method and is a multiple of 31
+		boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+		return new InflaterInputStream(buffered, new Inflater(!zlib), 8192);
+	}
+
+	/**
+	 * Determines whether this connection may be used for another request once the
+	 * body of a response is fully read. The server must not have asked to close
+	 * the connection, and the body must be framed so its end can be found
+	 * without the server closing the connection.
+	 *
+	 * @param headers the headers of the response
+	 * @return true if the connection can be kept open
+	 */
+	public static boolean isKeepAlive(Map<String, List<String>> headers) {
+		String status = headers.get(null).get(0);
+		String connection = first(headers, "connection");
+		boolean persistent = status.startsWith("HTTP/1.1") ? !"close".equalsIgnoreCase(connection)
+				: "keep-alive".equalsIgnoreCase(connection);
+		return persistent && (hasNoBody(headers) || isChunked(headers) || contentLength(headers) >= 0);
+	}
+
+	/**
+	 * Determines whether a response never has a body, whatever its headers say,
+	 * as for {@code 204 No Content} and {@code 304 Not Modified}.
+	 *
+	 * @param headers the headers of a response
+	 * @return true if the response has no body
+	 */
+	private static boolean hasNoBody(Map<String, List<String>> headers) {
+		int statusCode = HtmlFetcher.getStatusCode(headers);
+		return statusCode == 204 || statusCode == 304 || (statusCode >= 100 && statusCode <= 199);
+	}
+
+	/**
+	 * Reads and throws away the body of a response so the connection can be used
+	 * again, as long as the body is short.
+	 *
+	 * @param headers the headers of the response
+	 * @return true if the body was drained and the connection can be kept open
+	 */
+	public boolean drain(Map<String, List<String>> headers) {
+		if (!isKeepAlive(headers)
+				|| (!hasNoBody(headers) && !isChunked(headers) && contentLength(headers) > MAX_DRAIN)) {
+			return false;
+		}
+		try (InputStream body = body(headers)) {
+			long drained = 0;
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = body.read(buffer)) >= 0) {
+				drained += read;
+				if (drained > MAX_DRAIN) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the first value of a header.
+	 *
+	 * @param headers the headers of a response
+	 * @param name    the lowercase name of the header
+	 * @return the first value, or {@code null} if there is none
+	 */
+	private static String first(Map<String, List<String>> headers, String name) {
+		List<String> values = headers.get(name);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	/**
+	 * Determines whether the body of a response uses chunked encoding.
+	 *
+	 * @param headers the headers of a response
+	 * @return true if the body is chunked
+	 */
+	private static boolean isChunked(Map<String, List<String>> headers) {
+		String encoding = first(headers, "transfer-encoding");
+		return encoding != null && encoding.toLowerCase().contains("chunked");
+	}
+
+	/**
+	 * Returns the length of the body of a response.
+	 *
+	 * @param headers the headers of a response
+	 * @return the number of bytes in the body, or -1 if not given
+	 */
+	private static long contentLength(Map<String, List<String>> headers) {
+		try {
+			String length = first(headers, "content-length");
+			return length == null ? -1 : Long.parseLong(length.strip());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads one line terminated by CRLF or LF, decoded as ISO-8859-1.
+	 *
+	 * @param in the stream to read from
+	 * @return the line without its terminator, or {@code null} at the end of the
+	 *         stream
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n') {
+			line.write(b);
+		}
+		if (b < 0 && line.size() == 0) {
+			return null;
+		}
+		String text = line.toString(ISO_8859_1);
+		return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (%d requests)", key, requests);
+	}
+
+	/**
+	 * A body of a known length. Reading stops after the last byte of the body,
+	 * and closing the stream leaves the connection open.
+	 */
+	private static class BoundedInputStream extends InputStream {
+		/** The stream of the connection. */
+		private final InputStream in;
+
+		/** Number of bytes of the body left to read. */
+		private long remaining;
+
+		/**
+		 * Initializes the stream.
+		 *
+		 * @param in     the stream of the connection
+		 * @param length the number of bytes in the body
+		 */
+		private BoundedInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b >= 0) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+			if (read > 0) {
+				remaining -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public void close() {
+			// the connection stays open
+		}
+	}
+
+	/**
+	 * A body that may only be read up to a limit. Unlike
+	 * {@link BoundedInputStream}, reading past the limit is an error rather than
+	 * the end of the body.
+	 */
+	private static class LimitedInputStream extends InputStream {
+		/** The body to read. */
+		private final InputStream in;
+
+		/** The most bytes that may be read. */
+		private final long maxBytes;
+
+		/** Number of bytes that may still be read. */
+		private long remaining;
+
+		/**
+		 * Initializes the stream.
+		 *
+		 * @param in       the body to read
+		 * @param maxBytes the most bytes that may be read
+		 */
+		private LimitedInputStream(InputStream in, long maxBytes) {
+			this.in = in;
+			this.maxBytes = maxBytes;
+			this.remaining = maxBytes;
+		}
+
+		/**
+		 * Counts bytes that were read against the limit.
+		 *
+		 * @param read the number of bytes read
+		 * @throws IOException if the limit is passed
+		 */
+		private void count(int read) throws IOException {
+			remaining -= read;
+			if (remaining < 0) {
+				throw new IOException("Body is longer than " + maxBytes + " bytes");
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = in.read(buffer, offset, length);
+			if (read > 0) {
+				count(read);
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * A body in chunked encoding. Each chunk starts with its length in hex, and a
+	 * chunk of length zero ends the body, followed by optional trailers and a
+	 * blank line. Closing the stream leaves the connection open.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+		/** The stream of the connection. */
+		private final InputStream in;
+
+		/** Number of bytes left in the current chunk. */
+		private long remaining;
+
+		/** Whether the last chunk and trailers were read. */
+		private boolean done;
+
+		/**
+		 * Initializes the stream.
+		 *
+		 * @param in the stream of the connection
+		 */
+		private ChunkedInputStream(InputStream in) {
+			this.in = in;
+			this.remaining = 0;
+			this.done = false;
+		}
+
+		/**
+		 * Moves to the next chunk if the current one is used up.
+		 *
+		 * @return false if the body has ended
+		 * @throws IOException if the chunk framing is invalid
+		 */
+		private boolean nextChunk() throws IOException {
+			if (done) {
+				return false;
+			}
+			if (remaining > 0) {
+				return true;
+			}
+
+			String size = readLine(in);
+			if (size != null && size.isEmpty()) {
+				// the line break after the previous chunk
+				size = readLine(in);
+			}
+			if (size == null) {
+				throw new EOFException("Connection closed in the middle of a chunked body");
+			}
+			int extension = size.indexOf(';');
+			try {
+				remaining = Long.parseLong((extension < 0 ? size : size.substring(0, extension)).strip(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size: " + size, e);
+			}
+
+			if (remaining == 0) {
+				String trailer;
+				while ((trailer = readLine(in)) != null && !trailer.isEmpty()) {
+					// trailers are not used
+				}
+				done = true;
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextChunk()) {
+				return -1;
+			}
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Connection closed in the middle of a chunk");
+			}
+			remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			if (!nextChunk()) {
+				return -1;
+			}
+			int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+			if (read < 0) {
+				throw new EOFException("Connection closed in the middle of a chunk");
+			}
+			remaining -= read;
+			return read;
+		}
+
+		@Override
+		public void close() {
+			// the connection stays open
+		}
+	}
+}
@@ -2,32 +2,170 @@ package edu.usfca.cs272;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.RandomAccess;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.regex.Pattern;
 
 /**
  * Class representing an inverted index to add word counts, positions, and to a
  * JSON file, and write *
  */
 public class InvertedIndex {
+	/** How much each edit reduces the score of a fuzzy match */
+	public static final double FUZZY_WEIGHT = 0.5;
+
 	/** TreeMap storing word counts for each file */
 	private final TreeMap<String, Integer> counts;
 
 	/** TreeMap storing inverted index for files and word positions */
 	private final TreeMap<String, TreeMap<String, TreeSet<Integer>>> invertedIndex;
 
+	/** Incremented every time the index is modified */
+	private long generation;
+
+	/** Merged postings of short prefixes for partial search */
+	private final PrefixPostingCache prefixCache;
+
+	/** Grams of every surface word for wildcard search, or null if not enabled */
+	private KGramIndex kgrams;
+
+	/** The stem of every surface word seen, or null if they are not kept */
+	private TreeMap<String, String> surfaces;
+
 	/**
 	 * Constructs a new InvertedIndex for counts and invertedIndex
 	 */
 	public InvertedIndex() {
 		this.counts = new TreeMap<>();
 		this.invertedIndex = new TreeMap<>();
+		this.generation = 0;
+		this.prefixCache = new PrefixPostingCache();
+		this.kgrams = null;
+		this.surfaces = null;
+	}
+
+	/**
+	 * Keeps the surface words added from now on, and builds a k-gram index of
+	 * them, so wildcard patterns are matched against the words as they were
+	 * written and then expanded to their stems. Without it, wildcard patterns are
+	 * matched against the stems, and patterns that do not start with a few
+	 * letters have to check every stem.
+	 *
+	 * @see KGramIndex
+	 * @see #enableSurfaces()
+	 */
+	public void enableWildcards() {
+		if (kgrams == null) {
+			enableSurfaces();
+			kgrams = new KGramIndex();
+			for (String surface : surfaces.keySet()) {
+				kgrams.add(surface);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the surface words added from now on along with their stems, so
+	 * wildcard patterns and fuzzy queries can match the words as they were
+	 * written. Words already in the index, and words added without their surface
+	 * form, are kept as their own surface word.
+	 *
+	 * @see #addSurface(String, String)
+	 */
+	public void enableSurfaces() {
+		if (surfaces == null) {
+			surfaces = new TreeMap<>();
+		}
+		HashSet<String> stemmed = new HashSet<>(surfaces.values());
+		for (String word : invertedIndex.keySet()) {
+			if (!stemmed.contains(word)) {
+				recordSurface(word, word);
+			}
+		}
+	}
+
+	/**
+	 * Determines whether wildcard search is enabled.
+	 *
+	 * @return true if wildcard search is enabled
+	 * @see #enableWildcards()
+	 */
+	public boolean hasWildcards() {
+		return kgrams != null;
+	}
+
+	/**
+	 * Determines whether the surface words are kept, in which case they should be
+	 * passed to {@link #addSurface(String, String)} along with their stems.
+	 *
+	 * @return true if the surface words are kept
+	 * @see #enableSurfaces()
+	 */
+	public boolean hasSurfaces() {
+		return surfaces != null;
+	}
+
+	/**
+	 * Records a cleaned word as it was written along with its stem, so wildcard
+	 * patterns and fuzzy queries can match it. A local index keeps them to pass on with
+	 * {@link #addAll(InvertedIndex)}.
+	 *
+	 * @param surface The cleaned word before stemming
+	 * @param stem    The stem of the word
+	 */
+	public void addSurface(String surface, String stem) {
+		recordSurface(surface, stem);
+	}
+
+	/**
+	 * Records a surface word without going through an overridden
+	 * {@link #addSurface(String, String)}, for use while already updating the
+	 * index.
+	 *
+	 * @param surface The cleaned word before stemming
+	 * @param stem    The stem of the word
+	 */
+	private void recordSurface(String surface, String stem) {
+		if (surfaces == null) {
+			surfaces = new TreeMap<>();
+		}
+		if (surfaces.putIfAbsent(surface, stem) == null && kgrams != null) {
+			kgrams.add(surface);
+		}
+	}
+
+	/**
+	 * Returns a summary of the k-gram index used for wildcard search
+	 *
+	 * @return A summary of the k-gram index, including its estimated memory use
+	 */
+	public String wildcardSummary() {
+		return kgrams == null ? "wildcard index disabled" : "wildcard index: " + kgrams;
+	}
+
+	/**
+	 * Returns the generation of the index, which changes every time the index is
+	 * modified. Anything computed from the index is stale once the generation it
+	 * was computed at no longer matches.
+	 *
+	 * @return The current generation of the index
+	 */
+	public long getGeneration() {
+		return generation;
 	}
 
 	/**
@@ -175,12 +313,16 @@ public class InvertedIndex {
 	 * @param other The InvertedIndex entries to add
 	 */
 	public void addAll(InvertedIndex other) {
+		generation++;
 		for (Map.Entry<String, TreeMap<String, TreeSet<Integer>>> entry : other.invertedIndex.entrySet()) {
 			String word = entry.getKey();
 			TreeMap<String, TreeSet<Integer>> locations = entry.getValue();
 			TreeMap<String, TreeSet<Integer>> thisLocations = this.invertedIndex.get(word);
 			if (thisLocations == null) {
 				this.invertedIndex.put(word, locations);
+				if (surfaces != null && other.surfaces == null) {
+					recordSurface(word, word);
+				}
 			} else {
 				for (Map.Entry<String, TreeSet<Integer>> locationEntry : locations.entrySet()) {
 					String location = locationEntry.getKey();
@@ -194,6 +336,11 @@ public class InvertedIndex {
 				}
 			}
 		}
+		if (other.surfaces != null) {
+			for (Map.Entry<String, String> entry : other.surfaces.entrySet()) {
+				recordSurface(entry.getKey(), entry.getValue());
+			}
+		}
 		for (Map.Entry<String, Integer> entry : other.counts.entrySet()) {
 			String location = entry.getKey();
 			int count = entry.getValue();
@@ -212,9 +359,14 @@ public class InvertedIndex {
 	 * @param position The position of the word in the file
 	 */
 	public void addWord(String word, String location, int position) {
-		invertedIndex.putIfAbsent(word, new TreeMap<>());
-		invertedIndex.get(word).putIfAbsent(location, new TreeSet<>());
-		invertedIndex.get(word).get(location).add(position);
+		generation++;
+		TreeMap<String, TreeSet<Integer>> locations = invertedIndex.get(word);
+		if (locations == null) {
+			locations = new TreeMap<>();
+			invertedIndex.put(word, locations);
+		}
+		locations.putIfAbsent(location, new TreeSet<>());
+		locations.get(location).add(position);
 		int checkCount = counts.getOrDefault(location, 0);
 		if (position > checkCount) {
 			counts.put(location, position);
@@ -259,7 +411,339 @@ public class InvertedIndex {
 	 * @return A list of search results
 	 */
 	public List<InvertedIndex.SearchResult> search(Set<String> queries, boolean partial) {
-		return partial ? partialSearch(queries) : exactSearch(queries);
+		return search(queries, SearchOptions.of(partial));
+	}
+
+	/**
+	 * Searches the inverted index for the specified queries by planning the
+	 * search and then running the plan.
+	 *
+	 * @param queries The set of queries to search for
+	 * @param options How to search for the queries
+	 * @return A list of search results
+	 * @see #plan(Set, SearchOptions)
+	 */
+	public List<SearchResult> search(Set<String> queries, SearchOptions options) {
+		return execute(plan(queries, options));
+	}
+
+	/**
+	 * Searches the inverted index for a parsed query line. A query with only
+	 * ordinary words is searched exactly like those words. Otherwise every word,
+	 * wildcard pattern, and positional clause is matched separately, and the
+	 * matches are combined with the operator in the options. Wildcard patterns
+	 * and positional clauses always match whole words, even in a partial search.
+	 *
+	 * @param query   The parsed query to search for
+	 * @param options How to search for the query
+	 * @return A list of search results
+	 */
+	public List<SearchResult> search(QueryParser.Query query, SearchOptions options) {
+		if (query.isSimple()) {
+			return execute(plan(query.terms(), options, query.words()));
+		}
+
+		Deadline deadline = options.deadline();
+		ArrayList<Map<String, Integer>> clauses = new ArrayList<>(clauseMatches(query, options, deadline).values());
+
+		Map<String, Integer> matched;
+		if (options.conjunctive()) {
+			clauses.sort(Comparator.comparingInt(Map::size));
+			matched = new LinkedHashMap<>(clauses.get(0));
+			for (int i = 1; i < clauses.size() && !matched.isEmpty(); i++) {
+				Map<String, Integer> clause = clauses.get(i);
+				matched.keySet().retainAll(clause.keySet());
+				matched.replaceAll((location, count) -> count + clause.get(location));
+			}
+		} else {
+			matched = new LinkedHashMap<>();
+			for (Map<String, Integer> clause : clauses) {
+				clause.forEach((location, count) -> matched.merge(location, count, Integer::sum));
+			}
+		}
+
+		ArrayList<SearchResult> results = new ArrayList<>(matched.size());
+		for (Map.Entry<String, Integer> entry : matched.entrySet()) {
+			SearchResult result = new SearchResult(entry.getKey());
+			result.updateCount(entry.getValue());
+			results.add(result);
+		}
+		return finish(results, deadline);
+	}
+
+	/**
+	 * Finds the matches of every word, wildcard pattern, and positional clause of
+	 * a parsed query line.
+	 *
+	 * @param query    The parsed query
+	 * @param options  How to search for the query
+	 * @param deadline The deadline of the search
+	 * @return A map from the normalized form of each clause to the number of
+	 *         matches at each location, in the order of the normalized query
+	 */
+	private LinkedHashMap<String, Map<String, Integer>> clauseMatches(QueryParser.Query query, SearchOptions options,
+			Deadline deadline) {
+		LinkedHashMap<String, Map<String, Integer>> clauses = new LinkedHashMap<>();
+		for (String term : query.terms()) {
+			clauses.put(term, termMatches(term, options.partial(), deadline));
+		}
+		for (String pattern : query.wildcards()) {
+			clauses.put(pattern, wildcardMatches(pattern, deadline));
+		}
+		for (Map.Entry<String, QueryParser.Positional> entry : query.positional().entrySet()) {
+			QueryParser.Positional clause = entry.getValue();
+			clauses.put(entry.getKey(), clause.isPhrase() ? phraseMatches(clause.words(), deadline)
+					: proximityMatches(clause.words().get(0), clause.words().get(1), clause.within(), deadline));
+		}
+		return clauses;
+	}
+
+	/**
+	 * Sorts the results of a search, and marks them as truncated if the search
+	 * stopped at its deadline.
+	 *
+	 * @param results  The results found
+	 * @param deadline The deadline of the search
+	 * @return The sorted results
+	 * @see SearchResults
+	 */
+	private static List<SearchResult> finish(List<SearchResult> results, Deadline deadline) {
+		Collections.sort(results);
+		return new SearchResults(results, deadline.isExpired());
+	}
+
+	/**
+	 * Determines whether search results are incomplete because the search stopped
+	 * at its deadline.
+	 *
+	 * @param results The search results
+	 * @return True if the results were cut short
+	 * @see SearchOptions#timeout()
+	 */
+	public static boolean isTruncated(List<SearchResult> results) {
+		return results instanceof SearchResults found && found.isTruncated();
+	}
+
+	/**
+	 * Returns an unmodifiable view of search results that keeps whether they were
+	 * cut short, unlike {@link Collections#unmodifiableList(List)}.
+	 *
+	 * @param results The search results
+	 * @return The search results, which cannot be modified
+	 * @see #isTruncated(List)
+	 */
+	public static List<SearchResult> unmodifiable(List<SearchResult> results) {
+		return results instanceof SearchResults ? results : Collections.unmodifiableList(results);
+	}
+
+	/**
+	 * Finds the number of matches of an ordinary query word at each location.
+	 *
+	 * @param term     The query word
+	 * @param partial  Whether to match every word that starts with the query word
+	 * @param deadline The deadline of the search
+	 * @return A map from location to number of matches
+	 */
+	private Map<String, Integer> termMatches(String term, boolean partial, Deadline deadline) {
+		LinkedHashMap<String, Integer> matches = new LinkedHashMap<>();
+		if (partial) {
+			PrefixPostingCache.Postings postings = PrefixPostingCache.isCached(term) ? prefixPostings(term, deadline)
+					: mergePrefix(term, deadline);
+			for (int i = 0; i < postings.size(); i++) {
+				matches.put(postings.locations()[i], postings.counts()[i]);
+			}
+		} else {
+			TreeMap<String, TreeSet<Integer>> locations = invertedIndex.get(term);
+			if (locations != null) {
+				for (Map.Entry<String, TreeSet<Integer>> entry : locations.entrySet()) {
+					if (deadline.check()) {
+						break;
+					}
+					matches.put(entry.getKey(), entry.getValue().size());
+				}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Finds the number of matches of a wildcard pattern at each location.
+	 *
+	 * @param pattern  The wildcard pattern
+	 * @param deadline The deadline of the search
+	 * @return A map from location to number of matches
+	 */
+	private Map<String, Integer> wildcardMatches(String pattern, Deadline deadline) {
+		LinkedHashMap<String, Integer> matches = new LinkedHashMap<>();
+		for (String word : wildcardWords(pattern, deadline)) {
+			for (Map.Entry<String, TreeSet<Integer>> entry : invertedIndex.get(word).entrySet()) {
+				if (deadline.check()) {
+					return matches;
+				}
+				matches.merge(entry.getKey(), entry.getValue().size(), Integer::sum);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Finds the stems of the words that match a wildcard pattern. When wildcard
+	 * search is enabled, the pattern is matched against the surface words, which
+	 * the k-gram index narrows down when the pattern has enough letters in a row,
+	 * and each match is expanded to its stem. Otherwise the pattern is matched
+	 * against the stems themselves. Without k-grams to narrow them down, only the
+	 * words starting with the letters before the first wildcard are checked.
+	 *
+	 * @param pattern  The wildcard pattern
+	 * @param deadline The deadline of the search
+	 * @return The matching stems
+	 */
+	private Collection<String> wildcardWords(String pattern, Deadline deadline) {
+		NavigableMap<String, ?> words = kgrams == null ? invertedIndex : surfaces;
+		Collection<String> candidates = kgrams == null ? null : kgrams.candidates(pattern);
+		if (candidates == null) {
+			String prefix = pattern.substring(0, pattern.indexOf(KGramIndex.WILDCARD));
+			candidates = words.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet();
+		}
+
+		Pattern regex = KGramIndex.compile(pattern);
+		TreeSet<String> stems = new TreeSet<>();
+		for (String word : candidates) {
+			if (deadline.check()) {
+				break;
+			}
+			if (regex.matcher(word).matches()) {
+				String stem = kgrams == null ? word : surfaces.get(word);
+				if (invertedIndex.containsKey(stem)) {
+					stems.add(stem);
+				}
+			}
+		}
+		return stems;
+	}
+
+	/**
+	 * Finds the number of times a phrase appears at each location. Only the
+	 * locations of the rarest word are checked, and within a location the
+	 * candidate start of the phrase jumps straight to the next position that
+	 * could line up with every word.
+	 *
+	 * @param words    The stems of the phrase, in order
+	 * @param deadline The deadline of the search
+	 * @return A map from location to number of times the phrase appears
+	 */
+	private Map<String, Integer> phraseMatches(List<String> words, Deadline deadline) {
+		LinkedHashMap<String, Integer> matches = new LinkedHashMap<>();
+		ArrayList<TreeMap<String, TreeSet<Integer>>> postings = new ArrayList<>(words.size());
+		TreeMap<String, TreeSet<Integer>> rarest = null;
+		for (String word : words) {
+			TreeMap<String, TreeSet<Integer>> locations = invertedIndex.get(word);
+			if (locations == null) {
+				return matches;
+			}
+			postings.add(locations);
+			if (rarest == null || locations.size() < rarest.size()) {
+				rarest = locations;
+			}
+		}
+
+		locations: for (String location : rarest.keySet()) {
+			if (deadline.check()) {
+				break;
+			}
+			ArrayList<TreeSet<Integer>> positions = new ArrayList<>(words.size());
+			for (TreeMap<String, TreeSet<Integer>> locations : postings) {
+				TreeSet<Integer> found = locations.get(location);
+				if (found == null) {
+					continue locations;
+				}
+				positions.add(found);
+			}
+
+			int count = countPhrase(positions);
+			if (count > 0) {
+				matches.put(location, count);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Counts how many times the words of a phrase appear one after another. Each
+	 * word skips ahead with {@link TreeSet#ceiling(Object)} to the first position
+	 * at or after where it would have to be, and a miss moves the start of the
+	 * phrase ahead to match.
+	 *
+	 * @param positions The positions of each word of the phrase, in order
+	 * @return The number of times the phrase appears
+	 */
+	private static int countPhrase(List<TreeSet<Integer>> positions) {
+		int count = 0;
+		Integer start = positions.get(0).first();
+
+		starts: while (start != null) {
+			for (int i = 1; i < positions.size(); i++) {
+				Integer next = positions.get(i).ceiling(start + i);
+				if (next == null) {
+					break starts;
+				}
+				if (next != start + i) {
+					start = positions.get(0).ceiling(next - i);
+					continue starts;
+				}
+			}
+			count++;
+			start = positions.get(0).higher(start);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Finds the number of times two words appear near each other at each
+	 * location, counted as the positions of the first word that have the second
+	 * word within the given distance in either direction.
+	 *
+	 * @param first    The first stem
+	 * @param second   The second stem
+	 * @param within   The maximum distance between the words
+	 * @param deadline The deadline of the search
+	 * @return A map from location to number of matches
+	 */
+	private Map<String, Integer> proximityMatches(String first, String second, int within, Deadline deadline) {
+		LinkedHashMap<String, Integer> matches = new LinkedHashMap<>();
+		TreeMap<String, TreeSet<Integer>> firsts = invertedIndex.get(first);
+		TreeMap<String, TreeSet<Integer>> seconds = invertedIndex.get(second);
+		if (firsts == null || seconds == null) {
+			return matches;
+		}
+
+		for (Map.Entry<String, TreeSet<Integer>> entry : firsts.entrySet()) {
+			if (deadline.check()) {
+				break;
+			}
+			TreeSet<Integer> others = seconds.get(entry.getKey());
+			if (others == null) {
+				continue;
+			}
+
+			int count = 0;
+			for (int position : entry.getValue()) {
+				Integer nearest = others.ceiling(position - within);
+				if (nearest != null && nearest == position) {
+					// the same word is never near itself
+					nearest = others.higher(position);
+				}
+				if (nearest != null && nearest <= position + within) {
+					count++;
+				}
+			}
+
+			if (count > 0) {
+				matches.put(entry.getKey(), count);
+			}
+		}
+		return matches;
 	}
 
 	/**
@@ -269,13 +753,7 @@ public class InvertedIndex {
 	 * @return A list of search results for each query
 	 */
 	public List<SearchResult> exactSearch(Set<String> queries) {
-		Map<String, InvertedIndex.SearchResult> resultMap = new HashMap<>();
-		ArrayList<SearchResult> results = new ArrayList<>();
-		for (String query : queries) {
-			processLocations(query, resultMap, results, invertedIndex.get(query));
-		}
-		Collections.sort(results);
-		return results;
+		return search(queries, SearchOptions.EXACT);
 	}
 
 	/**
@@ -285,20 +763,626 @@ public class InvertedIndex {
 	 * @return A list of search results for each query
 	 */
 	public List<SearchResult> partialSearch(Set<String> queries) {
+		return search(queries, SearchOptions.PARTIAL);
+	}
+
+	/**
+	 * Plans a search. The postings of every query are looked up first to find
+	 * how many locations each one matches. Queries that match nothing are
+	 * dropped, and the rest are ordered from rarest to most common, so a
+	 * conjunctive search can intersect starting from the smallest postings. The
+	 * deadline of the search starts with the plan, so looking up the postings
+	 * counts against it too.
+	 *
+	 * @param queries The set of queries to plan a search for
+	 * @param options How to search for the queries
+	 * @return The plan for the search
+	 */
+	public QueryPlan plan(Set<String> queries, SearchOptions options) {
+		return plan(queries, options, Map.of());
+	}
+
+	/**
+	 * Plans a search, matching fuzzy queries by the words they were written as
+	 * when those are known.
+	 *
+	 * @param queries The set of queries to plan a search for
+	 * @param options How to search for the queries
+	 * @param words   The cleaned word each query was written as, if known
+	 * @return The plan for the search
+	 * @see #plan(Set, SearchOptions)
+	 */
+	private QueryPlan plan(Set<String> queries, SearchOptions options, Map<String, String> words) {
+		QueryPlan plan = new QueryPlan(queries, options);
+		for (String query : queries) {
+			if (options.partial()) {
+				PrefixPostingCache.Postings postings = PrefixPostingCache.isCached(query)
+						? prefixPostings(query, plan.deadline)
+						: mergePrefix(query, plan.deadline);
+				plan.add(new QueryPlan.Step(query, postings.size(), null, postings, null));
+			} else if (options.isFuzzy()) {
+				TreeMap<String, Integer> expansions = fuzzyWords(query, words.get(query), options.fuzzy(),
+						plan.deadline);
+				int frequency = 0;
+				for (String word : expansions.keySet()) {
+					frequency += invertedIndex.get(word).size();
+				}
+				plan.add(new QueryPlan.Step(query, frequency, null, null, expansions));
+			} else {
+				TreeMap<String, TreeSet<Integer>> locations = invertedIndex.get(query);
+				plan.add(new QueryPlan.Step(query, locations == null ? 0 : locations.size(), locations, null, null));
+			}
+		}
+		plan.order();
+		return plan;
+	}
+
+	/**
+	 * Plans the search of a parsed query line. A query with only ordinary words is
+	 * planned exactly like those words. Otherwise every word, wildcard pattern,
+	 * and positional clause is a step of the plan, matched the same way as
+	 * {@link #search(QueryParser.Query, SearchOptions)} matches it, so fuzzy
+	 * edits do not apply.
+	 *
+	 * @param query   The parsed query to plan a search for
+	 * @param options How to search for the query
+	 * @return The plan for the search
+	 */
+	public QueryPlan plan(QueryParser.Query query, SearchOptions options) {
+		if (query.isSimple()) {
+			return plan(query.terms(), options, query.words());
+		}
+
+		LinkedHashSet<String> clauses = new LinkedHashSet<>(query.terms());
+		clauses.addAll(query.wildcards());
+		clauses.addAll(query.positional().keySet());
+
+		SearchOptions clauseOptions = options.withFuzzy(0);
+		QueryPlan plan = new QueryPlan(clauses, clauseOptions);
+		for (Map.Entry<String, Map<String, Integer>> clause : clauseMatches(query, clauseOptions, plan.deadline)
+				.entrySet()) {
+			plan.add(new QueryPlan.Step(clause.getKey(), clause.getValue().size(), null, null, null));
+		}
+		plan.order();
+		return plan;
+	}
+
+	/**
+	 * Runs a search plan. A disjunctive plan adds up the matches of every step. A
+	 * conjunctive plan only keeps the locations matched by every step. If the
+	 * deadline of the plan passes, the results found so far are returned.
+	 *
+	 * @param plan The plan to run
+	 * @return A list of search results
+	 */
+	private List<SearchResult> execute(QueryPlan plan) {
+		if (plan.options.isFuzzy()) {
+			return executeFuzzy(plan);
+		}
+
 		Map<String, InvertedIndex.SearchResult> resultMap = new HashMap<>();
 		ArrayList<SearchResult> results = new ArrayList<>();
-		for (String query : queries) {
-			for (Map.Entry<String, TreeMap<String, TreeSet<Integer>>> entry : invertedIndex.tailMap(query).entrySet()) {
-				String word = entry.getKey();
-				if (word.startsWith(query)) {
-					processLocations(query, resultMap, results, entry.getValue());
+
+		if (!plan.options.conjunctive()) {
+			for (QueryPlan.Step step : plan.steps) {
+				if (step.postings != null) {
+					processPostings(resultMap, results, step.postings);
 				} else {
+					processLocations(step.query, resultMap, results, step.locations, plan.deadline);
+				}
+			}
+		} else if (!plan.isEmpty()) {
+			Map<String, Integer> matched = plan.options.partial() ? intersectPostings(plan.steps, plan.deadline)
+					: intersectLocations(plan.steps, plan.deadline);
+			for (Map.Entry<String, Integer> entry : matched.entrySet()) {
+				SearchResult result = new SearchResult(entry.getKey());
+				result.updateCount(entry.getValue());
+				resultMap.put(entry.getKey(), result);
+				results.add(result);
+			}
+		}
+
+		return finish(results, plan.deadline);
+	}
+
+	/**
+	 * Runs a fuzzy search plan. Every step matches the words within a few edits
+	 * of its query, and each match counts less the more edits it took.
+	 *
+	 * @param plan The plan to run
+	 * @return A list of search results
+	 * @see #FUZZY_WEIGHT
+	 */
+	private List<SearchResult> executeFuzzy(QueryPlan plan) {
+		Map<String, InvertedIndex.SearchResult> resultMap = new HashMap<>();
+		ArrayList<SearchResult> results = new ArrayList<>();
+		if (plan.isEmpty()) {
+			return finish(results, plan.deadline);
+		}
+
+		Set<String> matched = null;
+		if (plan.options.conjunctive()) {
+			for (QueryPlan.Step step : plan.steps) {
+				HashSet<String> locations = new HashSet<>();
+				for (String word : step.expansions.keySet()) {
+					locations.addAll(invertedIndex.get(word).keySet());
+				}
+				if (matched == null) {
+					matched = locations;
+				} else {
+					matched.retainAll(locations);
+				}
+			}
+		}
+
+		for (QueryPlan.Step step : plan.steps) {
+			for (Map.Entry<String, Integer> expansion : step.expansions.entrySet()) {
+				TreeMap<String, TreeSet<Integer>> locations = invertedIndex.get(expansion.getKey());
+				double weight = Math.pow(FUZZY_WEIGHT, expansion.getValue());
+				for (Map.Entry<String, TreeSet<Integer>> entry : locations.entrySet()) {
+					if (plan.deadline.check()) {
+						return finish(results, plan.deadline);
+					}
+					String location = entry.getKey();
+					if (matched != null && !matched.contains(location)) {
+						continue;
+					}
+					SearchResult result = resultMap.get(location);
+					if (result == null) {
+						result = new SearchResult(location);
+						resultMap.put(location, result);
+						results.add(result);
+					}
+					result.updateCount(entry.getValue().size(), weight);
+				}
+			}
+		}
+
+		return finish(results, plan.deadline);
+	}
+
+	/**
+	 * Finds the stems within a number of edits of a query. The stem of the query
+	 * is matched against the stems. A misspelled word often stems differently
+	 * than the word it was meant to be, so when the surface words are kept and
+	 * the query word is known as it was written, the written word is also matched
+	 * against the surface words, and each match is expanded to its stem.
+	 *
+	 * @param query    The stem of the query
+	 * @param word     The cleaned word the query was written as, or null if not
+	 *                 known
+	 * @param maxEdits The maximum number of insertions, deletions, and
+	 *                 substitutions
+	 * @param deadline The deadline of the search
+	 * @return A sorted map from each matching stem to its fewest edits
+	 * @see #enableSurfaces()
+	 */
+	private TreeMap<String, Integer> fuzzyWords(String query, String word, int maxEdits, Deadline deadline) {
+		TreeMap<String, Integer> stems = fuzzyMatches(query, invertedIndex, maxEdits, deadline);
+		if (surfaces == null || word == null) {
+			return stems;
+		}
+
+		for (Map.Entry<String, Integer> match : fuzzyMatches(word, surfaces, maxEdits, deadline).entrySet()) {
+			String stem = surfaces.get(match.getKey());
+			if (invertedIndex.containsKey(stem)) {
+				stems.merge(stem, match.getValue(), Math::min);
+			}
+		}
+		return stems;
+	}
+
+	/**
+	 * Finds every word within a number of edits of a query. The sorted words are
+	 * walked while keeping one row of the edit distance table per character of
+	 * the current word, which is the state of a Levenshtein automaton for the
+	 * query. Words that share a prefix with the previous word reuse its rows, and
+	 * as soon as every entry of a row is over the limit, no word with that prefix
+	 * can match, so the walk jumps straight past all of them.
+	 *
+	 * @param query    The query to match
+	 * @param words    The sorted words to walk
+	 * @param maxEdits The maximum number of insertions, deletions, and
+	 *                 substitutions
+	 * @param deadline The deadline of the search
+	 * @return A sorted map from each matching word to its number of edits
+	 */
+	private static TreeMap<String, Integer> fuzzyMatches(String query, NavigableMap<String, ?> words, int maxEdits,
+			Deadline deadline) {
+		TreeMap<String, Integer> matches = new TreeMap<>();
+		int columns = query.length() + 1;
+		int[][] rows = new int[query.length() + maxEdits + 1][columns];
+		for (int j = 0; j < columns; j++) {
+			rows[0][j] = j;
+		}
+
+		String previous = "";
+		int valid = 0;
+		String word = words.isEmpty() ? null : words.firstKey();
+
+		walk: while (word != null && !deadline.check()) {
+			int shared = Math.min(valid, commonPrefix(previous, word));
+			for (int i = shared + 1; i <= word.length(); i++) {
+				if (i >= rows.length) {
+					// too long to match, and so is every word with this prefix
+					word = words.ceilingKey(word.substring(0, i) + Character.MAX_VALUE);
+					continue walk;
+				}
+
+				char c = word.charAt(i - 1);
+				int[] above = rows[i - 1];
+				int[] row = rows[i];
+				row[0] = i;
+				int best = row[0];
+				for (int j = 1; j < columns; j++) {
+					int substitute = above[j - 1] + (query.charAt(j - 1) == c ? 0 : 1);
+					row[j] = Math.min(substitute, Math.min(above[j], row[j - 1]) + 1);
+					best = Math.min(best, row[j]);
+				}
+
+				previous = word;
+				valid = i;
+				if (best > maxEdits) {
+					word = words.ceilingKey(word.substring(0, i) + Character.MAX_VALUE);
+					continue walk;
+				}
+			}
+
+			previous = word;
+			valid = word.length();
+			if (rows[word.length()][query.length()] <= maxEdits) {
+				matches.put(word, rows[word.length()][query.length()]);
+			}
+			word = words.higherKey(word);
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Returns the length of the longest common prefix of two words.
+	 *
+	 * @param first  The first word
+	 * @param second The second word
+	 * @return The number of leading characters the words share
+	 */
+	private static int commonPrefix(String first, String second) {
+		int length = Math.min(first.length(), second.length());
+		for (int i = 0; i < length; i++) {
+			if (first.charAt(i) != second.charAt(i)) {
+				return i;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Finds the locations that every exact step matches. The rarest step drives
+	 * the intersection, and each other step skips ahead to the first location at
+	 * or after the current candidate, which in turn lets the rarest step skip
+	 * ahead past locations that cannot match.
+	 *
+	 * @param steps    The steps ordered from rarest to most common
+	 * @param deadline The deadline of the search
+	 * @return A map from each location matched by every step to the total number
+	 *         of matches, in sorted order
+	 */
+	private static Map<String, Integer> intersectLocations(List<QueryPlan.Step> steps, Deadline deadline) {
+		LinkedHashMap<String, Integer> matched = new LinkedHashMap<>();
+		TreeMap<String, TreeSet<Integer>> rarest = steps.get(0).locations;
+		String candidate = rarest.firstKey();
+
+		candidates: while (candidate != null && !deadline.check()) {
+			for (int i = 1; i < steps.size(); i++) {
+				String next = steps.get(i).locations.ceilingKey(candidate);
+				if (next == null) {
+					break candidates;
+				}
+				if (!next.equals(candidate)) {
+					candidate = rarest.ceilingKey(next);
+					continue candidates;
+				}
+			}
+
+			int count = 0;
+			for (QueryPlan.Step step : steps) {
+				count += step.locations.get(candidate).size();
+			}
+			matched.put(candidate, count);
+			candidate = rarest.higherKey(candidate);
+		}
+
+		return matched;
+	}
+
+	/**
+	 * Finds the locations that every partial step matches. Merged postings are
+	 * not sorted by location, so the locations of the rarest step are narrowed
+	 * down by each following step in turn instead. Until the last step is done,
+	 * no location is known to match every step, so if the deadline passes first
+	 * nothing is returned.
+	 *
+	 * @param steps    The steps ordered from rarest to most common
+	 * @param deadline The deadline of the search
+	 * @return A map from each location matched by every step to the total number
+	 *         of matches
+	 */
+	private static Map<String, Integer> intersectPostings(List<QueryPlan.Step> steps, Deadline deadline) {
+		PrefixPostingCache.Postings rarest = steps.get(0).postings;
+		LinkedHashMap<String, Integer> matched = new LinkedHashMap<>();
+		for (int i = 0; i < rarest.size(); i++) {
+			matched.put(rarest.locations()[i], rarest.counts()[i]);
+		}
+
+		for (int step = 1; step < steps.size() && !matched.isEmpty(); step++) {
+			PrefixPostingCache.Postings postings = steps.get(step).postings;
+			LinkedHashMap<String, Integer> narrowed = new LinkedHashMap<>();
+			for (int i = 0; i < postings.size(); i++) {
+				if (deadline.check()) {
+					return new LinkedHashMap<>();
+				}
+				Integer count = matched.get(postings.locations()[i]);
+				if (count != null) {
+					narrowed.put(postings.locations()[i], count + postings.counts()[i]);
+				}
+			}
+			matched = narrowed;
+		}
+
+		return matched;
+	}
+
+	/**
+	 * Returns the merged postings of every word that starts with a short prefix,
+	 * from the prefix cache if possible.
+	 *
+	 * @param prefix The prefix to get postings for
+	 * @return The merged postings for the prefix
+	 * @see PrefixPostingCache
+	 */
+	private PrefixPostingCache.Postings prefixPostings(String prefix) {
+		return prefixPostings(prefix, Deadline.NONE);
+	}
+
+	/**
+	 * Returns the merged postings of every word that starts with a short prefix,
+	 * from the prefix cache if possible. Postings cut short by the deadline are
+	 * not cached.
+	 *
+	 * @param prefix   The prefix to get postings for
+	 * @param deadline The deadline of the search
+	 * @return The merged postings for the prefix
+	 * @see PrefixPostingCache
+	 */
+	private PrefixPostingCache.Postings prefixPostings(String prefix, Deadline deadline) {
+		return prefixCache.get(prefix, generation, word -> mergePrefix(word, deadline), deadline);
+	}
+
+	/**
+	 * Merges the locations of every word that starts with a prefix.
+	 *
+	 * @param prefix The prefix to merge postings for
+	 * @return The merged postings for the prefix
+	 */
+	private PrefixPostingCache.Postings mergePrefix(String prefix) {
+		return mergePrefix(prefix, Deadline.NONE);
+	}
+
+	/**
+	 * Merges the locations of every word that starts with a prefix, stopping early
+	 * if the deadline passes.
+	 *
+	 * @param prefix   The prefix to merge postings for
+	 * @param deadline The deadline of the search
+	 * @return The merged postings for the prefix
+	 */
+	private PrefixPostingCache.Postings mergePrefix(String prefix, Deadline deadline) {
+		LinkedHashMap<String, Integer> merged = new LinkedHashMap<>();
+		words: for (Map.Entry<String, TreeMap<String, TreeSet<Integer>>> entry : invertedIndex.tailMap(prefix)
+				.entrySet()) {
+			if (!entry.getKey().startsWith(prefix)) {
+				break;
+			}
+			for (Map.Entry<String, TreeSet<Integer>> location : entry.getValue().entrySet()) {
+				if (deadline.check()) {
+					break words;
+				}
+				merged.merge(location.getKey(), location.getValue().size(), Integer::sum);
+			}
+		}
+
+		String[] locations = new String[merged.size()];
+		int[] matches = new int[merged.size()];
+		int i = 0;
+		for (Map.Entry<String, Integer> entry : merged.entrySet()) {
+			locations[i] = entry.getKey();
+			matches[i] = entry.getValue();
+			i++;
+		}
+		return new PrefixPostingCache.Postings(locations, matches);
+	}
+
+	/**
+	 * Searches the inverted index for a batch of queries at once. Every posting
+	 * list needed by the batch is traversed only once, no matter how many queries
+	 * in the batch share it.
+	 *
+	 * @param batch   The sets of queries to search for
+	 * @param partial Boolean for whether or not to partial search
+	 * @return A list of search results for each set of queries, in batch order
+	 */
+	public List<List<SearchResult>> searchBatch(List<? extends Set<String>> batch, boolean partial) {
+		return partial ? partialSearchBatch(batch) : exactSearchBatch(batch);
+	}
+
+	/**
+	 * Performs an exact search for a batch of queries. The queries are grouped by
+	 * word, and the locations of each word are visited once to update the results
+	 * of every query that contains it.
+	 *
+	 * @param batch The sets of queries to search for
+	 * @return A list of search results for each set of queries, in batch order
+	 */
+	public List<List<SearchResult>> exactSearchBatch(List<? extends Set<String>> batch) {
+		BatchResults results = new BatchResults(batch.size());
+		TreeMap<String, List<Integer>> words = groupBatch(batch);
+		for (Map.Entry<String, List<Integer>> entry : words.entrySet()) {
+			results.processLocations(entry.getValue(), invertedIndex.get(entry.getKey()));
+		}
+		return results.sorted();
+	}
+
+	/**
+	 * Performs a partial search for a batch of queries. The queries are grouped by
+	 * prefix, and each range of words that starts with a prefix is walked once. A
+	 * prefix that falls inside the range of a shorter prefix is handled during
+	 * the walk of the shorter prefix instead of walking the range again. Short
+	 * prefixes are looked up in the prefix cache instead of being walked.
+	 *
+	 * @param batch The sets of queries to search for
+	 * @return A list of search results for each set of queries, in batch order
+	 */
+	public List<List<SearchResult>> partialSearchBatch(List<? extends Set<String>> batch) {
+		BatchResults results = new BatchResults(batch.size());
+		TreeMap<String, List<Integer>> prefixes = groupBatch(batch);
+
+		while (!prefixes.isEmpty()) {
+			// the first prefix is not inside any other, so walk its whole range
+			String root = prefixes.firstKey();
+			if (PrefixPostingCache.isCached(root)) {
+				results.processPostings(prefixes.remove(root), prefixPostings(root));
+				continue;
+			}
+
+			ArrayList<Map.Entry<String, List<Integer>>> covered = new ArrayList<>();
+			for (Map.Entry<String, List<Integer>> entry : prefixes.tailMap(root).entrySet()) {
+				if (!entry.getKey().startsWith(root)) {
 					break;
 				}
+				covered.add(entry);
+			}
+
+			for (Map.Entry<String, TreeMap<String, TreeSet<Integer>>> entry : invertedIndex.tailMap(root).entrySet()) {
+				String word = entry.getKey();
+				if (!word.startsWith(root)) {
+					break;
+				}
+				for (Map.Entry<String, List<Integer>> prefix : covered) {
+					if (word.startsWith(prefix.getKey())) {
+						results.processLocations(prefix.getValue(), entry.getValue());
+					}
+				}
+			}
+
+			for (Map.Entry<String, List<Integer>> prefix : covered) {
+				prefixes.remove(prefix.getKey());
 			}
 		}
-		Collections.sort(results);
-		return results;
+
+		return results.sorted();
+	}
+
+	/**
+	 * Groups a batch of queries by word.
+	 *
+	 * @param batch The sets of queries to group
+	 * @return A sorted map from each word to the positions in the batch of the
+	 *         queries that contain it
+	 */
+	private static TreeMap<String, List<Integer>> groupBatch(List<? extends Set<String>> batch) {
+		TreeMap<String, List<Integer>> words = new TreeMap<>();
+		for (int i = 0; i < batch.size(); i++) {
+			for (String word : batch.get(i)) {
+				words.computeIfAbsent(word, w -> new ArrayList<>()).add(i);
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * The search results being built for every query in a batch.
+	 */
+	private class BatchResults {
+		/** Map from location to search result, for each query. */
+		private final ArrayList<Map<String, SearchResult>> resultMaps;
+
+		/** Search results in the order they were found, for each query. */
+		private final ArrayList<ArrayList<SearchResult>> results;
+
+		/**
+		 * Initializes empty results for a batch.
+		 *
+		 * @param size The number of queries in the batch
+		 */
+		private BatchResults(int size) {
+			this.resultMaps = new ArrayList<>(size);
+			this.results = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				resultMaps.add(new HashMap<>());
+				results.add(new ArrayList<>());
+			}
+		}
+
+		/**
+		 * Visits each location once and updates the results of every listed query.
+		 *
+		 * @param queries   The positions in the batch of the queries to update
+		 * @param locations The locations to visit, may be {@code null}
+		 */
+		private void processLocations(List<Integer> queries, TreeMap<String, TreeSet<Integer>> locations) {
+			if (locations != null) {
+				for (Map.Entry<String, TreeSet<Integer>> entry : locations.entrySet()) {
+					String location = entry.getKey();
+					int count = entry.getValue().size();
+					for (int query : queries) {
+						SearchResult result = resultMaps.get(query).get(location);
+						if (result == null) {
+							result = new SearchResult(location);
+							resultMaps.get(query).put(location, result);
+							results.get(query).add(result);
+						}
+						result.updateCount(count);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Visits each merged posting once and updates the results of every listed
+		 * query.
+		 *
+		 * @param queries  The positions in the batch of the queries to update
+		 * @param postings The merged postings to visit
+		 */
+		private void processPostings(List<Integer> queries, PrefixPostingCache.Postings postings) {
+			for (int i = 0; i < postings.size(); i++) {
+				String location = postings.locations()[i];
+				int count = postings.counts()[i];
+				for (int query : queries) {
+					SearchResult result = resultMaps.get(query).get(location);
+					if (result == null) {
+						result = new SearchResult(location);
+						resultMaps.get(query).put(location, result);
+						results.get(query).add(result);
+					}
+					result.updateCount(count);
+				}
+			}
+		}
+
+		/**
+		 * Sorts and returns the results of every query.
+		 *
+		 * @return The sorted search results for each query, in batch order
+		 */
+		private List<List<SearchResult>> sorted() {
+			List<List<SearchResult>> sorted = new ArrayList<>(results.size());
+			for (ArrayList<SearchResult> list : results) {
+				Collections.sort(list);
+				sorted.add(list);
+			}
+			return sorted;
+		}
 	}
 
 	/**
@@ -308,11 +1392,15 @@ public class InvertedIndex {
 	 * @param resultMap the map containing search results
 	 * @param results   the list to store search results
 	 * @param locations the locations with the query
+	 * @param deadline  the deadline of the search
 	 */
 	private void processLocations(String query, Map<String, SearchResult> resultMap, List<SearchResult> results,
-			TreeMap<String, TreeSet<Integer>> locations) {
+			TreeMap<String, TreeSet<Integer>> locations, Deadline deadline) {
 		if (locations != null) {
 			for (Map.Entry<String, TreeSet<Integer>> entry : locations.entrySet()) {
+				if (deadline.check()) {
+					return;
+				}
 				String location = entry.getKey();
 				TreeSet<Integer> positions = entry.getValue();
 				int count = positions.size();
@@ -327,6 +1415,200 @@ public class InvertedIndex {
 		}
 	}
 
+	/**
+	 * Processes merged postings for a query
+	 *
+	 * @param resultMap the map containing search results
+	 * @param results   the list to store search results
+	 * @param postings  the merged postings of the query
+	 */
+	private void processPostings(Map<String, SearchResult> resultMap, List<SearchResult> results,
+			PrefixPostingCache.Postings postings) {
+		for (int i = 0; i < postings.size(); i++) {
+			String location = postings.locations()[i];
+			SearchResult result = resultMap.get(location);
+			if (result == null) {
+				result = new SearchResult(location);
+				resultMap.put(location, result);
+				results.add(result);
+			}
+			result.updateCount(postings.counts()[i]);
+		}
+	}
+
+	/**
+	 * The plan for a single search: the steps to take, ordered from the rarest
+	 * to the most common query, along with the estimated cost of each step.
+	 */
+	public static class QueryPlan {
+		/** The queries being searched for */
+		private final Set<String> queries;
+
+		/** How the queries are searched */
+		private final SearchOptions options;
+
+		/** The steps to take, ordered by frequency once planned */
+		private final ArrayList<Step> steps;
+
+		/** The queries that match nothing */
+		private final ArrayList<String> dropped;
+
+		/** The deadline of the search, started when the plan is made */
+		private final Deadline deadline;
+
+		/**
+		 * Initializes an empty plan.
+		 *
+		 * @param queries The queries being searched for
+		 * @param options How the queries are searched
+		 */
+		private QueryPlan(Set<String> queries, SearchOptions options) {
+			this.queries = queries;
+			this.options = options;
+			this.steps = new ArrayList<>();
+			this.dropped = new ArrayList<>();
+			this.deadline = options.deadline();
+		}
+
+		/**
+		 * Adds a step to the plan, or drops it if it matches nothing.
+		 *
+		 * @param step The step to add
+		 */
+		private void add(Step step) {
+			if (step.frequency == 0) {
+				dropped.add(step.query);
+			} else {
+				steps.add(step);
+			}
+		}
+
+		/**
+		 * Orders the steps from rarest to most common.
+		 */
+		private void order() {
+			steps.sort(Comparator.comparingInt(Step::frequency));
+		}
+
+		/**
+		 * Determines whether the plan can match no locations at all.
+		 *
+		 * @return true if the plan matches nothing
+		 */
+		public boolean isEmpty() {
+			return steps.isEmpty() || (options.conjunctive() && !dropped.isEmpty());
+		}
+
+		/**
+		 * Returns the estimated number of postings visited by the plan. A disjunctive
+		 * plan visits every posting of every step. A conjunctive plan probes each
+		 * other step at most once per location of the rarest step.
+		 *
+		 * @return The estimated cost of the plan
+		 */
+		public long cost() {
+			if (isEmpty()) {
+				return 0;
+			}
+			if (options.conjunctive()) {
+				return (long) steps.get(0).frequency * steps.size();
+			}
+			long cost = 0;
+			for (Step step : steps) {
+				cost += step.frequency;
+			}
+			return cost;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder plan = new StringBuilder();
+			plan.append(String.format("%s search (%s) for \"%s\": ",
+					options.partial() ? "partial" : options.isFuzzy() ? "fuzzy~" + options.fuzzy() : "exact",
+					options.operator(), String.join(" ", queries)));
+			if (isEmpty()) {
+				plan.append("no results");
+			} else {
+				for (int i = 0; i < steps.size(); i++) {
+					plan.append(i == 0 ? "" : " -> ");
+					plan.append(String.format("%s (%d locations)", steps.get(i).query, steps.get(i).frequency));
+					if (steps.get(i).expansions != null) {
+						plan.append(" via ").append(steps.get(i).expansions);
+					}
+				}
+			}
+			if (!dropped.isEmpty()) {
+				plan.append("; no matches for ").append(String.join(" ", dropped));
+			}
+			plan.append(String.format("; estimated cost %d", cost()));
+			if (deadline.isExpired()) {
+				plan.append("; planning stopped at the deadline");
+			}
+			return plan.toString();
+		}
+
+		/**
+		 * A single step of a plan: the postings of one query. Exact steps have the
+		 * locations of a word, partial steps have the merged postings of a prefix,
+		 * and fuzzy steps have the words close enough to the query.
+		 *
+		 * @param query     The query for this step
+		 * @param frequency The number of locations the query matches
+		 * @param locations  The locations and positions of an exact query
+		 * @param postings   The merged postings of a partial query
+		 * @param expansions The words matched by a fuzzy query and their edits
+		 */
+		private record Step(String query, int frequency, TreeMap<String, TreeSet<Integer>> locations,
+				PrefixPostingCache.Postings postings, TreeMap<String, Integer> expansions) {
+		}
+	}
+
+	/**
+	 * The sorted results of a search, along with whether the search stopped at
+	 * its deadline, in which case they are the best results found before it
+	 * stopped. The list cannot be modified.
+	 *
+	 * @see #isTruncated(List)
+	 */
+	public static class SearchResults extends AbstractList<SearchResult> implements RandomAccess {
+		/** The results found */
+		private final List<SearchResult> results;
+
+		/** Whether the search stopped at its deadline */
+		private final boolean truncated;
+
+		/**
+		 * Initializes the results of a search.
+		 *
+		 * @param results   The sorted results found
+		 * @param truncated Whether the search stopped at its deadline
+		 */
+		private SearchResults(List<SearchResult> results, boolean truncated) {
+			this.results = results;
+			this.truncated = truncated;
+		}
+
+		/**
+		 * Determines whether the search stopped at its deadline, so these results
+		 * may be incomplete.
+		 *
+		 * @return True if the results were cut short
+		 */
+		public boolean isTruncated() {
+			return truncated;
+		}
+
+		@Override
+		public SearchResult get(int index) {
+			return results.get(index);
+		}
+
+		@Override
+		public int size() {
+			return results.size();
+		}
+	}
+
 	/**
 	 * Represents a single search result containing information on location, total
 	 * words, count, and score
@@ -342,6 +1624,11 @@ public class InvertedIndex {
 		 */
 		private int count;
 
+		/**
+		 * The count of matches weighted by how closely each match fit the query
+		 */
+		private double weighted;
+
 		/**
 		 * The representing score of the search result
 		 */
@@ -356,6 +1643,7 @@ public class InvertedIndex {
 		public SearchResult(String location) {
 			this.location = location;
 			this.count = 0;
+			this.weighted = 0.0;
 			this.score = 0.0;
 		}
 
@@ -365,8 +1653,20 @@ public class InvertedIndex {
 		 * @param matches the number of matches to add
 		 */
 		private void updateCount(int matches) {
+			updateCount(matches, 1.0);
+		}
+
+		/**
+		 * Updates the match count with matches that only count for part of the
+		 * score, such as fuzzy matches
+		 *
+		 * @param matches the number of matches to add
+		 * @param weight  how much each match counts towards the score
+		 */
+		private void updateCount(int matches, double weight) {
 			this.count += matches;
-			this.score = (double) count / counts.get(this.location);
+			this.weighted += matches * weight;
+			this.score = weighted / counts.get(this.location);
 		}
 
 		/**
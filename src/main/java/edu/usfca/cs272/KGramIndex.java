@@ -0,0 +1,242 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An index from every k-gram (substring of length {@value #K}) of the surface
+ * words of an inverted index, as they were written before stemming, to the
+ * words that contain it. It answers wildcard patterns like {@code *ing} or
+ * {@code co*er} without scanning every word. The start and end of each word are
+ * marked with {@value #BOUNDARY}, so the pattern {@code co*er} only needs the
+ * words with both {@code $co} and {@code er$}.
+ *
+ * <p>
+ * Each word is given an id in the order it is added, so the ids in every
+ * posting list are already sorted and can be intersected by galloping. The
+ * candidates are always checked against the whole pattern, since k-grams do
+ * not capture the order or gaps between the pieces of a pattern.
+ */
+public class KGramIndex {
+	/** The length of each gram. */
+	public static final int K = 3;
+
+	/** Marks the start and end of a word. */
+	public static final char BOUNDARY = '$';
+
+	/** The wildcard that matches any number of characters. */
+	public static final char WILDCARD = '*';
+
+	/** Every word, by id. */
+	private final ArrayList<String> words;
+
+	/** The ids of the words that contain each gram, in increasing order. */
+	private final HashMap<String, IdList> grams;
+
+	/** Total number of ids across all posting lists. */
+	private long postings;
+
+	/**
+	 * Initializes an empty index.
+	 */
+	public KGramIndex() {
+		this.words = new ArrayList<>();
+		this.grams = new HashMap<>();
+		this.postings = 0;
+	}
+
+	/**
+	 * Adds a word that has not been added before.
+	 *
+	 * @param word the word to add
+	 */
+	public void add(String word) {
+		int id = words.size();
+		words.add(word);
+
+		String marked = BOUNDARY + word + BOUNDARY;
+		for (int i = 0; i + K <= marked.length(); i++) {
+			IdList ids = grams.computeIfAbsent(marked.substring(i, i + K), gram -> new IdList());
+			// a word repeating a gram only needs to be listed once
+			if (ids.size == 0 || ids.ids[ids.size - 1] != id) {
+				ids.add(id);
+				postings++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of words in the index.
+	 *
+	 * @return the number of words
+	 */
+	public int size() {
+		return words.size();
+	}
+
+	/**
+	 * Determines whether a query word is a wildcard pattern.
+	 *
+	 * @param pattern the query word
+	 * @return true if the query word contains a wildcard
+	 */
+	public static boolean isPattern(String pattern) {
+		return pattern.indexOf(WILDCARD) >= 0;
+	}
+
+	/**
+	 * Returns the grams every word matching a pattern must contain.
+	 *
+	 * @param pattern the wildcard pattern
+	 * @return the grams of each literal piece of the pattern
+	 */
+	public static List<String> gramsOf(String pattern) {
+		ArrayList<String> found = new ArrayList<>();
+		for (String piece : (BOUNDARY + pattern + BOUNDARY).split(Pattern.quote(String.valueOf(WILDCARD)))) {
+			for (int i = 0; i + K <= piece.length(); i++) {
+				found.add(piece.substring(i, i + K));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Compiles a wildcard pattern into a regular expression.
+	 *
+	 * @param pattern the wildcard pattern
+	 * @return the regular expression matching the same words
+	 */
+	public static Pattern compile(String pattern) {
+		StringBuilder regex = new StringBuilder();
+		String[] pieces = pattern.split(Pattern.quote(String.valueOf(WILDCARD)), -1);
+		for (int i = 0; i < pieces.length; i++) {
+			if (i > 0) {
+				regex.append(".*");
+			}
+			if (!pieces[i].isEmpty()) {
+				regex.append(Pattern.quote(pieces[i]));
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	/**
+	 * Finds the words that may match a pattern, or {@code null} if the pattern has
+	 * no literal piece long enough to narrow down the words.
+	 *
+	 * @param pattern the wildcard pattern
+	 * @return the candidate words, which still need to be checked against the
+	 *         pattern, or {@code null} if every word is a candidate
+	 */
+	public List<String> candidates(String pattern) {
+		List<String> needed = gramsOf(pattern);
+		if (needed.isEmpty()) {
+			return null;
+		}
+
+		IdList[] lists = new IdList[needed.size()];
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = grams.get(needed.get(i));
+			if (lists[i] == null) {
+				return List.of();
+			}
+		}
+		Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+
+		ArrayList<String> found = new ArrayList<>();
+		int[] cursors = new int[lists.length];
+		IdList rarest = lists[0];
+
+		candidates: for (int r = 0; r < rarest.size; r++) {
+			int id = rarest.ids[r];
+			for (int i = 1; i < lists.length; i++) {
+				cursors[i] = lists[i].gallop(id, cursors[i]);
+				if (cursors[i] >= lists[i].size) {
+					break candidates;
+				}
+				if (lists[i].ids[cursors[i]] != id) {
+					continue candidates;
+				}
+			}
+			found.add(words.get(id));
+		}
+
+		return found;
+	}
+
+	/**
+	 * Returns an estimate of the memory used by this index in bytes, not counting
+	 * the words themselves, which are shared with the inverted index.
+	 *
+	 * @return the estimated number of bytes used
+	 */
+	public long memoryBytes() {
+		long bytes = 16 + 8L * words.size();
+		for (IdList ids : grams.values()) {
+			// map entry, gram string, list object, and its array
+			bytes += 32 + 48 + 24 + 16 + 4L * ids.ids.length;
+		}
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d words, %d grams, %d postings, about %.1f MiB", words.size(), grams.size(), postings,
+				memoryBytes() / 1024.0 / 1024.0);
+	}
+
+	/**
+	 * A growable list of increasing word ids.
+	 */
+	private static class IdList {
+		/** The ids, of which only the first {@link #size} are used. */
+		private int[] ids;
+
+		/** The number of ids in the list. */
+		private int size;
+
+		/**
+		 * Initializes an empty list.
+		 */
+		private IdList() {
+			this.ids = new int[2];
+			this.size = 0;
+		}
+
+		/**
+		 * Adds an id larger than every id already in the list.
+		 *
+		 * @param id the id to add
+		 */
+		private void add(int id) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+
+		/**
+		 * Finds the first index at or after a starting index whose id is at least the
+		 * target, by doubling the step until it overshoots and then binary searching.
+		 *
+		 * @param target the id to look for
+		 * @param from   the index to start from
+		 * @return the index of the first id at least the target, or the size of the
+		 *         list if there is none
+		 */
+		private int gallop(int target, int from) {
+			int step = 1;
+			int high = from;
+			while (high < size && ids[high] < target) {
+				from = high + 1;
+				high += step;
+				step *= 2;
+			}
+			int index = Arrays.binarySearch(ids, from, Math.min(high + 1, size), target);
+			return index >= 0 ? index : -index - 1;
+		}
+	}
+}
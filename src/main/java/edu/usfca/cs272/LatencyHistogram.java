@@ -0,0 +1,165 @@
+package edu.usfca.cs272;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, thread-safe histogram of durations in nanoseconds, in the style
+ * of an HDR histogram. Values are grouped into buckets by power of two, and each
+ * power of two is split into {@value #SUB_BUCKETS} linear sub-buckets, so every
+ * recorded value is kept within roughly 3% of its true value. Recording a value
+ * is a single atomic increment, which makes the histogram cheap enough to leave
+ * enabled all the time.
+ */
+public class LatencyHistogram {
+	/** Number of bits used for the linear sub-buckets. */
+	private static final int SUB_BITS = 5;
+
+	/** Number of linear sub-buckets per power of two. */
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** Largest power of two tracked; larger values go into the last bucket. */
+	private static final int MAX_EXPONENT = 40;
+
+	/** Total number of buckets. */
+	private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+	/** Number of values recorded in each bucket. */
+	private final AtomicLongArray buckets;
+
+	/** Number of values recorded. */
+	private final LongAdder count;
+
+	/** Sum of all values recorded. */
+	private final LongAdder total;
+
+	/** Largest value recorded. */
+	private final AtomicLong maximum;
+
+	/**
+	 * Initializes an empty histogram.
+	 */
+	public LatencyHistogram() {
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.count = new LongAdder();
+		this.total = new LongAdder();
+		this.maximum = new AtomicLong();
+	}
+
+	/**
+	 * Returns the bucket a value belongs in.
+	 *
+	 * @param value the value in nanoseconds
+	 * @return the bucket index
+	 */
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(0, value);
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+
+		int mantissa = (int) (value >>> (exponent - SUB_BITS));
+		return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+	}
+
+	/**
+	 * Returns the smallest value that belongs in a bucket.
+	 *
+	 * @param bucket the bucket index
+	 * @return the smallest value in nanoseconds
+	 */
+	private static long lowest(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+		long mantissa = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return mantissa << (exponent - SUB_BITS);
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param nanos the value in nanoseconds
+	 */
+	public void record(long nanos) {
+		buckets.incrementAndGet(bucket(nanos));
+		count.increment();
+		total.add(nanos);
+		maximum.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return the number of values recorded
+	 */
+	public long count() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the average value recorded in milliseconds.
+	 *
+	 * @return the average value in milliseconds, or 0 if nothing was recorded
+	 */
+	public double mean() {
+		long values = count.sum();
+		return values == 0 ? 0 : total.sum() / 1e6 / values;
+	}
+
+	/**
+	 * Returns the largest value recorded in milliseconds.
+	 *
+	 * @return the largest value in milliseconds
+	 */
+	public double max() {
+		return maximum.get() / 1e6;
+	}
+
+	/**
+	 * Returns an estimate of the value at the given percentile in milliseconds.
+	 * The estimate is the middle of the bucket the percentile falls in, capped by
+	 * the largest value recorded.
+	 *
+	 * @param percentile the percentile between 0 and 100
+	 * @return the estimated value in milliseconds, or 0 if nothing was recorded
+	 */
+	public double percentile(double percentile) {
+		long values = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			values += snapshot[i];
+		}
+
+		if (values == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * values));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				long low = lowest(i);
+				long high = i + 1 < BUCKETS ? lowest(i + 1) : low;
+				return Math.min((low + high) / 2, maximum.get()) / 1e6;
+			}
+		}
+
+		return max();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f ms", count(), mean(), percentile(50),
+				percentile(90), percentile(99), max());
+	}
+}
@@ -5,6 +5,7 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,6 +16,10 @@ import java.util.regex.Pattern;
  * @version Spring 2024
  */
 public class LinkFinder {
+	/** Regular expression that matches anchor tags, with the href value in group 1. */
+	public static final Pattern ANCHOR_REGEX = Pattern.compile("<a\\s+[^>]*href\\s*=\\s*\"([^\"]*)\"[^>]*>",
+			Pattern.CASE_INSENSITIVE);
+
 	/**
 	 * Determines whether the URI provided uses the HTTP or HTTPS protocol or scheme
 	 * (case-insensitive).
@@ -38,7 +43,7 @@ public class LinkFinder {
 	 * @param html  the raw HTML associated with the base URI
 	 * @param links the data structure to store found HTTP(S) links
 	 *
-	 * @see Pattern#compile(String)
+	 * @see #ANCHOR_REGEX
 	 * @see Matcher#find()
 	 * @see Matcher#group(int)
 	 *
@@ -47,18 +52,49 @@ public class LinkFinder {
 	 * @see #clean(URI)
 	 */
 	public static void findLinks(URI base, String html, Collection<URI> links) {
-		Pattern pattern = Pattern.compile("<a\\s+[^>]*href\\s*=\\s*\"([^\"]*)\"[^>]*>", Pattern.CASE_INSENSITIVE);
-		Matcher matcher = pattern.matcher(html);
+		Matcher matcher = ANCHOR_REGEX.matcher(html);
 
 		while (matcher.find()) {
-			String href = matcher.group(1);
-			URI uri = toAbsolute(base, href);
-			if (isHttp(uri)) {
-				links.add(uri);
-			}
+			addLink(base, matcher.group(1), links);
+		}
+	}
+
+	/**
+	 * Converts the href value of an anchor tag to an absolute and cleaned URI, and
+	 * adds it to the links if it is a valid HTTP(S) link.
+	 *
+	 * @param base  the base URI used to convert to absolute URIs
+	 * @param href  the href value
+	 * @param links the data structure to store found HTTP(S) links
+	 *
+	 * @see #toAbsolute(URI, String)
+	 * @see #isHttp(URI)
+	 */
+	public static void addLink(URI base, String href, Collection<URI> links) {
+		URI uri = toAbsolute(base, href);
+		if (uri != null && isHttp(uri)) {
+			links.add(uri);
 		}
 	}
 
+	/**
+	 * Returns a list of all the valid HTTP(S) URIs for href values already found
+	 * in a page, such as by {@link HtmlTokenizer}.
+	 *
+	 * @param base  the base URI used to convert relative links to absolute URIs
+	 * @param hrefs the href values of the anchor tags in the page
+	 * @return list of all valid HTTP(S) links in the order they were found
+	 *
+	 * @see #addLink(URI, String, Collection)
+	 */
+	public static ArrayList<URI> listUris(URI base, List<String> hrefs) {
+		ArrayList<URI> uris = new ArrayList<URI>(hrefs.size());
+		for (String href : hrefs) {
+			addLink(base, href, uris);
+		}
+		return uris;
+	}
+
 	/**
 	 * Attempts to create a normalized absolute URI from the provided base URI and
 	 * link text without the fragment component if it is included. If the conversion
@@ -0,0 +1,495 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Multithreaded class for building the inverted index as a three stage pipeline
+ * instead of one task per file. Reader threads read files into chunks of lines,
+ * analyzer threads turn chunks into batches of stems, and indexer threads apply
+ * batches to the index. The stages are connected by bounded queues, so a fast
+ * stage blocks (backpressure) instead of buffering whole files in memory.
+ *
+ * <p>
+ * Each file is always routed to the same indexer, which applies its batches in
+ * order so that word positions match the other builders. The number of items,
+ * busy time, and time blocked on each queue are logged for every stage when a
+ * build completes, so the slowest stage can be found and resized.
+ */
+public class PipelinedFileBuilder extends FileBuilder {
+	/** Number of lines read into a single chunk. */
+	public static final int CHUNK_LINES = 256;
+
+	/** Capacity of each queue between stages. */
+	public static final int QUEUE_CAPACITY = 64;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * Thread safe inverted index instance for building
+	 */
+	private final ThreadSafeInvertedIndex mtIndexer;
+
+	/**
+	 * Number of reader threads
+	 */
+	private final int readers;
+
+	/**
+	 * Number of analyzer threads
+	 */
+	private final int analyzers;
+
+	/**
+	 * Number of indexer threads
+	 */
+	private final int indexers;
+
+	/**
+	 * Files found during traversal, waiting to be read
+	 */
+	private final ArrayList<Path> found;
+
+	/**
+	 * Constructs a pipelined builder with the given stage sizes
+	 *
+	 * @param indexer   Inverted index instance for building
+	 * @param readers   Number of reader threads
+	 * @param analyzers Number of analyzer threads
+	 * @param indexers  Number of indexer threads
+	 */
+	public PipelinedFileBuilder(ThreadSafeInvertedIndex indexer, int readers, int analyzers, int indexers) {
+		super(indexer);
+		this.mtIndexer = indexer;
+		this.readers = Math.max(1, readers);
+		this.analyzers = Math.max(1, analyzers);
+		this.indexers = Math.max(1, indexers);
+		this.found = new ArrayList<>();
+	}
+
+	/**
+	 * Builds word count and inverted index structures for the specified input path.
+	 * Traverses the input first, then runs the pipeline until every file found has
+	 * been indexed.
+	 *
+	 * @param inputPath The path of the file or directory to be processed
+	 * @throws IOException If an I/O error occurs
+	 */
+	@Override
+	public void buildStructures(Path inputPath) throws IOException {
+		found.clear();
+		super.buildStructures(inputPath);
+		new Pipeline(found).run();
+		found.clear();
+	}
+
+	/**
+	 * Records a file to be read once traversal is done.
+	 *
+	 * @param location The path of the file to process
+	 * @throws IOException If an I/O error occurs
+	 */
+	@Override
+	public void processFile(Path location) throws IOException {
+		found.add(location);
+	}
+
+	/**
+	 * Lines read from part of a file.
+	 *
+	 * @param location The file the lines are from
+	 * @param sequence The position of this chunk within the file, starting at 0
+	 * @param lines    The lines read
+	 * @param last     Whether this is the last chunk of the file
+	 */
+	private record Chunk(String location, int sequence, List<String> lines, boolean last) {
+	}
+
+	/**
+	 * Stems found in a chunk of a file.
+	 *
+	 * @param location The file the stems are from
+	 * @param sequence The position of the chunk within the file, starting at 0
+	 * @param stems    The stems in order
+	 * @param surfaces The stem of each distinct surface word, if they are kept
+	 *                 for wildcard search
+	 * @param last     Whether this is the last chunk of the file
+	 */
+	private record Batch(String location, int sequence, List<String> stems, Map<String, String> surfaces,
+			boolean last) {
+	}
+
+	/** Marks the end of the chunk queue. */
+	private static final Chunk NO_CHUNKS = new Chunk(null, -1, List.of(), true);
+
+	/** Marks the end of a batch queue. */
+	private static final Batch NO_BATCHES = new Batch(null, -1, List.of(), Map.of(), true);
+
+	/**
+	 * Throughput counters for a single pipeline stage.
+	 */
+	private static class StageMetrics {
+		/** Name of the stage. */
+		private final String name;
+
+		/** Number of items the stage produced. */
+		private final LongAdder items;
+
+		/** Time in nanoseconds spent doing work. */
+		private final LongAdder busy;
+
+		/** Time in nanoseconds spent waiting for input. */
+		private final LongAdder starved;
+
+		/** Time in nanoseconds spent waiting for room in the output queue. */
+		private final LongAdder blocked;
+
+		/**
+		 * Initializes empty counters.
+		 *
+		 * @param name the name of the stage
+		 */
+		public StageMetrics(String name) {
+			this.name = name;
+			this.items = new LongAdder();
+			this.busy = new LongAdder();
+			this.starved = new LongAdder();
+			this.blocked = new LongAdder();
+		}
+
+		/**
+		 * Returns a summary of the counters.
+		 *
+		 * @param threads number of threads in the stage
+		 * @param elapsed wall clock time of the build in nanoseconds
+		 * @return a summary of the counters
+		 */
+		public String summary(int threads, long elapsed) {
+			double seconds = Math.max(elapsed, 1) / 1e9;
+			double total = Math.max(elapsed, 1) * (double) threads;
+			return String.format("%s x%d: %d items (%.1f/s), busy %.0f%%, starved %.0f%%, blocked %.0f%%", name,
+					threads, items.sum(), items.sum() / seconds, 100 * busy.sum() / total, 100 * starved.sum() / total,
+					100 * blocked.sum() / total);
+		}
+	}
+
+	/**
+	 * A single run of the pipeline over a list of files.
+	 */
+	private class Pipeline {
+		/** Files waiting to be read. */
+		private final BlockingQueue<Path> paths;
+
+		/** Number of files to index. */
+		private final int count;
+
+		/** Chunks waiting to be analyzed. */
+		private final BlockingQueue<Chunk> chunks;
+
+		/** Batches waiting to be indexed, one queue per indexer. */
+		private final List<BlockingQueue<Batch>> batches;
+
+		/** Number of readers still running. */
+		private final AtomicInteger readersLeft;
+
+		/** Number of analyzers still running. */
+		private final AtomicInteger analyzersLeft;
+
+		/** The first error reading a file, or {@code null} if there was none. */
+		private final AtomicReference<IOException> failure;
+
+		/** Counters for the reader stage. */
+		private final StageMetrics readStage;
+
+		/** Counters for the analyzer stage. */
+		private final StageMetrics analyzeStage;
+
+		/** Counters for the indexer stage. */
+		private final StageMetrics indexStage;
+
+		/**
+		 * Prepares the queues for a run over the given files.
+		 *
+		 * @param files the files to index
+		 */
+		public Pipeline(List<Path> files) {
+			this.paths = new LinkedBlockingQueue<>(files);
+			this.count = files.size();
+			this.chunks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+			this.batches = new ArrayList<>();
+			for (int i = 0; i < indexers; i++) {
+				batches.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+			}
+			this.readersLeft = new AtomicInteger(readers);
+			this.analyzersLeft = new AtomicInteger(analyzers);
+			this.failure = new AtomicReference<>();
+			this.readStage = new StageMetrics("read");
+			this.analyzeStage = new StageMetrics("analyze");
+			this.indexStage = new StageMetrics("index");
+		}
+
+		/**
+		 * Starts every stage and waits for all of them to finish. If a file cannot
+		 * be read, no more files are read and the error is thrown once the stages
+		 * finish, like the other builders stop at the first file they cannot read.
+		 *
+		 * @throws IOException if unable to read a file
+		 */
+		public void run() throws IOException {
+			long start = System.nanoTime();
+			ArrayList<Thread> threads = new ArrayList<>();
+			for (int i = 0; i < readers; i++) {
+				threads.add(new Thread(this::read, "PipelineReader" + i));
+			}
+			for (int i = 0; i < analyzers; i++) {
+				threads.add(new Thread(this::analyze, "PipelineAnalyzer" + i));
+			}
+			for (int i = 0; i < indexers; i++) {
+				BlockingQueue<Batch> queue = batches.get(i);
+				threads.add(new Thread(() -> index(queue), "PipelineIndexer" + i));
+			}
+
+			for (Thread thread : threads) {
+				thread.start();
+			}
+
+			try {
+				for (Thread thread : threads) {
+					thread.join();
+				}
+			} catch (InterruptedException e) {
+				log.catching(Level.WARN, e);
+				for (Thread thread : threads) {
+					thread.interrupt();
+				}
+				Thread.currentThread().interrupt();
+			}
+
+			long elapsed = System.nanoTime() - start;
+			log.debug("Pipeline built {} files in {} ms", count, elapsed / 1_000_000);
+			log.debug(readStage.summary(readers, elapsed));
+			log.debug(analyzeStage.summary(analyzers, elapsed));
+			log.debug(indexStage.summary(indexers, elapsed));
+
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+		}
+
+		/**
+		 * Adds an end marker to a queue, waiting for room even if interrupted so the
+		 * next stage is guaranteed to stop.
+		 *
+		 * @param <T>    the type of item in the queue
+		 * @param queue  the queue to add to
+		 * @param marker the end marker
+		 */
+		private static <T> void finish(BlockingQueue<T> queue, T marker) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					queue.put(marker);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Adds a chunk to the chunk queue, blocking while it is full.
+		 *
+		 * @param chunk the chunk to add
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		private void putChunk(Chunk chunk) throws InterruptedException {
+			long start = System.nanoTime();
+			chunks.put(chunk);
+			readStage.blocked.add(System.nanoTime() - start);
+			readStage.items.increment();
+		}
+
+		/**
+		 * Reader stage: reads each file into chunks of {@link #CHUNK_LINES} lines.
+		 */
+		private void read() {
+			try {
+				Path path;
+				while ((path = paths.poll()) != null) {
+					String location = path.toString();
+					int sequence = 0;
+					ArrayList<String> lines = new ArrayList<>(CHUNK_LINES);
+					long start = System.nanoTime();
+					try (BufferedReader reader = Files.newBufferedReader(path)) {
+						String line;
+						while ((line = reader.readLine()) != null) {
+							lines.add(line);
+							if (lines.size() == CHUNK_LINES) {
+								readStage.busy.add(System.nanoTime() - start);
+								putChunk(new Chunk(location, sequence++, lines, false));
+								lines = new ArrayList<>(CHUNK_LINES);
+								start = System.nanoTime();
+							}
+						}
+						readStage.busy.add(System.nanoTime() - start);
+						putChunk(new Chunk(location, sequence, lines, true));
+					} catch (IOException e) {
+						log.catching(Level.WARN, e);
+						failure.compareAndSet(null, e);
+						paths.clear();
+					}
+				}
+			} catch (InterruptedException e) {
+				log.catching(Level.DEBUG, e);
+				Thread.currentThread().interrupt();
+			} finally {
+				if (readersLeft.decrementAndGet() == 0) {
+					for (int i = 0; i < analyzers; i++) {
+						finish(chunks, NO_CHUNKS);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Analyzer stage: cleans and stems the lines of each chunk, then hands the
+		 * stems to the indexer responsible for that file.
+		 */
+		private void analyze() {
+			SnowballStemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
+			boolean keepSurfaces = mtIndexer.hasSurfaces();
+			try {
+				while (true) {
+					long start = System.nanoTime();
+					Chunk chunk = chunks.take();
+					analyzeStage.starved.add(System.nanoTime() - start);
+					if (chunk == NO_CHUNKS) {
+						break;
+					}
+
+					start = System.nanoTime();
+					ArrayList<String> stems = new ArrayList<>();
+					HashMap<String, String> surfaces = new HashMap<>();
+					for (String line : chunk.lines()) {
+						if (keepSurfaces) {
+							for (String word : FileStemmer.parse(line)) {
+								String stem = stemmer.stem(word).toString();
+								stems.add(stem);
+								surfaces.putIfAbsent(word, stem);
+							}
+						} else {
+							FileStemmer.addStems(line, stemmer, stems);
+						}
+					}
+					Batch batch = new Batch(chunk.location(), chunk.sequence(), stems, surfaces, chunk.last());
+					analyzeStage.busy.add(System.nanoTime() - start);
+
+					start = System.nanoTime();
+					batches.get(Math.floorMod(chunk.location().hashCode(), indexers)).put(batch);
+					analyzeStage.blocked.add(System.nanoTime() - start);
+					analyzeStage.items.increment();
+				}
+			} catch (InterruptedException e) {
+				log.catching(Level.DEBUG, e);
+				Thread.currentThread().interrupt();
+			} finally {
+				if (analyzersLeft.decrementAndGet() == 0) {
+					for (BlockingQueue<Batch> queue : batches) {
+						finish(queue, NO_BATCHES);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Indexer stage: applies batches to the index in file order. Batches that
+		 * arrive early are held until the batches before them are applied.
+		 *
+		 * @param queue the queue of batches for this indexer
+		 */
+		private void index(BlockingQueue<Batch> queue) {
+			HashMap<String, FileState> files = new HashMap<>();
+			try {
+				while (true) {
+					long start = System.nanoTime();
+					Batch batch = queue.take();
+					indexStage.starved.add(System.nanoTime() - start);
+					if (batch == NO_BATCHES) {
+						break;
+					}
+
+					start = System.nanoTime();
+					FileState state = files.computeIfAbsent(batch.location(), location -> new FileState());
+					state.pending.put(batch.sequence(), batch);
+
+					Batch next;
+					while ((next = state.pending.remove(state.sequence)) != null) {
+						InvertedIndex local = new InvertedIndex();
+						for (String stem : next.stems()) {
+							local.addWord(stem, next.location(), ++state.position);
+						}
+						next.surfaces().forEach(local::addSurface);
+						mtIndexer.addAll(local);
+						state.sequence++;
+						indexStage.items.increment();
+
+						if (next.last()) {
+							files.remove(next.location());
+							break;
+						}
+					}
+					indexStage.busy.add(System.nanoTime() - start);
+				}
+			} catch (InterruptedException e) {
+				log.catching(Level.DEBUG, e);
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Progress of an indexer through a single file.
+	 */
+	private static class FileState {
+		/** Sequence number of the next batch to apply. */
+		private int sequence;
+
+		/** Position of the last stem applied. */
+		private int position;
+
+		/** Batches that arrived before the batches ahead of them. */
+		private final TreeMap<Integer, Batch> pending;
+
+		/**
+		 * Initializes the state for a new file.
+		 */
+		public FileState() {
+			this.sequence = 0;
+			this.position = 0;
+			this.pending = new TreeMap<>();
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package edu.usfca.cs272;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A bounded, thread-safe cache of merged posting lists for short prefixes. A
+ * partial search for a short prefix has to merge the locations of every word
+ * that starts with it, which can be thousands of words. This cache keeps the
+ * merged result for each prefix as parallel arrays of locations and match
+ * counts, so repeated searches for the same short prefix are a single lookup.
+ *
+ * <p>
+ * The least recently used prefixes are evicted once the cache holds more than
+ * a maximum number of prefixes or postings. The whole cache is dropped as soon
+ * as the index generation changes.
+ */
+public class PrefixPostingCache {
+	/** The longest prefix that is cached. */
+	public static final int MAX_LENGTH = 3;
+
+	/** The default maximum number of cached prefixes. */
+	public static final int DEFAULT_CAPACITY = 4_096;
+
+	/** The default maximum number of postings across all cached prefixes. */
+	public static final long DEFAULT_MAX_POSTINGS = 4_000_000;
+
+	/** Maximum number of cached prefixes. */
+	private final int capacity;
+
+	/** Maximum number of postings across all cached prefixes. */
+	private final long maxPostings;
+
+	/** Cached postings in least to most recently used order. */
+	private final LinkedHashMap<String, Postings> entries;
+
+	/** Number of postings across all cached prefixes. */
+	private long postings;
+
+	/** The index generation the cached postings were computed at. */
+	private long generation;
+
+	/** Number of lookups answered from the cache. */
+	private long hits;
+
+	/** Number of lookups that had to merge the posting lists. */
+	private long misses;
+
+	/**
+	 * Initializes a cache with the default bounds.
+	 */
+	public PrefixPostingCache() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_POSTINGS);
+	}
+
+	/**
+	 * Initializes a cache with the given bounds.
+	 *
+	 * @param capacity    maximum number of cached prefixes
+	 * @param maxPostings maximum number of postings across all cached prefixes
+	 */
+	public PrefixPostingCache(int capacity, long maxPostings) {
+		this.capacity = Math.max(0, capacity);
+		this.maxPostings = Math.max(0, maxPostings);
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.postings = 0;
+		this.generation = 0;
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	/**
+	 * Determines whether a prefix is short enough to be cached.
+	 *
+	 * @param prefix the prefix
+	 * @return true if the prefix is cached
+	 */
+	public static boolean isCached(String prefix) {
+		return prefix.length() <= MAX_LENGTH;
+	}
+
+	/**
+	 * Returns the merged postings for a prefix, merging them on a miss. The index
+	 * must not change while this is called.
+	 *
+	 * @param prefix  the prefix
+	 * @param current the current generation of the index
+	 * @param merge   merges the posting lists for a prefix
+	 * @return the merged postings
+	 */
+	public Postings get(String prefix, long current, Function<String, Postings> merge) {
+		return get(prefix, current, merge, Deadline.NONE);
+	}
+
+	/**
+	 * Returns the merged postings for a prefix, merging them on a miss. Postings
+	 * merged after the deadline of the search passed may be incomplete, so they
+	 * are returned but not cached. The index must not change while this is
+	 * called.
+	 *
+	 * @param prefix   the prefix
+	 * @param current  the current generation of the index
+	 * @param merge    merges the posting lists for a prefix
+	 * @param deadline the deadline of the search
+	 * @return the merged postings
+	 */
+	public Postings get(String prefix, long current, Function<String, Postings> merge, Deadline deadline) {
+		synchronized (entries) {
+			validate(current);
+			Postings cached = entries.get(prefix);
+			if (cached != null) {
+				hits++;
+				return cached;
+			}
+			misses++;
+		}
+
+		Postings merged = merge.apply(prefix);
+		if (deadline.isExpired()) {
+			return merged;
+		}
+
+		synchronized (entries) {
+			validate(current);
+			if (generation == current && !entries.containsKey(prefix)) {
+				entries.put(prefix, merged);
+				postings += merged.size();
+				evict();
+			}
+		}
+
+		return merged;
+	}
+
+	/**
+	 * Drops every entry if the index has moved past the generation the entries
+	 * were computed at. Must be called while synchronized on {@link #entries}.
+	 *
+	 * @param current the current generation of the index
+	 */
+	private void validate(long current) {
+		if (current != generation) {
+			entries.clear();
+			postings = 0;
+			generation = current;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache is within its bounds.
+	 * Must be called while synchronized on {@link #entries}.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Postings>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext() && (entries.size() > capacity || postings > maxPostings)) {
+			postings -= iterator.next().getValue().size();
+			iterator.remove();
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (entries) {
+			return String.format("%d prefixes cached (%d postings), %d hits, %d misses", entries.size(), postings, hits,
+					misses);
+		}
+	}
+
+	/**
+	 * The merged postings for a prefix: each location that contains a word
+	 * starting with the prefix, in the order the locations are first found when
+	 * walking the words in sorted order, and the total number of matches at
+	 * that location.
+	 *
+	 * @param locations the locations
+	 * @param counts    the number of matches at each location
+	 */
+	public record Postings(String[] locations, int[] counts) {
+		/**
+		 * Returns the number of locations.
+		 *
+		 * @return the number of locations
+		 */
+		public int size() {
+			return locations.length;
+		}
+	}
+}
@@ -1,13 +1,16 @@
 package edu.usfca.cs272;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import opennlp.tools.stemmer.snowball.SnowballStemmer;
 
@@ -15,15 +18,23 @@ import opennlp.tools.stemmer.snowball.SnowballStemmer;
  * Class responsible for query handling and adding search results
  */
 public class QueryFileProcessor implements QueryFileProcessorInterface {
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * Placeholder kept for a query whose results were already streamed to a file
+	 */
+	private static final List<InvertedIndex.SearchResult> STREAMED = List.of();
+
 	/**
-	 * Map to store search results
+	 * Map to store search results, or {@link #STREAMED} for streamed results
 	 */
 	private final Map<String, List<InvertedIndex.SearchResult>> searchResultsMap;
 
 	/**
-	 * Inverted index instance for searching
+	 * Cache used to search the inverted index
 	 */
-	private final InvertedIndex indexer;
+	private final QueryResultCache cache;
 
 	/**
 	 * SnowballStemmer instance for query processing word stems
@@ -31,9 +42,14 @@ public class QueryFileProcessor implements QueryFileProcessorInterface {
 	private final SnowballStemmer stemmer;
 
 	/**
-	 * A boolean indicating whether or not to partial search
+	 * How to search for each query
 	 */
-	private final boolean partial;
+	private final SearchOptions options;
+
+	/**
+	 * Writer that results are streamed to, or null if results are kept in memory
+	 */
+	private StreamingResultsWriter stream;
 
 	/**
 	 * Constructs a new QueryFileProcsesor with the InvertedIndex
@@ -42,10 +58,30 @@ public class QueryFileProcessor implements QueryFileProcessorInterface {
 	 * @param partial boolean for partial search or not
 	 */
 	public QueryFileProcessor(InvertedIndex indexer, boolean partial) {
-		this.indexer = indexer;
+		this(new QueryResultCache(indexer), partial);
+	}
+
+	/**
+	 * Constructs a new QueryFileProcsesor that searches through a shared cache
+	 *
+	 * @param cache   The cache used to search the InvertedIndex
+	 * @param partial boolean for partial search or not
+	 */
+	public QueryFileProcessor(QueryResultCache cache, boolean partial) {
+		this(cache, SearchOptions.of(partial));
+	}
+
+	/**
+	 * Constructs a new QueryFileProcsesor that searches through a shared cache
+	 *
+	 * @param cache   The cache used to search the InvertedIndex
+	 * @param options How to search for each query
+	 */
+	public QueryFileProcessor(QueryResultCache cache, SearchOptions options) {
+		this.cache = cache;
 		this.searchResultsMap = new TreeMap<>();
 		this.stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
-		this.partial = partial;
+		this.options = options;
 	}
 
 	/**
@@ -55,16 +91,60 @@ public class QueryFileProcessor implements QueryFileProcessorInterface {
 	 */
 	@Override
 	public void processQueries(String queryLine) {
-		TreeSet<String> query = FileStemmer.uniqueStems(queryLine, stemmer);
+		QueryParser.Query query = QueryParser.parse(queryLine, stemmer);
 		if (query.isEmpty()) {
 			return;
 		}
-		String queryVal = String.join(" ", query);
+		String queryVal = query.toString();
 		if (searchResultsMap.get(queryVal) != null) {
 			return;
 		}
-		List<InvertedIndex.SearchResult> searchResults = indexer.search(query, partial);
-		searchResultsMap.put(queryVal, searchResults);
+		List<InvertedIndex.SearchResult> searchResults = cache.search(query, options);
+		record(queryVal, searchResults);
+	}
+
+	/**
+	 * Processes search queries from a path, streaming each result to a JSON file
+	 * instead of keeping it in memory. Only the queries themselves are kept, so
+	 * {@link #getQueryLineResults(String)} returns an empty list for them.
+	 *
+	 * @param queryPath   The path containing search queries
+	 * @param resultsPath The output path of the JSON file
+	 * @throws IOException If an I/O error occurs
+	 */
+	@Override
+	public void processQueries(Path queryPath, Path resultsPath) throws IOException {
+		try (StreamingResultsWriter writer = new StreamingResultsWriter(resultsPath, scanQueries(queryPath))) {
+			stream = writer;
+			processQueries(queryPath);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			stream = null;
+		}
+	}
+
+	/**
+	 * Records the search results of a query, streaming them to the results file
+	 * if there is one, and warns if they were cut short by the timeout
+	 *
+	 * @param queryVal      The stemmed query
+	 * @param searchResults The search results for the query
+	 */
+	private void record(String queryVal, List<InvertedIndex.SearchResult> searchResults) {
+		if (InvertedIndex.isTruncated(searchResults)) {
+			log.warn("Results for \"{}\" were cut short by the {} ms timeout", queryVal, options.timeout());
+		}
+		if (stream == null) {
+			searchResultsMap.put(queryVal, searchResults);
+			return;
+		}
+		searchResultsMap.put(queryVal, STREAMED);
+		try {
+			stream.add(queryVal, searchResults);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 
 	/**
@@ -87,8 +167,7 @@ public class QueryFileProcessor implements QueryFileProcessorInterface {
 	 */
 	@Override
 	public String processQueryLine(String queryLine) {
-		TreeSet<String> query = FileStemmer.uniqueStems(queryLine, stemmer);
-		return String.join(" ", query);
+		return QueryParser.parse(queryLine, stemmer).toString();
 	}
 
 	/**
@@ -104,7 +183,7 @@ public class QueryFileProcessor implements QueryFileProcessorInterface {
 		if (results == null) {
 			return Collections.emptyList();
 		}
-		return Collections.unmodifiableList(results);
+		return InvertedIndex.unmodifiable(results);
 	}
 
 	/**
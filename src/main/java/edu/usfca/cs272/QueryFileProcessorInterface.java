@@ -6,6 +6,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 /**
@@ -27,6 +28,63 @@ public interface QueryFileProcessorInterface {
 		}
 	}
 
+	/**
+	 * Processes search queries from a path and writes their results to a JSON
+	 * file. By default the results are written once every query is processed, but
+	 * a processor may instead stream each result to the file as soon as it can,
+	 * without keeping the results in memory.
+	 *
+	 * @param queryPath   The path containing search queries
+	 * @param resultsPath The output path of the JSON file
+	 * @throws IOException If an I/O error occurs
+	 */
+	default void processQueries(Path queryPath, Path resultsPath) throws IOException {
+		processQueries(queryPath);
+		writeResults(resultsPath);
+	}
+
+	/**
+	 * Finds every distinct stemmed query in a file without searching for them
+	 *
+	 * @param queryPath The path containing search queries
+	 * @return The stemmed queries in sorted order
+	 * @throws IOException If an I/O error occurs
+	 */
+	default TreeSet<String> scanQueries(Path queryPath) throws IOException {
+		TreeSet<String> queries = new TreeSet<>();
+		try (BufferedReader reader = Files.newBufferedReader(queryPath)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String queryVal = processQueryLine(line);
+				if (!queryVal.isEmpty()) {
+					queries.add(queryVal);
+				}
+			}
+		}
+		return queries;
+	}
+
+	/**
+	 * Parses every distinct query in a file without searching for them
+	 *
+	 * @param queryPath The path containing search queries
+	 * @return The parsed queries by their normalized form, in sorted order
+	 * @throws IOException If an I/O error occurs
+	 */
+	default TreeMap<String, QueryParser.Query> parseQueries(Path queryPath) throws IOException {
+		TreeMap<String, QueryParser.Query> queries = new TreeMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(queryPath)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				QueryParser.Query query = QueryParser.parse(line);
+				if (!query.isEmpty()) {
+					queries.putIfAbsent(query.toString(), query);
+				}
+			}
+		}
+		return queries;
+	}
+
 	/**
 	 * Processes a single search query line
 	 *
@@ -41,8 +99,7 @@ public interface QueryFileProcessorInterface {
 	 * @return The stemmed query
 	 */
 	default String processQueryLine(String queryLine) {
-		TreeSet<String> query = FileStemmer.uniqueStems(queryLine);
-		return String.join(" ", query);
+		return QueryParser.parse(queryLine).toString();
 	}
 
 	/**
@@ -0,0 +1,256 @@
+package edu.usfca.cs272;
+
+import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import opennlp.tools.stemmer.Stemmer;
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Utility class for parsing query lines that may contain positional clauses. A
+ * quoted phrase like {@code "hello world"} matches the stems appearing next to
+ * each other in order, and {@code hello NEAR/3 world} matches the two stems
+ * appearing within three words of each other in either order. A word with a
+ * {@code *} in it, like {@code co*er}, is kept unstemmed as a wildcard pattern.
+ * Everything else on the line is stemmed into ordinary query words, so a line
+ * without quotes, {@code NEAR/k}, or {@code *} parses exactly like
+ * {@link FileStemmer#uniqueStems(String)}. The cleaned word each stem was first
+ * written as is kept too, so a fuzzy search can match the word as it was
+ * typed.
+ */
+public class QueryParser {
+	/** Regular expression that matches a quoted phrase. */
+	public static final Pattern PHRASE_REGEX = Pattern.compile("\"([^\"]*)\"");
+
+	/** Regular expression that matches a proximity clause. */
+	public static final Pattern NEAR_REGEX = Pattern.compile("(\\S+)\\s+NEAR/(\\d{1,6})\\s+(\\S+)");
+
+	/** Regular expression that matches a word with a wildcard in it. */
+	public static final Pattern WILDCARD_REGEX = Pattern.compile("\\S*\\*\\S*");
+
+	/**
+	 * Parses a query line.
+	 *
+	 * @param line    the query line to parse
+	 * @param stemmer the stemmer to use
+	 * @return the parsed query
+	 */
+	public static Query parse(String line, Stemmer stemmer) {
+		if (line.indexOf('"') < 0 && !line.contains("NEAR/") && line.indexOf(KGramIndex.WILDCARD) < 0) {
+			TreeMap<String, String> words = new TreeMap<>();
+			return new Query(new TreeSet<>(listStems(line, stemmer, words)), new TreeSet<>(), new TreeMap<>(), words);
+		}
+
+		TreeMap<String, String> words = new TreeMap<>();
+		TreeSet<String> terms = new TreeSet<>();
+		TreeSet<String> wildcards = new TreeSet<>();
+		TreeMap<String, Positional> positional = new TreeMap<>();
+		StringBuilder rest = new StringBuilder();
+
+		Matcher phrases = PHRASE_REGEX.matcher(line);
+		int last = 0;
+		while (phrases.find()) {
+			rest.append(line, last, phrases.start()).append(' ');
+			addClause(listStems(phrases.group(1), stemmer, words), 0, terms, positional);
+			last = phrases.end();
+		}
+		rest.append(line, last, line.length());
+
+		String remaining = rest.toString();
+		Matcher near = NEAR_REGEX.matcher(remaining);
+		last = 0;
+		while (near.find()) {
+			addWords(remaining.substring(last, near.start()), stemmer, terms, wildcards, words);
+			ArrayList<String> left = listStems(near.group(1), stemmer, words);
+			ArrayList<String> right = listStems(near.group(3), stemmer, words);
+			int within = Integer.parseInt(near.group(2));
+			if (left.isEmpty() || right.isEmpty() || within < 1) {
+				terms.addAll(left);
+				terms.addAll(right);
+			} else {
+				// a multi-word side keeps the words nearest to the operator
+				terms.addAll(left.subList(0, left.size() - 1));
+				terms.addAll(right.subList(1, right.size()));
+				addClause(List.of(left.get(left.size() - 1), right.get(0)), within, terms, positional);
+			}
+			last = near.end();
+		}
+		addWords(remaining.substring(last), stemmer, terms, wildcards, words);
+
+		return new Query(terms, wildcards, positional, words);
+	}
+
+	/**
+	 * Parses some text into a list of stems, remembering the cleaned word each
+	 * stem was first written as.
+	 *
+	 * @param text    the text to clean, split, and stem
+	 * @param stemmer the stemmer to use
+	 * @param words   the cleaned word of each stem to add to
+	 * @return the stems in parsed order
+	 * @see FileStemmer#listStems(String, Stemmer)
+	 */
+	private static ArrayList<String> listStems(String text, Stemmer stemmer, Map<String, String> words) {
+		ArrayList<String> stems = new ArrayList<>();
+		for (String word : FileStemmer.parse(text)) {
+			String stem = stemmer.stem(word).toString();
+			stems.add(stem);
+			words.putIfAbsent(stem, word);
+		}
+		return stems;
+	}
+
+	/**
+	 * Adds the wildcard patterns and the stems of the other words in some text.
+	 * Each piece of a pattern is cleaned like any other word but not stemmed, and
+	 * a pattern with no letters at all is ignored.
+	 *
+	 * @param text      the text to add
+	 * @param stemmer   the stemmer to use
+	 * @param terms     the ordinary query words to add to
+	 * @param wildcards the wildcard patterns to add to
+	 * @param words     the cleaned word of each stem to add to
+	 */
+	private static void addWords(String text, Stemmer stemmer, Collection<String> terms,
+			Collection<String> wildcards, Map<String, String> words) {
+		Matcher matcher = WILDCARD_REGEX.matcher(text);
+		int last = 0;
+		while (matcher.find()) {
+			terms.addAll(listStems(text.substring(last, matcher.start()), stemmer, words));
+			String[] pieces = matcher.group().split(Pattern.quote(String.valueOf(KGramIndex.WILDCARD)), -1);
+			StringBuilder pattern = new StringBuilder();
+			boolean letters = false;
+			for (int i = 0; i < pieces.length; i++) {
+				if (i > 0 && (pattern.isEmpty() || pattern.charAt(pattern.length() - 1) != KGramIndex.WILDCARD)) {
+					pattern.append(KGramIndex.WILDCARD);
+				}
+				String piece = FileStemmer.clean(pieces[i]);
+				letters |= !piece.isEmpty();
+				pattern.append(piece);
+			}
+			if (letters) {
+				wildcards.add(pattern.toString());
+			}
+			last = matcher.end();
+		}
+		terms.addAll(listStems(text.substring(last), stemmer, words));
+	}
+
+	/**
+	 * Parses a query line using the default English stemmer.
+	 *
+	 * @param line the query line to parse
+	 * @return the parsed query
+	 */
+	public static Query parse(String line) {
+		return parse(line, new SnowballStemmer(ENGLISH));
+	}
+
+	/**
+	 * Adds a positional clause, or its word as an ordinary query word if it only
+	 * has one.
+	 *
+	 * @param words      the stems of the clause
+	 * @param within     the maximum distance between the words, or 0 for a phrase
+	 * @param terms      the ordinary query words to add to
+	 * @param positional the positional clauses to add to
+	 */
+	private static void addClause(List<String> words, int within, Collection<String> terms,
+			TreeMap<String, Positional> positional) {
+		if (words.size() == 1) {
+			terms.add(words.get(0));
+		} else if (words.size() > 1) {
+			// proximity ignores order, so both orders share one normalized form
+			Positional clause = new Positional(within == 0 ? List.copyOf(words) : words.stream().sorted().toList(),
+					within);
+			positional.put(clause.toString(), clause);
+		}
+	}
+
+	/** Prevent instantiating this class of static methods. */
+	private QueryParser() {
+	}
+
+	/**
+	 * A parsed query line.
+	 *
+	 * @param terms      the ordinary query words
+	 * @param wildcards  the wildcard patterns
+	 * @param positional the positional clauses, by their normalized form
+	 * @param words      the cleaned word each stem was first written as
+	 */
+	public record Query(TreeSet<String> terms, TreeSet<String> wildcards, TreeMap<String, Positional> positional,
+			TreeMap<String, String> words) {
+		/**
+		 * Determines whether the query only has ordinary query words.
+		 *
+		 * @return true if the query has no wildcard patterns or positional clauses
+		 */
+		public boolean isSimple() {
+			return wildcards.isEmpty() && positional.isEmpty();
+		}
+
+		/**
+		 * Determines whether the query has nothing to search for.
+		 *
+		 * @return true if the query is empty
+		 */
+		public boolean isEmpty() {
+			return terms.isEmpty() && wildcards.isEmpty() && positional.isEmpty();
+		}
+
+		/**
+		 * Returns the normalized form of the query: the ordinary words followed by
+		 * the wildcard patterns and the positional clauses, each in sorted order and
+		 * joined by spaces. Queries that only differ in how their words were written
+		 * have the same normalized form.
+		 *
+		 * @return the normalized query
+		 */
+		@Override
+		public String toString() {
+			ArrayList<String> parts = new ArrayList<>(terms);
+			parts.addAll(wildcards);
+			parts.addAll(positional.keySet());
+			return String.join(" ", parts);
+		}
+	}
+
+	/**
+	 * A positional clause.
+	 *
+	 * @param words  the stems of the clause, in order for a phrase or sorted for a
+	 *               proximity clause
+	 * @param within the maximum distance between the two words of a proximity
+	 *               clause, or 0 for a phrase
+	 */
+	public record Positional(List<String> words, int within) {
+		/**
+		 * Determines whether this clause is a phrase.
+		 *
+		 * @return true if this clause is a phrase
+		 */
+		public boolean isPhrase() {
+			return within == 0;
+		}
+
+		/**
+		 * Returns the normalized form of the clause, either {@code phrase(a b)} or
+		 * {@code near/k(a b)}.
+		 *
+		 * @return the normalized clause
+		 */
+		@Override
+		public String toString() {
+			return (isPhrase() ? "phrase(" : "near/" + within + "(") + String.join(" ", words) + ")";
+		}
+	}
+}
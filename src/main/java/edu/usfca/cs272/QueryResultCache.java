@@ -0,0 +1,378 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import edu.usfca.cs272.InvertedIndex.SearchResult;
+
+/**
+ * A bounded, thread-safe cache of search results shared by everything that
+ * searches the same index. Results are keyed by the normalized (sorted, joined)
+ * query stems and the search options. The least recently used entries are evicted
+ * once the cache holds more than a maximum number of queries or search results.
+ *
+ * <p>
+ * Every entry is tied to the generation of the index it was computed from. As
+ * soon as the index is modified, the whole cache is dropped, so stale results
+ * are never returned.
+ *
+ * <p>
+ * Results cut short by the timeout in the search options are returned but
+ * never cached. The timeout is not part of the key, so a complete result is
+ * shared by searches with any timeout.
+ */
+public class QueryResultCache {
+	/** The default maximum number of cached queries. */
+	public static final int DEFAULT_CAPACITY = 10_000;
+
+	/** The default maximum number of cached search results across all queries. */
+	public static final int DEFAULT_MAX_RESULTS = 1_000_000;
+
+	/** The index to search. */
+	private final InvertedIndex index;
+
+	/** Maximum number of cached queries. */
+	private final int capacity;
+
+	/** Maximum number of cached search results across all queries. */
+	private final long maxResults;
+
+	/** Cached results in least to most recently used order. */
+	private final LinkedHashMap<Key, List<SearchResult>> entries;
+
+	/** Number of search results across all cached queries. */
+	private long results;
+
+	/** The index generation the cached results were computed at. */
+	private long generation;
+
+	/** Number of searches answered from the cache. */
+	private final LongAdder hits;
+
+	/** Number of searches that had to search the index. */
+	private final LongAdder misses;
+
+	/** Number of entries evicted to stay within the bounds. */
+	private final LongAdder evictions;
+
+	/** Number of times the cache was dropped because the index changed. */
+	private final LongAdder invalidations;
+
+	/** Number of searches that stopped at their deadline. */
+	private final LongAdder truncations;
+
+	/**
+	 * Initializes a cache with the default bounds.
+	 *
+	 * @param index the index to search
+	 */
+	public QueryResultCache(InvertedIndex index) {
+		this(index, DEFAULT_CAPACITY, DEFAULT_MAX_RESULTS);
+	}
+
+	/**
+	 * Initializes a cache with the given bounds.
+	 *
+	 * @param index      the index to search
+	 * @param capacity   maximum number of cached queries
+	 * @param maxResults maximum number of cached search results across all queries
+	 */
+	public QueryResultCache(InvertedIndex index, int capacity, long maxResults) {
+		this.index = index;
+		this.capacity = Math.max(0, capacity);
+		this.maxResults = Math.max(0, maxResults);
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.results = 0;
+		this.generation = index.getGeneration();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		this.invalidations = new LongAdder();
+		this.truncations = new LongAdder();
+	}
+
+	/**
+	 * Returns the cached results for a query, searching the index on a miss.
+	 *
+	 * @param queries the stemmed query words
+	 * @param partial whether to partial search
+	 * @return an unmodifiable list of search results
+	 */
+	public List<SearchResult> search(Set<String> queries, boolean partial) {
+		return search(queries, SearchOptions.of(partial));
+	}
+
+	/**
+	 * Returns the cached results for a query, searching the index on a miss.
+	 *
+	 * @param queries the stemmed query words
+	 * @param options how to search for the query
+	 * @return an unmodifiable list of search results
+	 */
+	public List<SearchResult> search(Set<String> queries, SearchOptions options) {
+		return search(new Key(String.join(" ", queries), options), () -> index.search(queries, options));
+	}
+
+	/**
+	 * Returns the cached results for a parsed query line, searching the index on a
+	 * miss.
+	 *
+	 * @param query   the parsed query
+	 * @param options how to search for the query
+	 * @return an unmodifiable list of search results
+	 */
+	public List<SearchResult> search(QueryParser.Query query, SearchOptions options) {
+		return search(new Key(query.toString(), options), () -> index.search(query, options));
+	}
+
+	/**
+	 * Returns the cached results for a key, searching the index on a miss.
+	 *
+	 * @param key    the key of the query
+	 * @param search searches the index for the query
+	 * @return an unmodifiable list of search results
+	 */
+	private List<SearchResult> search(Key key, Supplier<List<SearchResult>> search) {
+		// read before searching so a concurrent change makes the result look stale
+		long current = index.getGeneration();
+
+		synchronized (entries) {
+			validate(current);
+			List<SearchResult> cached = entries.get(key);
+			if (cached != null) {
+				hits.increment();
+				return cached;
+			}
+		}
+
+		misses.increment();
+		List<SearchResult> searched = search.get();
+		if (InvertedIndex.isTruncated(searched)) {
+			truncations.increment();
+			return searched;
+		}
+		List<SearchResult> found = InvertedIndex.unmodifiable(searched);
+
+		synchronized (entries) {
+			validate(current);
+			if (generation == current && !entries.containsKey(key)) {
+				entries.put(key, found);
+				results += found.size();
+				evict();
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Returns the cached results for a batch of queries. The queries that miss are
+	 * searched together with {@link InvertedIndex#searchBatch(List, boolean)}.
+	 *
+	 * @param batch   the stemmed query words of each query
+	 * @param partial whether to partial search
+	 * @return an unmodifiable list of search results for each query, in batch
+	 *         order
+	 */
+	public List<List<SearchResult>> searchBatch(List<? extends Set<String>> batch, boolean partial) {
+		return searchBatch(batch, SearchOptions.of(partial));
+	}
+
+	/**
+	 * Returns the cached results for a batch of queries. The queries that miss are
+	 * searched together with {@link InvertedIndex#searchBatch(List, boolean)} when
+	 * any query word may match without fuzzy matching or a timeout, or one at a
+	 * time otherwise, since each query has its own deadline.
+	 *
+	 * @param batch   the stemmed query words of each query
+	 * @param options how to search for the queries
+	 * @return an unmodifiable list of search results for each query, in batch
+	 *         order
+	 */
+	public List<List<SearchResult>> searchBatch(List<? extends Set<String>> batch, SearchOptions options) {
+		if (options.conjunctive() || options.isFuzzy() || options.timeout() > 0) {
+			ArrayList<List<SearchResult>> found = new ArrayList<>(batch.size());
+			for (Set<String> queries : batch) {
+				found.add(search(queries, options));
+			}
+			return found;
+		}
+
+		ArrayList<Key> keys = new ArrayList<>(batch.size());
+		for (Set<String> queries : batch) {
+			keys.add(new Key(String.join(" ", queries), options));
+		}
+
+		long current = index.getGeneration();
+		ArrayList<List<SearchResult>> found = new ArrayList<>(Collections.nCopies(batch.size(), null));
+		ArrayList<Integer> missing = new ArrayList<>();
+
+		synchronized (entries) {
+			validate(current);
+			for (int i = 0; i < keys.size(); i++) {
+				List<SearchResult> cached = entries.get(keys.get(i));
+				if (cached != null) {
+					found.set(i, cached);
+				} else {
+					missing.add(i);
+				}
+			}
+		}
+
+		hits.add(batch.size() - missing.size());
+		misses.add(missing.size());
+		if (missing.isEmpty()) {
+			return found;
+		}
+
+		ArrayList<Set<String>> searches = new ArrayList<>(missing.size());
+		for (int i : missing) {
+			searches.add(batch.get(i));
+		}
+		List<List<SearchResult>> searched = index.searchBatch(searches, options.partial());
+
+		synchronized (entries) {
+			validate(current);
+			for (int j = 0; j < missing.size(); j++) {
+				int i = missing.get(j);
+				List<SearchResult> list = InvertedIndex.unmodifiable(searched.get(j));
+				found.set(i, list);
+				if (generation == current && !entries.containsKey(keys.get(i))) {
+					entries.put(keys.get(i), list);
+					results += list.size();
+				}
+			}
+			evict();
+		}
+
+		return found;
+	}
+
+	/**
+	 * Drops every entry if the index has moved past the generation the entries
+	 * were computed at. Must be called while synchronized on {@link #entries}.
+	 *
+	 * @param current the current generation of the index
+	 */
+	private void validate(long current) {
+		if (current > generation) {
+			if (!entries.isEmpty()) {
+				invalidations.increment();
+			}
+			entries.clear();
+			results = 0;
+			generation = current;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache is within its bounds.
+	 * Must be called while synchronized on {@link #entries}.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Key, List<SearchResult>>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext() && (entries.size() > capacity || results > maxResults)) {
+			results -= iterator.next().getValue().size();
+			iterator.remove();
+			evictions.increment();
+		}
+	}
+
+	/**
+	 * Removes every entry from the cache.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			results = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of cached queries.
+	 *
+	 * @return the number of cached queries
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Returns the number of searches answered from the cache.
+	 *
+	 * @return the number of cache hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of searches that had to search the index.
+	 *
+	 * @return the number of cache misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of entries evicted to stay within the bounds.
+	 *
+	 * @return the number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Returns the number of times the cache was dropped because the index changed.
+	 *
+	 * @return the number of invalidations
+	 */
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	/**
+	 * Returns the number of searches that stopped at their deadline.
+	 *
+	 * @return the number of truncated searches
+	 */
+	public long getTruncations() {
+		return truncations.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d queries cached, %d hits, %d misses, %d evictions, %d invalidations, %d truncated",
+				size(), getHits(), getMisses(), getEvictions(), getInvalidations(), getTruncations());
+	}
+
+	/**
+	 * The key for a cached query.
+	 *
+	 * @param query   the normalized query stems joined by spaces
+	 * @param options how the query was searched
+	 */
+	private record Key(String query, SearchOptions options) {
+		/**
+		 * Initializes a key, ignoring the timeout since only complete results are
+		 * cached.
+		 *
+		 * @param query   the normalized query stems joined by spaces
+		 * @param options how the query was searched
+		 */
+		private Key {
+			options = options.withTimeout(0);
+		}
+	}
+}
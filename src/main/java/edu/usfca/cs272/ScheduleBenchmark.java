@@ -0,0 +1,155 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Measures the makespan of building an index from a skewed directory, in
+ * listing order and largest first. The directory has many small files and one
+ * large file, and the large file is whichever one the directory lists last, so
+ * in listing order it is the last task submitted.
+ *
+ * <p>
+ * Usage: {@code ScheduleBenchmark [threads] [rounds]}
+ */
+public class ScheduleBenchmark {
+	/** Number of small files in the skewed directory. */
+	public static final int SMALL_FILES = 200;
+
+	/** Approximate size in bytes of each small file. */
+	public static final int SMALL_BYTES = 16 * 1024;
+
+	/** Approximate size in bytes of the large file. */
+	public static final int LARGE_BYTES = 4 * 1024 * 1024;
+
+	/** Words the generated files are made of. */
+	private static final String[] WORDS = {
+			"apple", "banana", "computer", "computing", "data", "engine", "index", "inverted", "network", "query",
+			"search", "stem", "thread", "token", "vector", "word", "worker", "queue", "file", "result" };
+
+	/** Prevents instantiation of this class. */
+	private ScheduleBenchmark() {
+	}
+
+	/**
+	 * Builds the skewed directory and times both schedules.
+	 *
+	 * @param args the number of threads and the number of timed rounds
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void main(String[] args) throws IOException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		Path directory = Files.createTempDirectory("skewed");
+		try {
+			Path large = createSkewed(directory);
+			System.out.printf("%d small files of %d KiB, %s of %d MiB listed last, %d threads%n", SMALL_FILES,
+					SMALL_BYTES / 1024, large.getFileName(), LARGE_BYTES / (1024 * 1024), threads);
+
+			// warm up both schedules before timing them
+			build(directory, threads, false);
+			build(directory, threads, true);
+
+			long[] listing = new long[rounds];
+			long[] largest = new long[rounds];
+			for (int i = 0; i < rounds; i++) {
+				listing[i] = build(directory, threads, false);
+				largest[i] = build(directory, threads, true);
+			}
+
+			System.out.printf("listing order: median %d ms %s%n", median(listing), Arrays.toString(listing));
+			System.out.printf("largest first: median %d ms %s%n", median(largest), Arrays.toString(largest));
+		} finally {
+			try (Stream<Path> files = Files.walk(directory)) {
+				for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+					Files.delete(path);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fills a directory with small files, then makes the file it lists last the
+	 * large one.
+	 *
+	 * @param directory the directory to fill
+	 * @return the large file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static Path createSkewed(Path directory) throws IOException {
+		Random random = new Random(272);
+		for (int i = 0; i < SMALL_FILES; i++) {
+			write(directory.resolve("small" + i + ".txt"), SMALL_BYTES, random);
+		}
+
+		Path last = null;
+		try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+			for (Path path : listing) {
+				last = path;
+			}
+		}
+		write(last, LARGE_BYTES, random);
+		return last;
+	}
+
+	/**
+	 * Writes a file of random words.
+	 *
+	 * @param path   the file to write
+	 * @param bytes  the approximate size of the file in bytes
+	 * @param random the source of the words
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void write(Path path, int bytes, Random random) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+			int written = 0;
+			while (written < bytes) {
+				String word = WORDS[random.nextInt(WORDS.length)];
+				writer.write(word);
+				writer.write(random.nextInt(12) == 0 ? '\n' : ' ');
+				written += word.length() + 1;
+			}
+		}
+	}
+
+	/**
+	 * Builds an index of a directory and returns how long it took.
+	 *
+	 * @param directory the directory to index
+	 * @param threads   the number of worker threads
+	 * @param sizeAware whether to submit the largest files first
+	 * @return the makespan in milliseconds
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static long build(Path directory, int threads, boolean sizeAware) throws IOException {
+		CustomWorkQueue workQueue = new CustomWorkQueue(threads);
+		try {
+			ThreadedFileBuilder builder = new ThreadedFileBuilder(new ThreadSafeInvertedIndex(), workQueue, sizeAware);
+			long start = System.nanoTime();
+			builder.buildStructures(directory);
+			return (System.nanoTime() - start) / 1_000_000;
+		} finally {
+			workQueue.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the median of some times.
+	 *
+	 * @param times the times
+	 * @return the median
+	 */
+	private static long median(long[] times) {
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+}
@@ -3,11 +3,18 @@ package edu.usfca.cs272;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletHandler;
 
+import edu.usfca.cs272.CustomWorkQueue.Priority;
 import edu.usfca.cs272.InvertedIndex.SearchResult;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -17,19 +24,113 @@ import jakarta.servlet.http.HttpServletResponse;
  * Class to process and display search results
  */
 public class SearchEngine {
+	/**
+	 * How long (in milliseconds) a search waits for a worker to start it before
+	 * it runs on the servlet thread instead
+	 */
+	public static final long QUEUE_WAIT_MILLIS = 2_000;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
 	/**
 	 * Inverted index instance for searching
 	 */
 	private static ThreadSafeInvertedIndex indexer;
 
 	/**
+	 * Cache used to search the inverted index
+	 */
+	private static QueryResultCache cache;
+
+	/**
+	 * Work queue used to run searches in the interactive lane, or {@code null} to
+	 * search on the servlet thread
+	 */
+	private static CustomWorkQueue workQueue;
+
+	/**
+	 * Initializes a search engine that searches on the servlet thread
+	 *
 	 * @param indexer The indexer to help with crawling
 	 */
 	public SearchEngine(ThreadSafeInvertedIndex indexer) {
+		this(indexer, null);
+	}
+
+	/**
+	 * Initializes a search engine with a result cache of its own
+	 *
+	 * @param indexer   The indexer to help with crawling
+	 * @param workQueue The work queue to run searches on, or {@code null} to
+	 *                  search on the servlet thread
+	 */
+	public SearchEngine(ThreadSafeInvertedIndex indexer, CustomWorkQueue workQueue) {
+		this(indexer, workQueue, new QueryResultCache(indexer));
+	}
+
+	/**
+	 * Initializes a search engine that shares a result cache
+	 *
+	 * @param indexer   The indexer to help with crawling
+	 * @param workQueue The work queue to run searches on, or {@code null} to
+	 *                  search on the servlet thread
+	 * @param cache     The cache shared with the other searches of this index
+	 */
+	public SearchEngine(ThreadSafeInvertedIndex indexer, CustomWorkQueue workQueue, QueryResultCache cache) {
 		SearchEngine.indexer = indexer;
+		SearchEngine.workQueue = workQueue;
+		SearchEngine.cache = cache;
 	}
 
 	/**
+	 * Searches the index for a user request. When a work queue is available, the
+	 * search runs in its interactive lane so that it is not stuck behind queued
+	 * crawl or build tasks. If no worker starts it within
+	 * {@link #QUEUE_WAIT_MILLIS}, it runs on the servlet thread instead, so a
+	 * request never waits on the queue for long.
+	 *
+	 * @param query   The parsed query to search for
+	 * @param options How to search for the query
+	 * @return The search results
+	 */
+	private static List<SearchResult> search(QueryParser.Query query, SearchOptions options) {
+		if (workQueue == null) {
+			return cache.search(query, options);
+		}
+
+		CompletableFuture<List<SearchResult>> future = new CompletableFuture<>();
+		AtomicBoolean started = new AtomicBoolean();
+		workQueue.execute(() -> {
+			if (!started.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				future.complete(cache.search(query, options));
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		}, Priority.INTERACTIVE);
+
+		try {
+			return future.get(QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			if (started.compareAndSet(false, true)) {
+				log.warn("Search waited more than {} ms for a worker; searching on the servlet thread", QUEUE_WAIT_MILLIS);
+				return cache.search(query, options);
+			}
+			return future.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while searching", e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof RuntimeException runtime ? runtime : new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Starts the web server and blocks until it stops
+	 *
 	 * @param port The port to use
 	 * @throws Exception If an error occurs
 	 */
@@ -55,19 +156,26 @@ public class SearchEngine {
 		 */
 		private static final long serialVersionUID = 1L;
 
-		/**
-		 * Map to store search results
-		 */
-		private List<SearchResult> results = null;
-
 		@Override
 		public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
 			String query = request.getParameter("query");
 			String searchType = request.getParameter("searchType");
+			List<SearchResult> results = null;
 			if (query != null) {
 				boolean search = "partial".equals(searchType);
-				Set<String> queries = FileStemmer.uniqueStems(query);
-				results = indexer.search(queries, search);
+				QueryParser.Query parsed = QueryParser.parse(query);
+				SearchOptions options = SearchOptions.of(search, request.getParameter("operator"));
+				try {
+					options = options.withFuzzy(Integer.parseInt(request.getParameter("fuzzy")));
+				} catch (NumberFormatException e) {
+					// not a fuzzy search
+				}
+				try {
+					options = options.withTimeout(Long.parseLong(request.getParameter("timeout")));
+				} catch (NumberFormatException e) {
+					// no time limit
+				}
+				results = SearchEngine.search(parsed, options);
 			}
 
 			response.setContentType("text/html");
@@ -127,6 +235,9 @@ public class SearchEngine {
 								"<li><a href=\"" + result.getLocation() + "\">" + result.getLocation() + "</a></li>");
 					}
 					out.println("</ol>");
+					if (InvertedIndex.isTruncated(results)) {
+						out.println("<p>The search ran out of time, so these are only the best results found so far.</p>");
+					}
 				} else if (query != null && !query.isEmpty()) {
 					out.println("<h2>No results found for query: " + query + "</h2>");
 				}
@@ -0,0 +1,109 @@
+package edu.usfca.cs272;
+
+/**
+ * The options that control how a set of query stems is searched.
+ *
+ * @param partial     whether each stem matches every word that starts with it
+ * @param conjunctive whether a location must match every stem (and) instead of
+ *                    any stem (or)
+ * @param fuzzy       the maximum number of edits a word may be away from a stem
+ *                    and still match it, or 0 to only match the stem itself;
+ *                    only used by exact searches
+ * @param timeout     the number of milliseconds a search may run before it
+ *                    stops and returns the results found so far, or 0 for no
+ *                    limit
+ */
+public record SearchOptions(boolean partial, boolean conjunctive, int fuzzy, long timeout) {
+	/** The largest number of edits allowed in a fuzzy search. */
+	public static final int MAX_FUZZY = 2;
+
+	/** Exact search for locations that match any stem. */
+	public static final SearchOptions EXACT = new SearchOptions(false, false, 0, 0);
+
+	/** Partial search for locations that match any stem. */
+	public static final SearchOptions PARTIAL = new SearchOptions(true, false, 0, 0);
+
+	/**
+	 * Initializes the options, keeping the number of fuzzy edits between 0 and
+	 * {@link #MAX_FUZZY}, and treating a negative timeout as no limit.
+	 *
+	 * @param partial     whether each stem matches every word that starts with it
+	 * @param conjunctive whether a location must match every stem
+	 * @param fuzzy       the maximum number of edits for a fuzzy match
+	 * @param timeout     the number of milliseconds a search may run
+	 */
+	public SearchOptions {
+		fuzzy = Math.max(0, Math.min(MAX_FUZZY, fuzzy));
+		timeout = Math.max(0, timeout);
+	}
+
+	/**
+	 * Returns the options for a search that matches any stem.
+	 *
+	 * @param partial whether to partial search
+	 * @return the search options
+	 */
+	public static SearchOptions of(boolean partial) {
+		return partial ? PARTIAL : EXACT;
+	}
+
+	/**
+	 * Returns the options for a search.
+	 *
+	 * @param partial  whether to partial search
+	 * @param operator either "and" to match every stem, or anything else to match
+	 *                 any stem
+	 * @return the search options
+	 */
+	public static SearchOptions of(boolean partial, String operator) {
+		return new SearchOptions(partial, "and".equalsIgnoreCase(operator), 0, 0);
+	}
+
+	/**
+	 * Returns a copy of these options with the given number of fuzzy edits.
+	 *
+	 * @param edits the maximum number of edits for a fuzzy match
+	 * @return the search options
+	 */
+	public SearchOptions withFuzzy(int edits) {
+		return new SearchOptions(partial, conjunctive, edits, timeout);
+	}
+
+	/**
+	 * Returns a copy of these options with the given timeout.
+	 *
+	 * @param millis the number of milliseconds a search may run, or 0 for no
+	 *               limit
+	 * @return the search options
+	 */
+	public SearchOptions withTimeout(long millis) {
+		return new SearchOptions(partial, conjunctive, fuzzy, millis);
+	}
+
+	/**
+	 * Starts the clock for a search with these options.
+	 *
+	 * @return the deadline of the search
+	 */
+	public Deadline deadline() {
+		return Deadline.after(timeout);
+	}
+
+	/**
+	 * Determines whether exact stems may also match words a few edits away.
+	 *
+	 * @return true if this is a fuzzy search
+	 */
+	public boolean isFuzzy() {
+		return fuzzy > 0 && !partial;
+	}
+
+	/**
+	 * Returns the name of the operator used to combine stems.
+	 *
+	 * @return "and" or "or"
+	 */
+	public String operator() {
+		return conjunctive ? "and" : "or";
+	}
+}
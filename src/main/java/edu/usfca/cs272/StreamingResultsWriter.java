@@ -0,0 +1,319 @@
+package edu.usfca.cs272;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes search results to a JSON file as each query completes, instead of
+ * keeping every result in memory until the end. The output is byte-for-byte
+ * the same as {@link JsonWriter#writeResults(Map, Path)} for the same results.
+ *
+ * <p>
+ * Every query that will be written must be known up front, so the writer knows
+ * which query comes next in sorted order. A query that completes in order is
+ * written right away, along with any queries after it that were waiting. A
+ * query that completes out of order waits in memory as already formatted JSON,
+ * and once too much is waiting, the waiting queries are spilled to a temporary
+ * file as a sorted run. Since queries are written in sorted order, the next
+ * query to write is always either waiting in memory or at the head of a run.
+ *
+ * <p>
+ * This class is thread-safe.
+ */
+public class StreamingResultsWriter implements Closeable {
+	/** The default number of characters of waiting results kept in memory. */
+	public static final long DEFAULT_SPILL_CHARS = 8 * 1024 * 1024;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The writer for the output file. */
+	private final BufferedWriter writer;
+
+	/** The queries in the order they are written. */
+	private final Iterator<String> order;
+
+	/** The next query to write, or {@code null} if every query was written. */
+	private String next;
+
+	/** Formatted results of queries that completed out of order. */
+	private final TreeMap<String, String> waiting;
+
+	/** Number of characters of formatted results waiting in memory. */
+	private long waitingChars;
+
+	/** Number of characters of waiting results that triggers a spill. */
+	private final long spillChars;
+
+	/** Spilled runs of waiting results, each sorted by query. */
+	private final ArrayList<Run> runs;
+
+	/** Number of queries written. */
+	private int written;
+
+	/** Whether adding results failed, leaving the output incomplete. */
+	private boolean failed;
+
+	/**
+	 * Initializes a writer that spills at the default size.
+	 *
+	 * @param path    the output path of the JSON file
+	 * @param queries every query that will be written
+	 * @throws IOException if an I/O error occurs
+	 */
+	public StreamingResultsWriter(Path path, SortedSet<String> queries) throws IOException {
+		this(path, queries, DEFAULT_SPILL_CHARS);
+	}
+
+	/**
+	 * Initializes a writer.
+	 *
+	 * @param path       the output path of the JSON file
+	 * @param queries    every query that will be written
+	 * @param spillChars number of characters of waiting results that triggers a
+	 *                   spill to a temporary file
+	 * @throws IOException if an I/O error occurs
+	 */
+	public StreamingResultsWriter(Path path, SortedSet<String> queries, long spillChars) throws IOException {
+		this.writer = Files.newBufferedWriter(path, UTF_8);
+		this.order = queries.iterator();
+		this.next = order.hasNext() ? order.next() : null;
+		this.waiting = new TreeMap<>();
+		this.waitingChars = 0;
+		this.spillChars = spillChars;
+		this.runs = new ArrayList<>();
+		this.written = 0;
+		this.failed = false;
+		writer.write("{");
+	}
+
+	/**
+	 * Adds the results of a completed query, writing them now if every query
+	 * before it has already been written.
+	 *
+	 * <p>
+	 * Once this fails, the output is incomplete, so {@link #close()} no longer
+	 * finishes the JSON object.
+	 *
+	 * @param query   the query
+	 * @param results the search results of the query
+	 * @throws IOException if an I/O error occurs
+	 */
+	public synchronized void add(String query, List<InvertedIndex.SearchResult> results) throws IOException {
+		StringWriter formatted = new StringWriter();
+		JsonWriter.writeSearchResults(results, formatted, 1);
+
+		try {
+			if (query.equals(next)) {
+				write(query, formatted.toString());
+				drain();
+				return;
+			}
+
+			if (waiting.put(query, formatted.toString()) == null) {
+				waitingChars += formatted.getBuffer().length();
+				if (waitingChars > spillChars) {
+					spill();
+				}
+			}
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes one query and its formatted results, and moves on to the next query.
+	 *
+	 * @param query     the query
+	 * @param formatted the formatted search results
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void write(String query, String formatted) throws IOException {
+		writer.write(written == 0 ? "\n" : ",\n");
+		JsonWriter.writeIndent(writer, 1);
+		JsonWriter.writeQuote(query, writer, 0);
+		writer.write(": ");
+		writer.write(formatted);
+		written++;
+		next = order.hasNext() ? order.next() : null;
+	}
+
+	/**
+	 * Writes every waiting query that is next in order.
+	 *
+	 * @return true if the next query is still missing
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean drain() throws IOException {
+		outer: while (next != null) {
+			String formatted = waiting.remove(next);
+			if (formatted != null) {
+				waitingChars -= formatted.length();
+				write(next, formatted);
+				continue;
+			}
+
+			for (Run run : runs) {
+				if (next.equals(run.query)) {
+					formatted = run.formatted;
+					run.advance();
+					write(next, formatted);
+					continue outer;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Moves every waiting query from memory to a new sorted run on disk.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void spill() throws IOException {
+		Path path = Files.createTempFile("results", ".run");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			for (Map.Entry<String, String> entry : waiting.entrySet()) {
+				writeString(out, entry.getKey());
+				writeString(out, entry.getValue());
+			}
+		}
+		log.debug("Spilled {} queries ({} characters) to {}", waiting.size(), waitingChars, path);
+
+		runs.add(new Run(path));
+		waiting.clear();
+		waitingChars = 0;
+	}
+
+	/**
+	 * Writes every remaining query, skipping any that never completed, and closes
+	 * the output file. Temporary runs are deleted. If adding results failed, the
+	 * output file is closed as is, without finishing the JSON object.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (failed) {
+				log.warn("Results were not finished after a write error");
+				return;
+			}
+
+			while (drain()) {
+				log.warn("No results for query: {}", next);
+				next = order.hasNext() ? order.next() : null;
+			}
+
+			if (written > 0) {
+				writer.write("\n");
+			}
+			JsonWriter.writeIndent(writer, 0);
+			writer.write("}");
+		} finally {
+			writer.close();
+			for (Run run : runs) {
+				run.close();
+			}
+			runs.clear();
+		}
+	}
+
+	/**
+	 * Writes a string of any length.
+	 *
+	 * @param out  the stream to write to
+	 * @param text the string to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void writeString(DataOutputStream out, String text) throws IOException {
+		byte[] bytes = text.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+	 *
+	 * @param in the stream to read from
+	 * @return the string read
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * A sorted run of spilled queries, read one query at a time.
+	 */
+	private static class Run implements Closeable {
+		/** The temporary file holding the run. */
+		private final Path path;
+
+		/** The stream reading the run. */
+		private final DataInputStream in;
+
+		/** The query at the head of the run, or {@code null} if the run is done. */
+		private String query;
+
+		/** The formatted results of the query at the head of the run. */
+		private String formatted;
+
+		/**
+		 * Opens a run and reads its first query.
+		 *
+		 * @param path the temporary file holding the run
+		 * @throws IOException if an I/O error occurs
+		 */
+		private Run(Path path) throws IOException {
+			this.path = path;
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+			advance();
+		}
+
+		/**
+		 * Reads the next query of the run.
+		 *
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void advance() throws IOException {
+			try {
+				query = readString(in);
+				formatted = readString(in);
+			} catch (EOFException e) {
+				query = null;
+				formatted = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+			Files.deleteIfExists(path);
+		}
+	}
+}
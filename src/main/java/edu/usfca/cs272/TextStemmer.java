@@ -0,0 +1,218 @@
+package edu.usfca.cs272;
+
+import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import opennlp.tools.stemmer.Stemmer;
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Cleans, splits, and stems text that arrives one character at a time, with
+ * the same results as {@link FileStemmer#listStems(String)} on all of the text
+ * at once. Each word is cleaned on its own as soon as the whitespace after it
+ * arrives, so the text is never held in full or scanned again. The stems are
+ * collected in a list, or passed on one at a time as they are found.
+ *
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @see FileStemmer#clean(String)
+ * @see FileStemmer#split(String)
+ */
+public class TextStemmer {
+	/** No cleaned character other than whitespace has arrived yet. */
+	private static final int LEADING = 0;
+
+	/** The cleaned text starts with whitespace that {@link String#strip()} keeps. */
+	private static final int BLANK_START = 1;
+
+	/** A word was stemmed. */
+	private static final int STARTED = 2;
+
+	/** The stemmer to use. */
+	private final Stemmer stemmer;
+
+	/** The stems found so far, if they are collected. */
+	private final ArrayList<String> stems;
+
+	/** Where each stem is passed as it is found. */
+	private final Consumer<String> sink;
+
+	/** Where each cleaned word is passed with its stem, or {@code null}. */
+	private final BiConsumer<String, String> surfaces;
+
+	/** The characters of the current word, before cleaning. */
+	private final StringBuilder word;
+
+	/** How the text has started. */
+	private int start;
+
+	/**
+	 * Initializes an empty stemmer using the default stemmer for English, which
+	 * collects the stems in a list.
+	 */
+	public TextStemmer() {
+		this(new SnowballStemmer(ENGLISH));
+	}
+
+	/**
+	 * Initializes an empty stemmer that collects the stems in a list.
+	 *
+	 * @param stemmer the stemmer to use
+	 */
+	public TextStemmer(Stemmer stemmer) {
+		this(stemmer, null);
+	}
+
+	/**
+	 * Initializes an empty stemmer.
+	 *
+	 * @param stemmer the stemmer to use
+	 * @param sink    where to pass each stem as it is found, or {@code null} to
+	 *                collect the stems in a list
+	 */
+	public TextStemmer(Stemmer stemmer, Consumer<String> sink) {
+		this(stemmer, sink, null);
+	}
+
+	/**
+	 * Initializes an empty stemmer that also passes on each cleaned word before
+	 * it was stemmed, such as for wildcard search.
+	 *
+	 * @param stemmer  the stemmer to use
+	 * @param sink     where to pass each stem as it is found, or {@code null} to
+	 *                 collect the stems in a list
+	 * @param surfaces where to pass each cleaned word and its stem, or
+	 *                 {@code null} to only pass on the stems
+	 */
+	public TextStemmer(Stemmer stemmer, Consumer<String> sink, BiConsumer<String, String> surfaces) {
+		this.stemmer = stemmer;
+		this.stems = new ArrayList<>();
+		this.sink = sink == null ? stems::add : sink;
+		this.surfaces = surfaces;
+		this.word = new StringBuilder();
+		this.start = LEADING;
+	}
+
+	/**
+	 * Adds the next character of the text.
+	 *
+	 * @param c the character
+	 */
+	public void append(char c) {
+		if (!isSpace(c)) {
+			word.append(c);
+			return;
+		}
+
+		if (!word.isEmpty()) {
+			stem();
+		}
+		if (start == LEADING && !Character.isWhitespace(c)) {
+			// strip() keeps a leading no-break space, which splits off an empty word
+			start = BLANK_START;
+		}
+	}
+
+	/**
+	 * Adds the next characters of the text.
+	 *
+	 * @param text the characters
+	 */
+	public void append(CharSequence text) {
+		for (int i = 0; i < text.length(); i++) {
+			append(text.charAt(i));
+		}
+	}
+
+	/**
+	 * Stems the last word once the text has ended.
+	 */
+	public void finish() {
+		if (!word.isEmpty()) {
+			stem();
+		}
+	}
+
+	/**
+	 * Cleans and stems the current word.
+	 */
+	private void stem() {
+		String cleaned = clean(word);
+		word.setLength(0);
+		if (cleaned.isEmpty()) {
+			return;
+		}
+
+		if (start == BLANK_START) {
+			sink.accept(stemmer.stem("").toString());
+		}
+		start = STARTED;
+		String stem = stemmer.stem(cleaned).toString();
+		sink.accept(stem);
+		if (surfaces != null) {
+			surfaces.accept(cleaned, stem);
+		}
+	}
+
+	/**
+	 * Returns the stems found so far, if they are collected.
+	 *
+	 * @return the stems in the order found, or an empty list if they are passed
+	 *         on instead
+	 */
+	public List<String> stems() {
+		return stems;
+	}
+
+	/**
+	 * Clears the stems and any partial word, to start over. Stems that were
+	 * already passed on are not taken back.
+	 */
+	public void clear() {
+		stems.clear();
+		word.setLength(0);
+		start = LEADING;
+	}
+
+	/**
+	 * Cleans one word, the same as {@link FileStemmer#clean(String)}. A word of
+	 * ASCII characters does not need to be normalized.
+	 *
+	 * @param word the characters of the word
+	 * @return the cleaned word
+	 */
+	private static String clean(CharSequence word) {
+		StringBuilder letters = null;
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (c >= 0x80) {
+				return FileStemmer.clean(word.toString());
+			}
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+				if (letters != null) {
+					letters.append(c);
+				}
+			} else if (letters == null) {
+				letters = new StringBuilder(word.length());
+				letters.append(word, 0, i);
+			}
+		}
+		return (letters == null ? word.toString() : letters.toString()).toLowerCase();
+	}
+
+	/**
+	 * Determines whether a character is whitespace, as {@code \p{Space}} in a
+	 * pattern with {@link java.util.regex.Pattern#UNICODE_CHARACTER_CLASS}.
+	 *
+	 * @param c the character
+	 * @return true if the character is whitespace
+	 */
+	private static boolean isSpace(char c) {
+		return c == ' ' || (c >= '\t' && c <= '\r') || (c >= 0x80 && (c == 0x85 || Character.isSpaceChar(c)));
+	}
+}
@@ -20,6 +20,93 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		this.lock = new CustomReadWriteLock();
 	}
 
+	/**
+	 * Builds a k-gram index of every word for wildcard search
+	 */
+	@Override
+	public void enableWildcards() {
+		lock.writeLock().lock();
+		try {
+			super.enableWildcards();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Keeps the surface words added from now on along with their stems
+	 */
+	@Override
+	public void enableSurfaces() {
+		lock.writeLock().lock();
+		try {
+			super.enableSurfaces();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Determines whether wildcard search is enabled.
+	 *
+	 * @return true if wildcard search is enabled
+	 */
+	@Override
+	public boolean hasWildcards() {
+		lock.readLock().lock();
+		try {
+			return super.hasWildcards();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Determines whether the surface words are kept.
+	 *
+	 * @return true if the surface words are kept
+	 */
+	@Override
+	public boolean hasSurfaces() {
+		lock.readLock().lock();
+		try {
+			return super.hasSurfaces();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Records a cleaned word as it was written along with its stem.
+	 *
+	 * @param surface The cleaned word before stemming
+	 * @param stem    The stem of the word
+	 */
+	@Override
+	public void addSurface(String surface, String stem) {
+		lock.writeLock().lock();
+		try {
+			super.addSurface(surface, stem);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a summary of the k-gram index used for wildcard search
+	 *
+	 * @return A summary of the k-gram index, including its estimated memory use
+	 */
+	@Override
+	public String wildcardSummary() {
+		lock.readLock().lock();
+		try {
+			return super.wildcardSummary();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Adds a word with its position in a file to the inverted index
 	 *
@@ -52,6 +139,22 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	/**
+	 * Returns the generation of the index, which changes every time the index is
+	 * modified
+	 *
+	 * @return The current generation of the index
+	 */
+	@Override
+	public long getGeneration() {
+		lock.readLock().lock();
+		try {
+			return super.getGeneration();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Gets the total word count for a specific location
 	 *
@@ -261,6 +364,74 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	/**
+	 * Searches the inverted index for the specified queries.
+	 *
+	 * @param queries The set of queries to search for
+	 * @param options How to search for the queries
+	 * @return A list of search results
+	 */
+	@Override
+	public List<SearchResult> search(Set<String> queries, SearchOptions options) {
+		lock.readLock().lock();
+		try {
+			return super.search(queries, options);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Searches the inverted index for a parsed query line.
+	 *
+	 * @param query   The parsed query to search for
+	 * @param options How to search for the query
+	 * @return A list of search results
+	 */
+	@Override
+	public List<SearchResult> search(QueryParser.Query query, SearchOptions options) {
+		lock.readLock().lock();
+		try {
+			return super.search(query, options);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Plans a search.
+	 *
+	 * @param queries The set of queries to plan a search for
+	 * @param options How to search for the queries
+	 * @return The plan for the search
+	 */
+	@Override
+	public QueryPlan plan(Set<String> queries, SearchOptions options) {
+		lock.readLock().lock();
+		try {
+			return super.plan(queries, options);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Plans the search of a parsed query line.
+	 *
+	 * @param query   The parsed query to plan a search for
+	 * @param options How to search for the query
+	 * @return The plan for the search
+	 */
+	@Override
+	public QueryPlan plan(QueryParser.Query query, SearchOptions options) {
+		lock.readLock().lock();
+		try {
+			return super.plan(query, options);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Performs an exact search based on the provided set of queries.
 	 *
@@ -293,6 +464,38 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	/**
+	 * Performs an exact search for a batch of queries.
+	 *
+	 * @param batch The sets of queries to search for
+	 * @return A list of search results for each set of queries, in batch order
+	 */
+	@Override
+	public List<List<SearchResult>> exactSearchBatch(List<? extends Set<String>> batch) {
+		lock.readLock().lock();
+		try {
+			return super.exactSearchBatch(batch);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Performs a partial search for a batch of queries.
+	 *
+	 * @param batch The sets of queries to search for
+	 * @return A list of search results for each set of queries, in batch order
+	 */
+	@Override
+	public List<List<SearchResult>> partialSearchBatch(List<? extends Set<String>> batch) {
+		lock.readLock().lock();
+		try {
+			return super.partialSearchBatch(batch);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Writes the word counts to a JSON file
 	 *
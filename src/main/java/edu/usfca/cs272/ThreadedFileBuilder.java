@@ -2,11 +2,26 @@ package edu.usfca.cs272;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.usfca.cs272.CustomWorkQueue.Priority;
 
 /**
  * Multithreaded class for building and processing files/directories to generate
  * word counts and an inverted index
+ *
+ * <p>
+ * By default files are submitted in directory listing order. In size-aware mode,
+ * the file sizes are collected during traversal and the largest files are
+ * submitted first (longest job first), so a single huge file listed last does
+ * not hold up the whole build. Files smaller than {@link #BATCH_BYTES} are
+ * combined into batches to cut per-task overhead.
  */
 public class ThreadedFileBuilder extends FileBuilder {
 	/**
@@ -19,6 +34,25 @@ public class ThreadedFileBuilder extends FileBuilder {
 	 */
 	private final CustomWorkQueue workQueue;
 
+	/**
+	 * Whether to submit the largest files first instead of in listing order
+	 */
+	private final boolean sizeAware;
+
+	/**
+	 * Files found during traversal in size-aware mode, waiting to be scheduled
+	 */
+	private final ArrayList<SizedPath> found;
+
+	/**
+	 * Files at least this many bytes are submitted as their own task in size-aware
+	 * mode; smaller files are combined into batches of about this many bytes
+	 */
+	public static final long BATCH_BYTES = 64 * 1024;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
 	/**
 	 * Constructs an indexer and work queue for building
 	 * 
@@ -26,9 +60,23 @@ public class ThreadedFileBuilder extends FileBuilder {
 	 * @param workQueue The work queue for multithreading
 	 */
 	public ThreadedFileBuilder(ThreadSafeInvertedIndex indexer, CustomWorkQueue workQueue) {
+		this(indexer, workQueue, false);
+	}
+
+	/**
+	 * Constructs an indexer and work queue for building
+	 * 
+	 * @param indexer   Inverted index instance for processing
+	 * @param workQueue The work queue for multithreading
+	 * @param sizeAware Whether to submit the largest files first and batch small
+	 *                  files together
+	 */
+	public ThreadedFileBuilder(ThreadSafeInvertedIndex indexer, CustomWorkQueue workQueue, boolean sizeAware) {
 		super(indexer);
 		this.mtIndexer = indexer;
 		this.workQueue = workQueue;
+		this.sizeAware = sizeAware;
+		this.found = new ArrayList<>();
 	}
 
 	/**
@@ -39,8 +87,54 @@ public class ThreadedFileBuilder extends FileBuilder {
 	 */
 	@Override
 	public void buildStructures(Path inputPath) throws IOException {
+		long start = System.nanoTime();
+		found.clear();
 		super.buildStructures(inputPath);
+		if (sizeAware) {
+			schedule();
+		}
 		workQueue.finish();
+		log.debug("Built {} in {} ms ({})", inputPath, (System.nanoTime() - start) / 1_000_000,
+				sizeAware ? "largest first" : "listing order");
+	}
+
+	/**
+	 * Submits the files found during traversal from largest to smallest. Large
+	 * files get their own task and small files are combined into batches.
+	 */
+	private void schedule() {
+		found.sort(Comparator.comparingLong(SizedPath::size).reversed());
+
+		ArrayList<Path> batch = new ArrayList<>();
+		long batchBytes = 0;
+		for (SizedPath file : found) {
+			if (file.size() >= BATCH_BYTES) {
+				workQueue.execute(new FileTask(file.path()), Priority.BACKGROUND);
+				continue;
+			}
+
+			batch.add(file.path());
+			batchBytes += file.size();
+			if (batchBytes >= BATCH_BYTES) {
+				workQueue.execute(new BatchTask(batch), Priority.BACKGROUND);
+				batch = new ArrayList<>();
+				batchBytes = 0;
+			}
+		}
+
+		if (!batch.isEmpty()) {
+			workQueue.execute(new BatchTask(batch), Priority.BACKGROUND);
+		}
+		found.clear();
+	}
+
+	/**
+	 * A file found during traversal along with its size in bytes
+	 *
+	 * @param path The file
+	 * @param size The size of the file in bytes
+	 */
+	private record SizedPath(Path path, long size) {
 	}
 
 	/**
@@ -53,6 +147,8 @@ public class ThreadedFileBuilder extends FileBuilder {
 		private final Path location;
 
 		/**
+		 * Initializes a task that indexes a single file
+		 *
 		 * @param location Path to process
 		 */
 		public FileTask(Path location) {
@@ -63,7 +159,7 @@ public class ThreadedFileBuilder extends FileBuilder {
 		public void run() {
 			try {
 				InvertedIndex localIndex = new InvertedIndex();
-				FileBuilder.processFile(location, localIndex);
+				FileBuilder.processFile(location, localIndex, mtIndexer.hasSurfaces());
 				mtIndexer.addAll(localIndex);
 			} catch (IOException e) {
 				throw new UncheckedIOException(e);
@@ -72,13 +168,66 @@ public class ThreadedFileBuilder extends FileBuilder {
 	}
 
 	/**
-	 * Processes the specified file to generate word counts and an inverted index
+	 * Class to help process a batch of small files with a single task. A file that
+	 * cannot be read is skipped, and the first error is thrown once the rest of
+	 * the batch is added.
+	 */
+	private class BatchTask implements Runnable {
+		/**
+		 * Locations to process
+		 */
+		private final ArrayList<Path> locations;
+
+		/**
+		 * Initializes a task that indexes a batch of small files
+		 *
+		 * @param locations Paths to process
+		 */
+		public BatchTask(ArrayList<Path> locations) {
+			this.locations = locations;
+		}
+
+		@Override
+		public void run() {
+			// one unreadable file should not cost the rest of the batch its results
+			InvertedIndex localIndex = new InvertedIndex();
+			IOException failure = null;
+			for (Path location : locations) {
+				InvertedIndex fileIndex = new InvertedIndex();
+				try {
+					FileBuilder.processFile(location, fileIndex, mtIndexer.hasSurfaces());
+				} catch (IOException e) {
+					if (failure == null) {
+						failure = e;
+					} else {
+						failure.addSuppressed(e);
+					}
+					continue;
+				}
+				localIndex.addAll(fileIndex);
+			}
+			mtIndexer.addAll(localIndex);
+
+			if (failure != null) {
+				throw new UncheckedIOException(failure);
+			}
+		}
+	}
+
+	/**
+	 * Processes the specified file to generate word counts and an inverted index.
+	 * Building is bulk work, so it runs in the background lane. In size-aware mode
+	 * the file is only recorded here and submitted once traversal is done.
 	 *
 	 * @param location The path of the file to process
 	 * @throws IOException If an I/O error occurs
 	 */
 	@Override
 	public void processFile(Path location) throws IOException {
-		workQueue.execute(new FileTask(location));
+		if (sizeAware) {
+			found.add(new SizedPath(location, Files.size(location)));
+		} else {
+			workQueue.execute(new FileTask(location), Priority.BACKGROUND);
+		}
 	}
 }
\ No newline at end of file
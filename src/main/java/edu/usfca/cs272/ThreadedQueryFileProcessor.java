@@ -4,28 +4,66 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.usfca.cs272.CustomWorkQueue.Priority;
 import opennlp.tools.stemmer.snowball.SnowballStemmer;
 
 /**
  * Class responsible for query handling and adding search results
+ *
+ * <p>
+ * Identical stemmed queries are coalesced: the first task to see a query
+ * searches for it, and any task that sees the same query while that search is
+ * still running skips it instead of searching again or waiting for it.
+ *
+ * <p>
+ * Query lines are read and searched in batches, so posting lists shared by
+ * several queries in a batch are only traversed once.
+ *
+ * <p>
+ * Results may also be streamed to a file as each batch completes, using
+ * {@link #processQueries(Path, Path)}.
  */
 public class ThreadedQueryFileProcessor implements QueryFileProcessorInterface {
 	/**
-	 * Map to store search results
+	 * Number of query lines searched together by a single task
+	 */
+	public static final int BATCH_SIZE = 32;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * Placeholder kept for a query whose results were already streamed to a file
 	 */
-	private final Map<String, List<InvertedIndex.SearchResult>> searchResultsMap;
+	private static final List<InvertedIndex.SearchResult> STREAMED = List.of();
 
 	/**
-	 * Inverted index instance for searching
+	 * Map to store search results, or {@link #STREAMED} for streamed results
 	 */
-	private final ThreadSafeInvertedIndex mtIndexer;
+	private final ConcurrentSkipListMap<String, List<InvertedIndex.SearchResult>> searchResultsMap;
+
+	/**
+	 * Stemmed queries whose searches are currently running
+	 */
+	private final Set<String> inFlight;
+
+	/**
+	 * Cache used to search the inverted index
+	 */
+	private final QueryResultCache cache;
 
 	/**
 	 * Work queue instance for multithreading
@@ -33,9 +71,19 @@ public class ThreadedQueryFileProcessor implements QueryFileProcessorInterface {
 	private final CustomWorkQueue workQueue;
 
 	/**
-	 * A boolean indicating whether or not to partial search
+	 * How to search for each query
+	 */
+	private final SearchOptions options;
+
+	/**
+	 * Writer that results are streamed to, or null if results are kept in memory
+	 */
+	private volatile StreamingResultsWriter stream;
+
+	/**
+	 * The first error writing streamed results, or null if there was none
 	 */
-	private final boolean partial;
+	private final AtomicReference<IOException> failure;
 
 	/**
 	 * Constructs a new QueryFileProcsesor with the InvertedIndex
@@ -45,10 +93,34 @@ public class ThreadedQueryFileProcessor implements QueryFileProcessorInterface {
 	 * @param partial   boolean for partial search or not
 	 */
 	public ThreadedQueryFileProcessor(ThreadSafeInvertedIndex indexer, CustomWorkQueue workQueue, boolean partial) {
-		this.searchResultsMap = new TreeMap<>();
-		this.mtIndexer = indexer;
+		this(new QueryResultCache(indexer), workQueue, partial);
+	}
+
+	/**
+	 * Constructs a new QueryFileProcsesor that searches through a shared cache
+	 *
+	 * @param cache     The cache used to search the thread-safe InvertedIndex
+	 * @param workQueue The work queue for multithreading
+	 * @param partial   boolean for partial search or not
+	 */
+	public ThreadedQueryFileProcessor(QueryResultCache cache, CustomWorkQueue workQueue, boolean partial) {
+		this(cache, workQueue, SearchOptions.of(partial));
+	}
+
+	/**
+	 * Constructs a new QueryFileProcsesor that searches through a shared cache
+	 *
+	 * @param cache     The cache used to search the thread-safe InvertedIndex
+	 * @param workQueue The work queue for multithreading
+	 * @param options   How to search for each query
+	 */
+	public ThreadedQueryFileProcessor(QueryResultCache cache, CustomWorkQueue workQueue, SearchOptions options) {
+		this.searchResultsMap = new ConcurrentSkipListMap<>();
+		this.inFlight = ConcurrentHashMap.newKeySet();
+		this.cache = cache;
 		this.workQueue = workQueue;
-		this.partial = partial;
+		this.options = options;
+		this.failure = new AtomicReference<>();
 	}
 
 	/**
@@ -60,47 +132,167 @@ public class ThreadedQueryFileProcessor implements QueryFileProcessorInterface {
 	@Override
 	public void processQueries(Path queryPath) throws IOException {
 		try (BufferedReader reader = Files.newBufferedReader(queryPath)) {
+			ArrayList<String> batch = new ArrayList<>(BATCH_SIZE);
 			String line;
 			while ((line = reader.readLine()) != null) {
-				workQueue.execute(new QueryTask(line));
+				batch.add(line);
+				if (batch.size() == BATCH_SIZE) {
+					workQueue.execute(new QueryBatchTask(batch), Priority.NORMAL);
+					batch = new ArrayList<>(BATCH_SIZE);
+				}
+			}
+			if (!batch.isEmpty()) {
+				workQueue.execute(new QueryBatchTask(batch), Priority.NORMAL);
 			}
 		}
 		workQueue.finish();
 	}
 
 	/**
-	 * Class to help process queries
+	 * Processes search queries from a path, streaming each result to a JSON file
+	 * as its batch completes instead of keeping it in memory. Only the queries
+	 * themselves are kept, so {@link #getQueryLineResults(String)} returns an
+	 * empty list for them.
+	 *
+	 * <p>
+	 * If writing any result fails, the first failure is thrown once every task
+	 * has finished.
+	 *
+	 * @param queryPath   The path containing search queries
+	 * @param resultsPath The output path of the JSON file
+	 * @throws IOException If an I/O error occurs
+	 */
+	@Override
+	public void processQueries(Path queryPath, Path resultsPath) throws IOException {
+		failure.set(null);
+		try (StreamingResultsWriter writer = new StreamingResultsWriter(resultsPath, scanQueries(queryPath))) {
+			stream = writer;
+			processQueries(queryPath);
+			IOException error = failure.getAndSet(null);
+			if (error != null) {
+				throw error;
+			}
+		} finally {
+			stream = null;
+		}
+	}
+
+	/**
+	 * Records the search results of a query, streaming them to the results file
+	 * if there is one, and warns if they were cut short by the timeout. An error
+	 * writing the results is kept for {@link #processQueries(Path, Path)} to
+	 * throw, since worker threads cannot throw it themselves.
+	 *
+	 * @param queryVal      The stemmed query
+	 * @param searchResults The search results for the query
+	 */
+	private void record(String queryVal, List<InvertedIndex.SearchResult> searchResults) {
+		if (InvertedIndex.isTruncated(searchResults)) {
+			log.warn("Results for \"{}\" were cut short by the {} ms timeout", queryVal, options.timeout());
+		}
+		StreamingResultsWriter writer = stream;
+		if (writer == null) {
+			searchResultsMap.put(queryVal, searchResults);
+			return;
+		}
+		searchResultsMap.put(queryVal, STREAMED);
+		try {
+			writer.add(queryVal, searchResults);
+		} catch (IOException e) {
+			failure.compareAndSet(null, e);
+		}
+	}
+
+	/**
+	 * Class to help process a batch of query lines. The distinct queries in the
+	 * batch that are not already answered or being answered by another task are
+	 * searched together with {@link QueryResultCache#searchBatch(List, SearchOptions)}.
 	 */
-	private class QueryTask implements Runnable {
+	private class QueryBatchTask implements Runnable {
 		/**
-		 * The query line to process
+		 * The query lines to process
 		 */
-		private final String queryLine;
+		private final List<String> queryLines;
 
 		/**
-		 * @param queryLine The query line to process
+		 * @param queryLines The query lines to process
 		 */
-		public QueryTask(String queryLine) {
-			this.queryLine = queryLine;
+		public QueryBatchTask(List<String> queryLines) {
+			this.queryLines = queryLines;
 		}
 
 		@Override
 		public void run() {
 			SnowballStemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
-			TreeSet<String> query = FileStemmer.uniqueStems(queryLine, stemmer);
-			if (query.isEmpty()) {
-				return;
+			TreeMap<String, QueryParser.Query> queries = new TreeMap<>();
+			for (String queryLine : queryLines) {
+				QueryParser.Query query = QueryParser.parse(queryLine, stemmer);
+				if (!query.isEmpty()) {
+					queries.putIfAbsent(query.toString(), query);
+				}
 			}
-			String queryVal = String.join(" ", query);
-			synchronized (this) {
+
+			ArrayList<String> owned = new ArrayList<>();
+			ArrayList<QueryParser.Query> searches = new ArrayList<>();
+
+			// a query another task is searching is recorded by that task
+			for (Map.Entry<String, QueryParser.Query> entry : queries.entrySet()) {
+				String queryVal = entry.getKey();
+				if (searchResultsMap.containsKey(queryVal) || !inFlight.add(queryVal)) {
+					continue;
+				}
+
 				if (searchResultsMap.containsKey(queryVal)) {
-					return;
+					inFlight.remove(queryVal);
+				} else {
+					owned.add(queryVal);
+					searches.add(entry.getValue());
+				}
+			}
+
+			try {
+				if (!searches.isEmpty()) {
+					List<List<InvertedIndex.SearchResult>> results = search(searches);
+					for (int i = 0; i < owned.size(); i++) {
+						record(owned.get(i), results.get(i));
+					}
 				}
+			} finally {
+				inFlight.removeAll(owned);
 			}
-			List<InvertedIndex.SearchResult> searchResults = mtIndexer.search(query, partial);
-			synchronized (this) {
-				searchResultsMap.put(queryVal, searchResults);
+		}
+
+		/**
+		 * Searches for parsed queries. Queries with only ordinary words are searched
+		 * together as a batch, and any other queries one at a time. Fuzzy queries
+		 * are always searched one at a time, since they match the words as they
+		 * were written.
+		 *
+		 * @param searches The parsed queries to search for
+		 * @return The search results for each query, in order
+		 */
+		private List<List<InvertedIndex.SearchResult>> search(List<QueryParser.Query> searches) {
+			ArrayList<Integer> batched = new ArrayList<>();
+			ArrayList<Set<String>> batch = new ArrayList<>();
+			ArrayList<List<InvertedIndex.SearchResult>> results = new ArrayList<>(searches.size());
+			for (int i = 0; i < searches.size(); i++) {
+				QueryParser.Query query = searches.get(i);
+				if (!query.isSimple() || options.isFuzzy()) {
+					results.add(cache.search(query, options));
+				} else {
+					results.add(null);
+					batched.add(i);
+					batch.add(query.terms());
+				}
+			}
+
+			if (!batch.isEmpty()) {
+				List<List<InvertedIndex.SearchResult>> found = cache.searchBatch(batch, options);
+				for (int i = 0; i < batched.size(); i++) {
+					results.set(batched.get(i), found.get(i));
+				}
 			}
+			return results;
 		}
 	}
 
@@ -111,7 +303,7 @@ public class ThreadedQueryFileProcessor implements QueryFileProcessorInterface {
 	 */
 	@Override
 	public void processQueries(String queryLine) {
-		workQueue.execute(new QueryTask(queryLine));
+		workQueue.execute(new QueryBatchTask(List.of(queryLine)), Priority.NORMAL);
 	}
 
 	/**
@@ -121,9 +313,8 @@ public class ThreadedQueryFileProcessor implements QueryFileProcessorInterface {
 	 * @return The stemmed query
 	 */
 	@Override
-	public synchronized String processQueryLine(String queryLine) {
-		TreeSet<String> query = FileStemmer.uniqueStems(queryLine);
-		return String.join(" ", query);
+	public String processQueryLine(String queryLine) {
+		return QueryParser.parse(queryLine).toString();
 	}
 
 	/**
@@ -133,7 +324,7 @@ public class ThreadedQueryFileProcessor implements QueryFileProcessorInterface {
 	 * @return True if search results exist, false otherwise
 	 */
 	@Override
-	public synchronized boolean hasSearchResults(String queryLine) {
+	public boolean hasSearchResults(String queryLine) {
 		String queryVal = processQueryLine(queryLine);
 		return searchResultsMap.containsKey(queryVal);
 	}
@@ -145,13 +336,13 @@ public class ThreadedQueryFileProcessor implements QueryFileProcessorInterface {
 	 * @return The search results for the query line
 	 */
 	@Override
-	public synchronized List<InvertedIndex.SearchResult> getQueryLineResults(String queryLine) {
+	public List<InvertedIndex.SearchResult> getQueryLineResults(String queryLine) {
 		String queryVal = processQueryLine(queryLine);
 		List<InvertedIndex.SearchResult> results = searchResultsMap.get(queryVal);
 		if (results == null) {
 			return Collections.emptyList();
 		}
-		return Collections.unmodifiableList(results);
+		return InvertedIndex.unmodifiable(results);
 	}
 
 	/**
@@ -160,7 +351,7 @@ public class ThreadedQueryFileProcessor implements QueryFileProcessorInterface {
 	 * @return An unmodifiable set containing the queries for search results
 	 */
 	@Override
-	public synchronized Set<String> viewQueryResults() {
+	public Set<String> viewQueryResults() {
 		return Collections.unmodifiableSet(searchResultsMap.keySet());
 	}
 
@@ -171,7 +362,7 @@ public class ThreadedQueryFileProcessor implements QueryFileProcessorInterface {
 	 * @throws IOException if an I/O error occurs
 	 */
 	@Override
-	public synchronized void writeResults(Path resultsPath) throws IOException {
+	public void writeResults(Path resultsPath) throws IOException {
 		JsonWriter.writeResults(searchResultsMap, resultsPath);
 	}
 
@@ -181,7 +372,7 @@ public class ThreadedQueryFileProcessor implements QueryFileProcessorInterface {
 	 * @return a string representation of the search results map
 	 */
 	@Override
-	public synchronized String toString() {
+	public String toString() {
 		return searchResultsMap.toString();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,179 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+
+/**
+ * A thread-safe first-in first-out queue of URLs waiting to be crawled. Up to
+ * a limit, the URLs are kept in memory. Past that, new URLs are appended to a
+ * temporary file instead, and read back in order once the URLs in memory run
+ * out, so a crawl can have millions of pending URLs without holding them all.
+ */
+public class UrlFrontier implements Closeable {
+	/** The default number of pending URLs kept in memory. */
+	public static final int DEFAULT_MEMORY_LIMIT = 100_000;
+
+	/** The oldest pending URLs. */
+	private final ArrayDeque<String> memory;
+
+	/** The number of pending URLs kept in memory. */
+	private final int limit;
+
+	/** The temporary file of newer pending URLs, or {@code null} if none. */
+	private Path spill;
+
+	/** The stream appending to the temporary file. */
+	private DataOutputStream spillOut;
+
+	/** The stream reading back from the temporary file. */
+	private DataInputStream spillIn;
+
+	/** Number of URLs in the temporary file that were not read back yet. */
+	private long spilled;
+
+	/** Number of URLs ever written to a temporary file. */
+	private long totalSpilled;
+
+	/**
+	 * Initializes an empty frontier with the default memory limit.
+	 */
+	public UrlFrontier() {
+		this(DEFAULT_MEMORY_LIMIT);
+	}
+
+	/**
+	 * Initializes an empty frontier.
+	 *
+	 * @param limit the number of pending URLs kept in memory
+	 */
+	public UrlFrontier(int limit) {
+		this.memory = new ArrayDeque<>();
+		this.limit = Math.max(1, limit);
+		this.spilled = 0;
+		this.totalSpilled = 0;
+	}
+
+	/**
+	 * Adds a URL to the end of the queue.
+	 *
+	 * @param uri the URL to add
+	 */
+	public synchronized void add(URI uri) {
+		if (spilled == 0 && memory.size() < limit) {
+			memory.add(uri.toString());
+			return;
+		}
+
+		try {
+			if (spill == null) {
+				spill = Files.createTempFile("frontier", ".urls");
+				spillOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spill)));
+			}
+			spillOut.writeUTF(uri.toString());
+			spilled++;
+			totalSpilled++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Removes the URL at the front of the queue.
+	 *
+	 * @return the oldest pending URL, or {@code null} if there is none
+	 */
+	public synchronized URI poll() {
+		if (memory.isEmpty() && spilled > 0) {
+			refill();
+		}
+		String next = memory.poll();
+		return next == null ? null : URI.create(next);
+	}
+
+	/**
+	 * Reads the oldest spilled URLs back into memory, and deletes the temporary
+	 * file once every URL in it has been read.
+	 */
+	private void refill() {
+		try {
+			spillOut.flush();
+			if (spillIn == null) {
+				spillIn = new DataInputStream(new BufferedInputStream(Files.newInputStream(spill)));
+			}
+			while (spilled > 0 && memory.size() < limit) {
+				memory.add(spillIn.readUTF());
+				spilled--;
+			}
+			if (spilled == 0) {
+				deleteSpill();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Closes and deletes the temporary file.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void deleteSpill() throws IOException {
+		if (spillIn != null) {
+			spillIn.close();
+			spillIn = null;
+		}
+		if (spillOut != null) {
+			spillOut.close();
+			spillOut = null;
+		}
+		if (spill != null) {
+			Files.deleteIfExists(spill);
+			spill = null;
+		}
+	}
+
+	/**
+	 * Determines whether there are no pending URLs.
+	 *
+	 * @return true if the queue is empty
+	 */
+	public synchronized boolean isEmpty() {
+		return memory.isEmpty() && spilled == 0;
+	}
+
+	/**
+	 * Returns the number of pending URLs.
+	 *
+	 * @return the size of the queue
+	 */
+	public synchronized long size() {
+		return memory.size() + spilled;
+	}
+
+	/**
+	 * Drops every pending URL and deletes the temporary file.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		memory.clear();
+		spilled = 0;
+		deleteSpill();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d pending urls (%d in memory), %d spilled to disk in total", size(), memory.size(),
+				totalSpilled);
+	}
+}
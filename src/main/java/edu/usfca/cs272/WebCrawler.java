@@ -1,18 +1,119 @@
 package edu.usfca.cs272;
 
+import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.usfca.cs272.CustomWorkQueue.Priority;
+import edu.usfca.cs272.HtmlTokenizer.Tokens;
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
 
 /**
  * Multithreaded class for web crawling
+ *
+ * <p>
+ * Every URL is claimed the first time it is seen, until the total number of
+ * pages is claimed. Claimed URLs wait in a {@link HostScheduler}, and only a
+ * limited number of them are fetched at once, so a large crawl does not flood
+ * the work queue with tasks. The thread that starts the crawl hands each
+ * claimed URL to the work queue once its host is ready, and waits on the
+ * scheduler for fetches to finish or for a host's delay to pass. Pages are
+ * fetched over persistent connections shared through a {@link ConnectionPool}.
+ *
+ * <p>
+ * With an {@link AsyncHtmlFetcher}, pages are fetched without holding a worker
+ * thread, and a crawl task is only submitted once its page has arrived, so far
+ * more pages can be in flight than there are workers.
+ *
+ * <p>
+ * Otherwise, each page is tokenized and stemmed as it is read from its
+ * connection, so it is never held as a whole. Its words go to a local index
+ * for the page, which is added to the shared index only once the whole page was
+ * read. A page longer than the maximum page size is given up on as soon as it
+ * passes the limit, and leaves nothing in the index.
+ *
+ * <p>
+ * With a {@link CrawlJournal}, every claimed URL and crawled page is logged, so
+ * a crawl that stopped part way can resume from where its log ends. With a
+ * {@link FetchCache}, a recrawl only downloads the pages that changed, and
+ * reuses the tokens of the rest.
  */
 public class WebCrawler {
+	/** The default maximum number of bytes of a page, once decompressed. */
+	public static final long DEFAULT_MAX_PAGE_BYTES = 32L * 1024 * 1024;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
 	/**
-	 * Set of visited uris
+	 * Fingerprints of every URL seen so far
 	 */
-	private final HashSet<URI> visited;
+	private final FingerprintSet seen;
+
+	/**
+	 * URLs claimed but not fetched yet, by host
+	 */
+	private final HostScheduler scheduler;
+
+	/**
+	 * Number of URLs claimed for the current crawl
+	 */
+	private final AtomicInteger claimed;
+
+	/**
+	 * Number of crawl tasks that were submitted but have not finished, guarded by
+	 * the scheduler
+	 */
+	private int inFlight;
+
+	/**
+	 * Maximum number of crawl tasks submitted at once
+	 */
+	private final int maxInFlight;
+
+	/**
+	 * Total number of URLs to claim for the current crawl
+	 */
+	private volatile int total;
+
+	/**
+	 * Persistent connections used by the current crawl
+	 */
+	private volatile ConnectionPool pool;
+
+	/**
+	 * Log of the current crawl, or {@code null} if it is not logged
+	 */
+	private volatile CrawlJournal journal;
+
+	/**
+	 * Cache of fetched pages on disk, or {@code null} to fetch every page
+	 */
+	private volatile FetchCache cache;
+
+	/**
+	 * Fetcher for pages without blocking, or {@code null} to fetch in the tasks
+	 */
+	private final AsyncHtmlFetcher async;
+
+	/**
+	 * Maximum number of bytes of a page, once decompressed
+	 */
+	private final long maxPageBytes;
 
 	/**
 	 * Thread safe inverted index instance for crawling
@@ -26,41 +127,237 @@ public class WebCrawler {
 
 	/**
 	 * Constructs an indexer and work queue for building
-	 * 
+	 *
 	 * @param indexer   The indexer to help with crawling
 	 * @param workQueue The work queue for multithreading
 	 */
 	public WebCrawler(ThreadSafeInvertedIndex indexer, CustomWorkQueue workQueue) {
+		this(indexer, workQueue, new FingerprintSet(), new HostScheduler(new UrlFrontier(), workQueue.size(), 0),
+				2 * workQueue.size());
+	}
+
+	/**
+	 * Constructs a crawler with its own seen set and scheduler
+	 *
+	 * @param indexer     The indexer to help with crawling
+	 * @param workQueue   The work queue for multithreading
+	 * @param seen        The set of URLs seen so far
+	 * @param scheduler   The per-host queues of URLs waiting to be fetched
+	 * @param maxInFlight The maximum number of pages fetched at once
+	 */
+	public WebCrawler(ThreadSafeInvertedIndex indexer, CustomWorkQueue workQueue, FingerprintSet seen,
+			HostScheduler scheduler, int maxInFlight) {
+		this(indexer, workQueue, seen, scheduler, maxInFlight, null);
+	}
+
+	/**
+	 * Constructs a crawler that may fetch pages without blocking
+	 *
+	 * @param indexer     The indexer to help with crawling
+	 * @param workQueue   The work queue for multithreading
+	 * @param seen        The set of URLs seen so far
+	 * @param scheduler   The per-host queues of URLs waiting to be fetched
+	 * @param maxInFlight The maximum number of pages fetched at once
+	 * @param async       The fetcher for pages without blocking, or {@code null}
+	 *                    to fetch each page in its crawl task
+	 */
+	public WebCrawler(ThreadSafeInvertedIndex indexer, CustomWorkQueue workQueue, FingerprintSet seen,
+			HostScheduler scheduler, int maxInFlight, AsyncHtmlFetcher async) {
+		this(indexer, workQueue, seen, scheduler, maxInFlight, async, DEFAULT_MAX_PAGE_BYTES);
+	}
+
+	/**
+	 * Constructs a crawler with a limit on the size of each page
+	 *
+	 * @param indexer      The indexer to help with crawling
+	 * @param workQueue    The work queue for multithreading
+	 * @param seen         The set of URLs seen so far
+	 * @param scheduler    The per-host queues of URLs waiting to be fetched
+	 * @param maxInFlight  The maximum number of pages fetched at once
+	 * @param async        The fetcher for pages without blocking, or
+	 *                     {@code null} to fetch each page in its crawl task
+	 * @param maxPageBytes The maximum number of bytes of a page, once
+	 *                     decompressed
+	 */
+	public WebCrawler(ThreadSafeInvertedIndex indexer, CustomWorkQueue workQueue, FingerprintSet seen,
+			HostScheduler scheduler, int maxInFlight, AsyncHtmlFetcher async, long maxPageBytes) {
+		this.async = async;
+		this.maxPageBytes = maxPageBytes > 0 ? maxPageBytes : DEFAULT_MAX_PAGE_BYTES;
 		this.indexer = indexer;
 		this.workQueue = workQueue;
-		visited = new HashSet<>();
+		this.seen = seen;
+		this.scheduler = scheduler;
+		this.claimed = new AtomicInteger();
+		this.journal = null;
+		this.cache = null;
+		this.inFlight = 0;
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+
+	/**
+	 * Sets the cache of fetched pages used by the following crawls
+	 *
+	 * @param cache The cache of fetched pages, or {@code null} to fetch every page
+	 */
+	public void setFetchCache(FetchCache cache) {
+		this.cache = cache;
 	}
 
 	/**
 	 * Initiates the crawling process for the seed
-	 * 
+	 *
 	 * @param seed  The URI to start crawling from
 	 * @param total The total number of URIs to crawl
 	 * @throws URISyntaxException If the syntax is invalid
 	 */
 	public void startCrawl(String seed, int total) throws URISyntaxException {
-		crawl(new URI(seed), total);
+		try {
+			startCrawl(seed, total, null);
+		} catch (IOException e) {
+			// only reading a crawl log can fail
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Initiates the crawling process for the seed, logging the crawl. If the log
+	 * is resumed, the pages it has were already added to the index, and the
+	 * crawl continues with the URLs it claimed but did not crawl.
+	 *
+	 * @param seed    The URI to start crawling from
+	 * @param total   The total number of URIs to crawl
+	 * @param journal The log of the crawl, or {@code null} to not log it
+	 * @throws URISyntaxException If the syntax is invalid
+	 * @throws IOException        If unable to read the log
+	 */
+	public void startCrawl(String seed, int total, CrawlJournal journal) throws URISyntaxException, IOException {
+		this.total = total;
+		claimed.set(0);
+		if (journal != null) {
+			resume(journal.recover(indexer));
+		}
+		this.journal = journal;
+		pool = new ConnectionPool();
+		claim(List.of(new URI(seed)));
+		dispatch();
 		workQueue.finish();
+		pool.close();
+		this.journal = null;
+
+		log.debug("Crawled {} pages; seen {}", claimed.get(), seen);
+		log.debug("Connections: {}", pool);
+		if (async != null) {
+			log.debug("Async fetches: {}", async);
+		}
+		if (journal != null) {
+			log.debug("Journal: {}", journal);
+		}
+		if (cache != null) {
+			log.debug("Fetch cache: {}", cache);
+		}
+		synchronized (scheduler) {
+			log.debug("Scheduler: {}", scheduler);
+			try {
+				scheduler.close();
+			} catch (IOException e) {
+				log.catching(e);
+			}
+		}
 	}
 
 	/**
-	 * Crawls the given URI and its hyperlinks
-	 * 
-	 * @param uri   The URI to crawl
-	 * @param total The total number of URIs to crawl
+	 * Restores a crawl from its log: every claimed URI is seen again, and the ones
+	 * that were not crawled yet are scheduled.
+	 *
+	 * @param recovery The URIs claimed and crawled before
 	 */
-	private void crawl(URI uri, int total) {
-		if (visited.size() >= total || visited.contains(uri)) {
-			return;
+	private void resume(CrawlJournal.Recovery recovery) {
+		int pending = 0;
+		synchronized (scheduler) {
+			for (URI uri : recovery.claimed()) {
+				if (seen.add(uri) && claimed.get() < total) {
+					claimed.incrementAndGet();
+					if (!recovery.crawled().contains(uri)) {
+						scheduler.add(uri);
+						pending++;
+					}
+				}
+			}
 		}
-		if (visited.size() < total) {
-			visited.add(uri);
-			workQueue.execute(new CrawlTask(uri, total));
+		if (!recovery.claimed().isEmpty()) {
+			log.info("Resuming crawl: {} pages crawled, {} pending", recovery.crawled().size(), pending);
+		}
+	}
+
+	/**
+	 * Claims each URI for crawling that was not seen before, until the total is
+	 * reached.
+	 *
+	 * @param uris The URIs to claim
+	 */
+	private void claim(List<URI> uris) {
+		ArrayList<URI> claims = new ArrayList<>();
+		for (URI uri : uris) {
+			if (claimed.get() >= total) {
+				break;
+			}
+			if (seen.add(uri) && claimed.getAndUpdate(count -> count < total ? count + 1 : count) < total) {
+				claims.add(uri);
+			}
+		}
+
+		if (!claims.isEmpty()) {
+			CrawlJournal journal = this.journal;
+			if (journal != null) {
+				// logged before any of them can be crawled
+				journal.claimed(claims);
+			}
+			synchronized (scheduler) {
+				for (URI uri : claims) {
+					scheduler.add(uri);
+				}
+				scheduler.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Submits crawl tasks for claimed URIs as their hosts become ready, keeping at
+	 * most the maximum number of tasks in flight, until every claimed URI has been
+	 * crawled. Crawling is bulk work, so it runs in the background lane.
+	 */
+	private void dispatch() {
+		synchronized (scheduler) {
+			while (true) {
+				URI next = inFlight < maxInFlight ? scheduler.next() : null;
+				if (next != null) {
+					inFlight++;
+					if (async == null) {
+						workQueue.execute(new CrawlTask(next), Priority.BACKGROUND);
+					} else {
+						URI uri = next;
+						async.fetch(uri, 3, maxPageBytes)
+								.thenAccept(html -> workQueue.execute(new CrawlTask(uri, html), Priority.BACKGROUND));
+					}
+					continue;
+				}
+				if (inFlight == 0 && scheduler.isEmpty()) {
+					return;
+				}
+
+				long wait = inFlight < maxInFlight ? scheduler.waitNanos() : -1;
+				try {
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.timedWait(scheduler, wait);
+					} else {
+						scheduler.wait();
+					}
+				} catch (InterruptedException e) {
+					log.catching(e);
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
 		}
 	}
 
@@ -74,45 +371,178 @@ public class WebCrawler {
 		private final URI uri;
 
 		/**
-		 * The total number of URIs to crawl
+		 * The HTML already fetched for the URI
 		 */
-		private final int total;
+		private final String html;
 
 		/**
-		 * @param uri   The URI to crawl
-		 * @param total The number of URIs to crawl
+		 * Whether the HTML was already fetched
 		 */
-		public CrawlTask(URI uri, int total) {
+		private final boolean fetched;
+
+		/**
+		 * Whether the page turned out to be irregular while it was tokenized
+		 */
+		private boolean irregular;
+
+		/**
+		 * Initializes a task that fetches and crawls a URI
+		 *
+		 * @param uri The URI to crawl
+		 */
+		public CrawlTask(URI uri) {
+			this.uri = uri;
+			this.html = null;
+			this.fetched = false;
+			this.irregular = false;
+		}
+
+		/**
+		 * Initializes a task that crawls a page that was already fetched
+		 *
+		 * @param uri  The URI that was fetched
+		 * @param html The HTML fetched for the URI, or {@code null} if there is none
+		 */
+		public CrawlTask(URI uri, String html) {
 			this.uri = uri;
-			this.total = total;
+			this.html = html;
+			this.fetched = true;
+			this.irregular = false;
 		}
 
 		@Override
 		public void run() {
-			String htmlContent = HtmlFetcher.fetch(uri, 3);
-			if (htmlContent != null) {
-				String cleanedHtml = HtmlCleaner.stripBlockElements(htmlContent);
-				ArrayList<URI> links = LinkFinder.listUris(uri, cleanedHtml);
-				
-				for (URI link : links) {
-					if (visited.size() > total) {
-						break;
-					}
-					if (!visited.contains(link)) {
-						crawl(link, total);
-					}
+			try {
+				crawl();
+			} finally {
+				synchronized (scheduler) {
+					inFlight--;
+					scheduler.done(uri);
+					scheduler.notifyAll();
 				}
-				
-				cleanedHtml = HtmlCleaner.stripTags(cleanedHtml);
-				cleanedHtml = HtmlCleaner.stripEntities(cleanedHtml);
-				ArrayList<String> words = FileStemmer.listStems(cleanedHtml);
-				int position = 0;
-				for (String word : words) {
-					position++;
-					URI cleanURI = LinkFinder.clean(uri);
-					indexer.addWord(word, cleanURI.toString(), position);
+			}
+		}
+
+		/**
+		 * Fetches the page, claims its links, and adds its words to the index. An
+		 * irregular page is cleaned again from its whole text, which means fetching
+		 * it a second time if it was streamed.
+		 */
+		private void crawl() {
+			String location = LinkFinder.clean(uri).toString();
+			Page page;
+			if (fetched) {
+				try {
+					page = html == null ? null : tokenize(new StringReader(html), location);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
 				}
+			} else {
+				page = HtmlFetcher.fetch(uri, 3, pool, maxPageBytes, cache,
+						body -> tokenize(HtmlFetcher.lines(body), location), new PageCodec(location));
 			}
+
+			if (irregular) {
+				String text = fetched ? html
+						: HtmlFetcher.fetch(uri, 3, pool, maxPageBytes, cache, HtmlFetcher::readLines, null);
+				if (text != null) {
+					InvertedIndex local = new InvertedIndex();
+					Tokens tokens = HtmlTokenizer.clean(text);
+					TextStemmer words = stemmer(local, location, indexer.hasSurfaces());
+					words.append(tokens.text());
+					words.finish();
+					page = new Page(tokens.hrefs(), local);
+				}
+			}
+
+			if (page != null) {
+				claim(LinkFinder.listUris(uri, page.hrefs()));
+			}
+			CrawlJournal journal = WebCrawler.this.journal;
+			if (journal != null) {
+				// logged after its links were claimed, and before the index takes its postings
+				journal.crawled(uri, location, page != null ? page.words() : null);
+			}
+			if (page != null && page.words().numCounts() > 0) {
+				indexer.addAll(page.words());
+			}
+		}
+
+		/**
+		 * Tokenizes a page as it is read, remembering whether it was irregular
+		 *
+		 * @param reader   The page to read
+		 * @param location The location of the page
+		 * @return The tokens of the page, or {@code null} if it is irregular
+		 * @throws IOException If unable to read the page
+		 */
+		private Page tokenize(Reader reader, String location) throws IOException {
+			InvertedIndex local = new InvertedIndex();
+			List<String> hrefs = HtmlTokenizer.tokenize(reader, stemmer(local, location, indexer.hasSurfaces()));
+			irregular = hrefs == null;
+			return irregular ? null : new Page(hrefs, local);
+		}
+	}
+
+	/**
+	 * The tokens of a crawled page
+	 *
+	 * @param hrefs The href values of the page
+	 * @param words The local index of the words of the page
+	 */
+	private record Page(List<String> hrefs, InvertedIndex words) {
+	}
+
+	/**
+	 * Encodes the tokens of a page, so they can be cached with its body
+	 */
+	private static class PageCodec implements FetchCache.Codec<Page> {
+		/**
+		 * The location the words of the page are indexed under
+		 */
+		private final String location;
+
+		/**
+		 * Initializes a codec for the pages fetched from a location
+		 *
+		 * @param location The location the words of the page are indexed under
+		 */
+		public PageCodec(String location) {
+			this.location = location;
+		}
+
+		@Override
+		public void write(Page page, DataOutputStream out) throws IOException {
+			out.writeInt(page.hrefs().size());
+			for (String href : page.hrefs()) {
+				CrawlJournal.writeString(out, href);
+			}
+			CrawlJournal.writePostings(out, location, page.words());
+		}
+
+		@Override
+		public Page read(DataInputStream in) throws IOException {
+			int count = in.readInt();
+			ArrayList<String> hrefs = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				hrefs.add(CrawlJournal.readString(in));
+			}
+			return new Page(hrefs, CrawlJournal.readPostings(in, location));
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Creates a stemmer that adds each stem to a local index as the next word of
+	 * a page
+	 *
+	 * @param local    The local index for the page
+	 * @param location The location of the page
+	 * @param surfaces Whether to also add the surface words
+	 * @return The stemmer
+	 */
+	private static TextStemmer stemmer(InvertedIndex local, String location, boolean surfaces) {
+		return new TextStemmer(new SnowballStemmer(ENGLISH),
+				stem -> local.addWord(stem, location, local.getTotalWordCount(location) + 1),
+				surfaces ? local::addSurface : null);
+	}
+}
@@ -0,0 +1,427 @@
+package edu.usfca.cs272;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.usfca.cs272.CustomWorkQueue.Priority;
+
+/**
+ * Collects counters and latency histograms for a {@link CustomWorkQueue}, both
+ * for the queue as a whole and for each type of task (the class of the
+ * submitted {@link Runnable}). The metrics are exposed through JMX and can be
+ * periodically summarized to the log. All updates are lock-free.
+ *
+ * @see WorkQueueMetricsMXBean
+ * @see LatencyHistogram
+ */
+public class WorkQueueMetrics implements WorkQueueMetricsMXBean {
+	/** How often (in milliseconds) a summary is logged by default. */
+	public static final long REPORT_MILLIS = 10_000;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** Used to give each queue a unique JMX name. */
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	/** Cached task type names for each task class. */
+	private static final ClassValue<String> typeNames = new TypeNames();
+
+	/** The name these metrics are registered under. */
+	private final String name;
+
+	/** Returns the current number of workers. */
+	private final IntSupplier workers;
+
+	/** Number of tasks added to the queue. */
+	private final LongAdder enqueued;
+
+	/** Number of tasks taken from the queue. */
+	private final LongAdder dequeued;
+
+	/** Number of tasks that threw an exception. */
+	private final LongAdder failed;
+
+	/** Number of tasks currently waiting in the queue. */
+	private final AtomicLong depth;
+
+	/** Largest number of tasks waiting in the queue. */
+	private final AtomicLong maxDepth;
+
+	/** Number of times a worker had to wait for work. */
+	private final LongAdder idleWaits;
+
+	/** Total time in nanoseconds workers spent waiting for work. */
+	private final LongAdder idleNanos;
+
+	/** Time tasks spent waiting in the queue. */
+	private final LatencyHistogram wait;
+
+	/** Time tasks spent running. */
+	private final LatencyHistogram run;
+
+	/** Time tasks spent waiting in the queue, for each priority lane. */
+	private final EnumMap<Priority, LatencyHistogram> lanes;
+
+	/** Metrics for each type of task. */
+	private final ConcurrentHashMap<String, TaskMetrics> types;
+
+	/** Thread that logs a periodic summary, or {@code null} if not reporting. */
+	private Thread reporter;
+
+	/**
+	 * Initializes empty metrics.
+	 *
+	 * @param workers returns the current number of workers
+	 */
+	public WorkQueueMetrics(IntSupplier workers) {
+		this.name = "queue" + instances.incrementAndGet();
+		this.workers = workers;
+		this.enqueued = new LongAdder();
+		this.dequeued = new LongAdder();
+		this.failed = new LongAdder();
+		this.depth = new AtomicLong();
+		this.maxDepth = new AtomicLong();
+		this.idleWaits = new LongAdder();
+		this.idleNanos = new LongAdder();
+		this.wait = new LatencyHistogram();
+		this.run = new LatencyHistogram();
+		this.lanes = new EnumMap<>(Priority.class);
+		this.types = new ConcurrentHashMap<>();
+
+		for (Priority priority : Priority.values()) {
+			lanes.put(priority, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Returns the metrics for the type of the given task.
+	 *
+	 * @param task the task
+	 * @return the metrics for that type of task
+	 */
+	private TaskMetrics type(Runnable task) {
+		return types.computeIfAbsent(typeNames.get(task.getClass()), TaskMetrics::new);
+	}
+
+	/**
+	 * Records that a task was added to the queue.
+	 */
+	public void enqueued() {
+		enqueued.increment();
+		maxDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+	}
+
+	/**
+	 * Records that a task was taken from the queue.
+	 *
+	 * @param task     the task
+	 * @param priority the lane the task was taken from
+	 * @param nanos    how long the task waited in nanoseconds
+	 */
+	public void dequeued(Runnable task, Priority priority, long nanos) {
+		dequeued.increment();
+		depth.decrementAndGet();
+		wait.record(nanos);
+		lanes.get(priority).record(nanos);
+		type(task).wait.record(nanos);
+	}
+
+	/**
+	 * Records that a task finished running.
+	 *
+	 * @param task   the task
+	 * @param nanos  how long the task ran in nanoseconds
+	 * @param failed whether the task threw an exception
+	 */
+	public void finished(Runnable task, long nanos, boolean failed) {
+		run.record(nanos);
+		TaskMetrics type = type(task);
+		type.run.record(nanos);
+		if (failed) {
+			this.failed.increment();
+			type.failed.increment();
+		}
+	}
+
+	/**
+	 * Records that a worker waited for work.
+	 *
+	 * @param nanos how long the worker waited in nanoseconds
+	 */
+	public void idled(long nanos) {
+		idleWaits.increment();
+		idleNanos.add(nanos);
+	}
+
+	/**
+	 * Returns the wait time histogram for a priority lane.
+	 *
+	 * @param priority the lane
+	 * @return the wait time histogram for that lane
+	 */
+	public LatencyHistogram lane(Priority priority) {
+		return lanes.get(priority);
+	}
+
+	/**
+	 * Returns the wait time histogram for all tasks.
+	 *
+	 * @return the wait time histogram
+	 */
+	public LatencyHistogram waits() {
+		return wait;
+	}
+
+	/**
+	 * Returns the run time histogram for all tasks.
+	 *
+	 * @return the run time histogram
+	 */
+	public LatencyHistogram runs() {
+		return run;
+	}
+
+	@Override
+	public long getEnqueued() {
+		return enqueued.sum();
+	}
+
+	@Override
+	public long getDequeued() {
+		return dequeued.sum();
+	}
+
+	@Override
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	@Override
+	public long getDepth() {
+		return depth.get();
+	}
+
+	@Override
+	public long getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	@Override
+	public int getWorkers() {
+		return workers.getAsInt();
+	}
+
+	@Override
+	public long getIdleWaits() {
+		return idleWaits.sum();
+	}
+
+	@Override
+	public double getIdleMillis() {
+		return idleNanos.sum() / 1e6;
+	}
+
+	@Override
+	public double getWaitMean() {
+		return wait.mean();
+	}
+
+	@Override
+	public double getWaitP50() {
+		return wait.percentile(50);
+	}
+
+	@Override
+	public double getWaitP99() {
+		return wait.percentile(99);
+	}
+
+	@Override
+	public double getWaitMax() {
+		return wait.max();
+	}
+
+	@Override
+	public double getRunMean() {
+		return run.mean();
+	}
+
+	@Override
+	public double getRunP50() {
+		return run.percentile(50);
+	}
+
+	@Override
+	public double getRunP99() {
+		return run.percentile(99);
+	}
+
+	@Override
+	public double getRunMax() {
+		return run.max();
+	}
+
+	@Override
+	public String[] getTaskTypes() {
+		ArrayList<String> summaries = new ArrayList<>();
+		for (Map.Entry<String, TaskMetrics> entry : new TreeMap<>(types).entrySet()) {
+			summaries.add(entry.getKey() + ": " + entry.getValue());
+		}
+		return summaries.toArray(new String[0]);
+	}
+
+	/**
+	 * Returns the JMX name for these metrics.
+	 *
+	 * @return the JMX name
+	 * @throws JMException if the name is invalid
+	 */
+	private ObjectName objectName() throws JMException {
+		return new ObjectName("edu.usfca.cs272:type=CustomWorkQueue,name=" + name);
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server and starts logging a
+	 * summary every given number of milliseconds. Failures are logged and ignored.
+	 *
+	 * @param millis how often to log a summary, or 0 or less to never log
+	 */
+	public void start(long millis) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, objectName());
+		} catch (JMException e) {
+			log.catching(Level.DEBUG, e);
+		}
+
+		if (millis > 0) {
+			reporter = new Thread(() -> {
+				try {
+					while (true) {
+						Thread.sleep(millis);
+						log.debug("Work queue {}: {}", name, this);
+					}
+				} catch (InterruptedException e) {
+					log.catching(Level.TRACE, e);
+				}
+			});
+			reporter.setName("WorkQueueReporter");
+			reporter.setDaemon(true);
+			reporter.start();
+		}
+	}
+
+	/**
+	 * Stops logging summaries, unregisters from the platform MBean server, and logs
+	 * a final summary.
+	 */
+	public void stop() {
+		if (reporter != null) {
+			reporter.interrupt();
+		}
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName())) {
+				server.unregisterMBean(objectName());
+			}
+		} catch (JMException e) {
+			log.catching(Level.DEBUG, e);
+		}
+
+		log.debug("Work queue {}: {}", name, this);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format("%d workers, %d enqueued, %d dequeued, %d failed, depth %d (max %d), ",
+				getWorkers(), getEnqueued(), getDequeued(), getFailed(), getDepth(), getMaxDepth()));
+		summary.append(String.format("%d idle waits (%.3f ms)%n", getIdleWaits(), getIdleMillis()));
+		summary.append("  wait: ").append(wait).append(System.lineSeparator());
+		summary.append("  run: ").append(run);
+
+		for (Priority priority : Priority.values()) {
+			if (lanes.get(priority).count() > 0) {
+				summary.append(System.lineSeparator());
+				summary.append("  ").append(priority).append(" wait: ").append(lanes.get(priority));
+			}
+		}
+
+		for (String type : getTaskTypes()) {
+			summary.append(System.lineSeparator()).append("  ").append(type);
+		}
+
+		return summary.toString();
+	}
+
+	/**
+	 * Metrics for a single type of task.
+	 */
+	private static class TaskMetrics {
+		/** Time tasks of this type spent waiting in the queue. */
+		private final LatencyHistogram wait;
+
+		/** Time tasks of this type spent running. */
+		private final LatencyHistogram run;
+
+		/** Number of tasks of this type that threw an exception. */
+		private final LongAdder failed;
+
+		/**
+		 * Initializes empty metrics for a type of task.
+		 *
+		 * @param type the name of the task type
+		 */
+		public TaskMetrics(String type) {
+			this.wait = new LatencyHistogram();
+			this.run = new LatencyHistogram();
+			this.failed = new LongAdder();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d failed; wait %s; run %s", failed.sum(), wait, run);
+		}
+	}
+
+	/**
+	 * Computes the task type name for a task class, naming lambdas after the
+	 * class they were defined in.
+	 */
+	private static class TypeNames extends ClassValue<String> {
+		/**
+		 * Initializes the task type names.
+		 */
+		public TypeNames() {
+			super();
+		}
+
+		@Override
+		protected String computeValue(Class<?> type) {
+			String name = type.getName();
+			int lambda = name.indexOf("$$Lambda");
+			if (lambda >= 0) {
+				return name.substring(name.lastIndexOf('.', lambda) + 1, lambda) + ".lambda";
+			}
+			return type.getSimpleName().isEmpty() ? name.substring(name.lastIndexOf('.') + 1) : type.getSimpleName();
+		}
+	}
+}
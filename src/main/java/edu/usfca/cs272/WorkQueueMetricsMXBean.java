@@ -0,0 +1,128 @@
+package edu.usfca.cs272;
+
+/**
+ * Management interface used to expose {@link CustomWorkQueue} metrics through
+ * JMX. Times are reported in milliseconds.
+ *
+ * @see WorkQueueMetrics
+ */
+public interface WorkQueueMetricsMXBean {
+	/**
+	 * Returns the number of tasks added to the queue.
+	 *
+	 * @return the number of tasks added
+	 */
+	long getEnqueued();
+
+	/**
+	 * Returns the number of tasks taken from the queue by a worker.
+	 *
+	 * @return the number of tasks taken
+	 */
+	long getDequeued();
+
+	/**
+	 * Returns the number of tasks that threw an exception.
+	 *
+	 * @return the number of failed tasks
+	 */
+	long getFailed();
+
+	/**
+	 * Returns the number of tasks currently waiting in the queue.
+	 *
+	 * @return the current queue depth
+	 */
+	long getDepth();
+
+	/**
+	 * Returns the largest queue depth seen.
+	 *
+	 * @return the largest queue depth
+	 */
+	long getMaxDepth();
+
+	/**
+	 * Returns the current number of worker threads.
+	 *
+	 * @return the number of workers
+	 */
+	int getWorkers();
+
+	/**
+	 * Returns how many times a worker found no work and had to wait.
+	 *
+	 * @return the number of idle waits
+	 */
+	long getIdleWaits();
+
+	/**
+	 * Returns the total time workers spent waiting for work.
+	 *
+	 * @return the total idle time
+	 */
+	double getIdleMillis();
+
+	/**
+	 * Returns the average time tasks waited in the queue.
+	 *
+	 * @return the average wait time
+	 */
+	double getWaitMean();
+
+	/**
+	 * Returns the median time tasks waited in the queue.
+	 *
+	 * @return the median wait time
+	 */
+	double getWaitP50();
+
+	/**
+	 * Returns the 99th percentile of the time tasks waited in the queue.
+	 *
+	 * @return the 99th percentile wait time
+	 */
+	double getWaitP99();
+
+	/**
+	 * Returns the longest time a task waited in the queue.
+	 *
+	 * @return the longest wait time
+	 */
+	double getWaitMax();
+
+	/**
+	 * Returns the average time tasks took to run.
+	 *
+	 * @return the average run time
+	 */
+	double getRunMean();
+
+	/**
+	 * Returns the median time tasks took to run.
+	 *
+	 * @return the median run time
+	 */
+	double getRunP50();
+
+	/**
+	 * Returns the 99th percentile of the time tasks took to run.
+	 *
+	 * @return the 99th percentile run time
+	 */
+	double getRunP99();
+
+	/**
+	 * Returns the longest time a task took to run.
+	 *
+	 * @return the longest run time
+	 */
+	double getRunMax();
+
+	/**
+	 * Returns a one line summary of the wait and run times of each type of task.
+	 *
+	 * @return the summaries, one per task type
+	 */
+	String[] getTaskTypes();
+}